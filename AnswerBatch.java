@@ -0,0 +1,87 @@
+// AnswerBatch class holds answers that are submitted to a TriviaEngine all at once (see
+// TriviaEngine.submitAnswers()), for answers that were not typed at the tablet: answers
+// replayed after the tablet was offline, results imported from another device, or answers made
+// up by a simulator. Each answer names its question by fingerprint (see
+// Question.getFingerprint()), so a batch made for one copy of a bank can be submitted to an
+// engine loaded from another copy, and gives the answer as text, the same as checkAnswer().
+// A batch keeps its answers in the order they were added. Adding the same question twice keeps
+// both answers; the later one wins.
+//
+// Usage:
+//   AnswerBatch batch = new AnswerBatch();
+//   batch.add(question, answer);  // or batch.add(fingerprint, answer)
+//   engine.submitAnswers(batch);
+package org.foxcroft.stem.raffle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class AnswerBatch
+{
+    private long[] mFingerprints;
+    private final List<String> mAnswers;
+
+    /**
+     * Constructor creates an empty batch.
+     */
+    public AnswerBatch() {
+        mFingerprints = new long[16];
+        mAnswers = new ArrayList<String>();
+    }
+
+    /**
+     * add(Question, String) adds the answer to a question.
+     * @param q the question
+     * @param answer the answer chosen, as it would be passed to checkAnswer()
+     */
+    public void add(Question q, String answer) {
+        add(q.getFingerprint(), answer);
+    }
+
+    /**
+     * add(long, String) adds the answer to the question with a fingerprint.
+     * @param fingerprint the fingerprint of the question
+     * @param answer the answer chosen, as it would be passed to checkAnswer()
+     */
+    public void add(long fingerprint, String answer) {
+        if (mAnswers.size() == mFingerprints.length) {
+            mFingerprints = Arrays.copyOf(mFingerprints, mFingerprints.length * 2);
+        }
+        mFingerprints[mAnswers.size()] = fingerprint;
+        mAnswers.add(answer);
+    }
+
+    /**
+     * @return the number of answers in the batch
+     */
+    public int countAnswers() {
+        return mAnswers.size();
+    }
+
+    /**
+     * @param i the position of an answer, from 0 to countAnswers() - 1
+     * @return the answer chosen
+     */
+    public String getAnswer(int i) {
+        return mAnswers.get(i);
+    }
+
+    /**
+     * @param i the position of an answer, from 0 to countAnswers() - 1
+     * @return the fingerprint of the question it answers
+     */
+    public long getFingerprint(int i) {
+        if (i < 0 || i >= mAnswers.size()) {
+            throw new IndexOutOfBoundsException("answer " + i + " of " + mAnswers.size());
+        }
+        return mFingerprints[i];
+    }
+
+    /**
+     * @return true if the batch has no answers
+     */
+    public boolean isEmpty() {
+        return mAnswers.isEmpty();
+    }
+}
@@ -0,0 +1,114 @@
+// BankDiff class compares two versions of a QuestionBank by question fingerprint (see
+// Question.getFingerprint()), so a corrected bank can be applied to engines that are already
+// running (see TriviaEngine.applyDiff) without throwing away the teams' answers. Every row of
+// the new bank is one of:
+//   added      its fingerprint is not in the old bank
+//   changed    its fingerprint is in the old bank, but the answer or distractors (or the case
+//              or spacing of the question) are different
+//   unchanged  the same fingerprint and content hash as a row of the old bank
+// and every row of the old bank whose fingerprint is not in the new bank was removed. A question
+// that moved to another category has a new fingerprint, so it is removed and added. Each bank
+// is passed over once, with a HashMap from fingerprint to row.
+package org.foxcroft.stem.raffle;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class BankDiff
+{
+    private final QuestionBank mOldBank;
+    private final QuestionBank mNewBank;
+    private final List<String[]> mAdded; // rows of the new bank
+    private final List<String[]> mChanged; // rows of the new bank
+    private final List<String[]> mRemoved; // rows of the old bank
+
+    /**
+     * Constructor compares two versions of a bank.
+     * @param oldBank the bank the engines were built from
+     * @param newBank the bank that replaces it
+     */
+    public BankDiff(QuestionBank oldBank, QuestionBank newBank) {
+        mOldBank = oldBank;
+        mNewBank = newBank;
+        mAdded = new ArrayList<String[]>();
+        mChanged = new ArrayList<String[]>();
+        mRemoved = new ArrayList<String[]>();
+        Map<Long, Integer> oldRows = new HashMap<Long, Integer>();
+
+        for (int i = 0; i < oldBank.countQuestions(); i++) {
+            oldRows.put(oldBank.getFingerprint(i), i);
+        }
+
+        for (int i = 0; i < newBank.countQuestions(); i++) {
+            Integer old = oldRows.remove(newBank.getFingerprint(i));
+
+            if (old == null) {
+                mAdded.add(newBank.getRow(i));
+            } else if (oldBank.getContentHash(old) != newBank.getContentHash(i)) {
+                mChanged.add(newBank.getRow(i));
+            }
+        }
+
+        for (int i = 0; i < oldBank.countQuestions(); i++) {
+            if (oldRows.containsKey(oldBank.getFingerprint(i))) {
+                mRemoved.add(oldBank.getRow(i));
+            }
+        }
+    }
+
+    /**
+     * @return the rows of the new bank whose questions are not in the old bank
+     */
+    public List<String[]> getAdded() {
+        return mAdded;
+    }
+
+    /**
+     * @return the rows of the new bank whose questions are in the old bank with different text
+     */
+    public List<String[]> getChanged() {
+        return mChanged;
+    }
+
+    /**
+     * @return the bank that replaces the old one
+     */
+    public QuestionBank getNewBank() {
+        return mNewBank;
+    }
+
+    /**
+     * @return the bank the engines were built from
+     */
+    public QuestionBank getOldBank() {
+        return mOldBank;
+    }
+
+    /**
+     * @return the rows of the old bank whose questions are not in the new bank
+     */
+    public List<String[]> getRemoved() {
+        return mRemoved;
+    }
+
+    /**
+     * isEmpty checks to see if the two banks are the same. Banks with the same questions in a
+     * different order are not the same, since engines keep their questions in bank order.
+     * @return true if the banks have the same version
+     */
+    public boolean isEmpty() {
+        return mOldBank.getVersion() == mNewBank.getVersion();
+    }
+
+    /**
+     * toString summarizes the diff for the log.
+     * @return the number of questions added, changed, and removed
+     */
+    @Override
+    public String toString() {
+        return String.format("BankDiff(%s): %d added, %d changed, %d removed",
+                mNewBank.getSessionType(), mAdded.size(), mChanged.size(), mRemoved.size());
+    }
+}
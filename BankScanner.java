@@ -0,0 +1,381 @@
+// BankScanner class reads a questions .tsv straight from its UTF-8 bytes. Reading a bank through
+// InputStreamReader and BufferedReader.readLine() decodes every line into a String (and split()
+// makes a String for every field) before anything is checked, even for blank lines, rows that
+// are skipped, and text that has already been seen. BankScanner finds the tabs and newlines in
+// a ByteBuffer without decoding anything, so:
+//   - blank lines and rows with the wrong number of columns cost no allocation at all
+//   - a row that repeats an earlier row is recognized by comparing bytes
+//   - a field is only decoded when field() is called, and a field whose bytes have already been
+//     decoded returns the same String without decoding again
+// pooledField() also passes the text through the shared StringPool, so it is shared with the
+// rest of the process just as if it had been read line by line. field() only shares it within
+// the scan, for callers (such as QuestionStore) that keep their own copy of the text.
+//
+//   BankScanner scanner = new BankScanner(BankScanner.readAll(is));
+//   while (scanner.nextLine()) {
+//       if (scanner.countFields() == 6) { String category = scanner.field(0); ... }
+//   }
+package org.foxcroft.stem.raffle;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+public class BankScanner
+{
+    public static final int MAX_FIELDS = 8; // lines with more fields report MAX_FIELDS + 1
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private final ByteBuffer mBuffer;
+    private int mPosition; // start of the next line
+    private int mLineStart;
+    private int mLineEnd; // end of the current line, not counting '\r' or '\n'
+    private int[] mStarts; // start of each field of the current line
+    private int[] mEnds; // end of each field of the current line
+    private int mFieldCount;
+    private SliceTable mLines; // lines seen by isRepeatedLine()
+    private SliceTable mFields; // fields decoded by field()
+    private long mDecodedBytes; // bytes of text that were actually decoded
+
+    /**
+     * SliceTable is a hash table of ranges of the buffer, compared by their bytes, each with
+     * an optional String.
+     */
+    private class SliceTable
+    {
+        private int[] mSlots; // index into the arrays below + 1, or 0 if the slot is empty
+        private int[] mStartOf;
+        private int[] mLengthOf;
+        private int[] mHashOf;
+        private String[] mStringOf;
+        private boolean[] mPooled; // true once mStringOf has been passed through the StringPool
+        private int mSize;
+
+        SliceTable() {
+            mSlots = new int[256];
+            mStartOf = new int[128];
+            mLengthOf = new int[128];
+            mHashOf = new int[128];
+            mStringOf = new String[128];
+            mPooled = new boolean[128];
+        }
+
+        /**
+         * find returns the entry with the same bytes as a range, adding the range if there is
+         * no such entry.
+         * @param start the start of the range
+         * @param end the end of the range
+         * @return the entry's index, or -(index + 1) if the range was just added
+         */
+        int find(int start, int end) {
+            int hash = hash(start, end);
+            int mask = mSlots.length - 1;
+
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                int entry = mSlots[slot] - 1;
+
+                if (entry < 0) {
+                    entry = add(start, end, hash);
+                    mSlots[slot] = entry + 1;
+                    if (mSize * 2 > mSlots.length) {
+                        rehash();
+                    }
+                    return -(entry + 1);
+                }
+
+                if (mHashOf[entry] == hash && sameBytes(mStartOf[entry], mLengthOf[entry], start, end)) {
+                    return entry;
+                }
+            }
+        }
+
+        private int add(int start, int end, int hash) {
+            if (mSize == mStartOf.length) {
+                mStartOf = Arrays.copyOf(mStartOf, mSize * 2);
+                mLengthOf = Arrays.copyOf(mLengthOf, mSize * 2);
+                mHashOf = Arrays.copyOf(mHashOf, mSize * 2);
+                mStringOf = Arrays.copyOf(mStringOf, mSize * 2);
+                mPooled = Arrays.copyOf(mPooled, mSize * 2);
+            }
+            mStartOf[mSize] = start;
+            mLengthOf[mSize] = end - start;
+            mHashOf[mSize] = hash;
+            return mSize++;
+        }
+
+        private void rehash() {
+            mSlots = new int[mSlots.length * 2];
+            int mask = mSlots.length - 1;
+
+            for (int entry = 0; entry < mSize; entry++) {
+                int slot = mHashOf[entry] & mask;
+                while (mSlots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                mSlots[slot] = entry + 1;
+            }
+        }
+    }
+
+    /**
+     * Constructor accepts the bytes of a .tsv file. The buffer is read from its position to
+     * its limit, and is not changed.
+     * @param buffer UTF-8 text
+     */
+    public BankScanner(ByteBuffer buffer) {
+        mBuffer = buffer;
+        mPosition = buffer.position();
+        mStarts = new int[MAX_FIELDS];
+        mEnds = new int[MAX_FIELDS];
+        mLines = new SliceTable();
+        mFields = new SliceTable();
+
+        // skip a byte order mark
+        if (buffer.remaining() >= 3 && (buffer.get(mPosition) & 0xff) == 0xef
+                && (buffer.get(mPosition + 1) & 0xff) == 0xbb && (buffer.get(mPosition + 2) & 0xff) == 0xbf) {
+            mPosition += 3;
+        }
+    }
+
+    /**
+     * readAll reads an InputStream to the end into a ByteBuffer, and closes it.
+     * @param is the stream to read
+     * @return a buffer holding every byte of the stream
+     * @throws IOException if the stream cannot be read
+     */
+    public static ByteBuffer readAll(InputStream is) throws IOException {
+        byte[] bytes = new byte[Math.max(is.available(), 8192)];
+        int length = 0;
+
+        try {
+            while (true) {
+                if (length == bytes.length) {
+                    // available() is usually exact, so only grow if there really is more
+                    int next = is.read();
+                    if (next == -1) {
+                        break;
+                    }
+                    bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                    bytes[length++] = (byte) next;
+                }
+
+                int read = is.read(bytes, length, bytes.length - length);
+                if (read == -1) {
+                    break;
+                }
+                length += read;
+            }
+        } finally {
+            is.close();
+        }
+
+        return ByteBuffer.wrap(bytes, 0, length);
+    }
+
+    /**
+     * @return the number of fields in the current line, or MAX_FIELDS + 1 if there are more
+     */
+    public int countFields() {
+        return mFieldCount;
+    }
+
+    /**
+     * @return the number of bytes of text that have been decoded into Strings
+     */
+    public long countDecodedBytes() {
+        return mDecodedBytes;
+    }
+
+    /**
+     * field returns the text of one field of the current line. The bytes are only decoded the
+     * first time they are seen; after that, the same String is returned.
+     * @param index between 0 and countFields() - 1
+     * @return the text of the field
+     */
+    public String field(int index) {
+        int start = mStarts[index];
+        int end = mEnds[index];
+        int entry = mFields.find(start, end);
+
+        if (entry < 0) {
+            entry = -(entry + 1);
+            mFields.mStringOf[entry] = decode(start, end);
+        }
+
+        return mFields.mStringOf[entry];
+    }
+
+    /**
+     * pooledField returns the text of one field of the current line, like field(), from the
+     * shared StringPool.
+     * @param index between 0 and countFields() - 1
+     * @return the text of the field, from the shared StringPool
+     */
+    public String pooledField(int index) {
+        int entry = mFields.find(mStarts[index], mEnds[index]);
+
+        if (entry < 0 || !mFields.mPooled[entry]) {
+            entry = entry < 0 ? -(entry + 1) : entry;
+            String text = mFields.mStringOf[entry] != null
+                    ? mFields.mStringOf[entry] : decode(mStarts[index], mEnds[index]);
+            mFields.mStringOf[entry] = StringPool.getInstance().intern(text);
+            mFields.mPooled[entry] = true;
+        }
+
+        return mFields.mStringOf[entry];
+    }
+
+    /**
+     * fieldEquals checks a field of the current line against some text without decoding the
+     * field. The text must only contain ASCII characters.
+     * @param index between 0 and countFields() - 1
+     * @param ascii the text to compare with
+     * @return true if the field holds exactly that text
+     */
+    public boolean fieldEquals(int index, String ascii) {
+        int start = mStarts[index];
+
+        if (mEnds[index] - start != ascii.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < ascii.length(); i++) {
+            if (mBuffer.get(start + i) != (byte) ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * isRepeatedLine checks to see if the current line has exactly the same bytes as a line
+     * already checked by this method.
+     * @return true if an identical line was checked before
+     */
+    public boolean isRepeatedLine() {
+        return mLines.find(mLineStart, mLineEnd) >= 0;
+    }
+
+    /**
+     * nextLine moves to the next line that is not blank, and finds its fields.
+     * @return false if there are no more lines
+     */
+    public boolean nextLine() {
+        int limit = mBuffer.limit();
+
+        while (mPosition < limit) {
+            mLineStart = mPosition;
+            mFieldCount = 0;
+            int fieldStart = mPosition;
+            int i = mPosition;
+
+            while (i < limit && mBuffer.get(i) != '\n') {
+                if (mBuffer.get(i) == '\t') {
+                    addField(fieldStart, i);
+                    fieldStart = i + 1;
+                }
+                i++;
+            }
+
+            mPosition = i + 1;
+            mLineEnd = (i > mLineStart && mBuffer.get(i - 1) == '\r') ? i - 1 : i;
+
+            if (mLineEnd > mLineStart) {
+                addField(fieldStart, Math.max(fieldStart, mLineEnd));
+
+                // like String.split(), empty fields at the end of the line do not count
+                while (mFieldCount > 0 && mFieldCount <= MAX_FIELDS
+                        && mEnds[mFieldCount - 1] == mStarts[mFieldCount - 1]) {
+                    mFieldCount--;
+                }
+
+                if (mFieldCount > 0) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * addField records the range of a field of the current line.
+     * @param start the first byte of the field
+     * @param end one past the last byte of the field
+     */
+    private void addField(int start, int end) {
+        if (mFieldCount < MAX_FIELDS) {
+            mStarts[mFieldCount] = start;
+            mEnds[mFieldCount] = end;
+            mFieldCount++;
+        } else {
+            mFieldCount = MAX_FIELDS + 1;
+        }
+    }
+
+    /**
+     * decode turns a range of the buffer into a String. Text that is all ASCII (most of a
+     * bank) is copied without running the UTF-8 decoder.
+     * @param start the first byte
+     * @param end one past the last byte
+     * @return the decoded text
+     */
+    private String decode(int start, int end) {
+        int length = end - start;
+        boolean ascii = true;
+        mDecodedBytes += length;
+
+        for (int i = start; i < end && ascii; i++) {
+            ascii = mBuffer.get(i) >= 0;
+        }
+
+        Charset charset = ascii ? ISO_8859_1 : UTF_8;
+
+        if (mBuffer.hasArray()) {
+            return new String(mBuffer.array(), mBuffer.arrayOffset() + start, length, charset);
+        }
+
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = mBuffer.get(start + i);
+        }
+        return new String(bytes, charset);
+    }
+
+    /**
+     * hash calculates a hash code from the bytes of a range.
+     * @param start the first byte
+     * @param end one past the last byte
+     * @return the hash code
+     */
+    private int hash(int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + mBuffer.get(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * sameBytes compares two ranges of the buffer.
+     * @param start1 the start of the first range
+     * @param length1 the length of the first range
+     * @param start2 the start of the second range
+     * @param end2 the end of the second range
+     * @return true if the ranges hold the same bytes
+     */
+    private boolean sameBytes(int start1, int length1, int start2, int end2) {
+        if (end2 - start2 != length1) {
+            return false;
+        }
+
+        for (int i = 0; i < length1; i++) {
+            if (mBuffer.get(start1 + i) != mBuffer.get(start2 + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,193 @@
+// BankWatcher class reloads a question bank while the app is running. It watches the
+// QuestionBank.BANK_DIRECTORY of the app's files directory; when a questions .tsv is copied
+// there (questions_morning.tsv, questions_afternoon.tsv, or questions.tsv), the new bank is
+// parsed on the watcher's thread, compared with the bank in use (see BankDiff), and, if
+// anything changed, applied to every cached engine of that session (see
+// TriviaEngine.applyDiff()). Teams keep their answers and tickets.
+// Engines are only changed on the thread passed to the constructor (the UI thread, in
+// TriviaActivity), the same thread that draws and answers questions, so a draw never sees a
+// bank that is half applied.
+// A bank should be written under another name and renamed into place, so the watcher never
+// reads a file that is only partly copied. A file that has not changed is parsed but not applied.
+// Usage: start() when the activity is created, stop() when it is destroyed.
+package org.foxcroft.stem.raffle;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.Executor;
+
+public class BankWatcher
+{
+    private static final String TAG = "BankWatcher";
+    private static final String[] SESSIONS = {
+            TriviaActivity.MORNING_TEAM, TriviaActivity.AFTERNOON_TEAM, TriviaActivity.TEAM_NOT_FOUND };
+    private final Context mContext;
+    private final EngineCache mEngineCache;
+    private final Executor mApplyOn;
+    private WatchService mWatchService;
+    private Thread mThread;
+
+    /**
+     * Constructor creates a watcher that has not started.
+     * @param context used to find the files directory and to open banks
+     * @param engineCache holds the engines that new banks are applied to
+     * @param applyOn runs the code that changes engines (the UI thread)
+     */
+    public BankWatcher(Context context, EngineCache engineCache, Executor applyOn) {
+        mContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        mEngineCache = engineCache;
+        mApplyOn = applyOn;
+    }
+
+    /**
+     * start creates the bank directory if it does not exist and starts watching it on a
+     * background thread. Calling start on a watcher that has started does nothing.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+
+        File directory = new File(mContext.getFilesDir(), QuestionBank.BANK_DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.d(TAG, "start(): could not create " + directory);
+            return;
+        }
+
+        try {
+            mWatchService = FileSystems.getDefault().newWatchService();
+            directory.toPath().register(mWatchService,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            Log.d(TAG, "start(): could not watch " + directory + ": " + e.getMessage());
+            mWatchService = null;
+            return;
+        }
+
+        final WatchService watchService = mWatchService;
+        final File watched = directory;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch(watchService, watched);
+            }
+        }, TAG);
+        mThread.setDaemon(true);
+        mThread.start();
+        Log.d(TAG, "start(): watching " + directory);
+    }
+
+    /**
+     * stop stops watching the bank directory. A bank that is being applied is finished.
+     */
+    public synchronized void stop() {
+        if (mWatchService != null) {
+            try {
+                mWatchService.close(); // wakes the watcher thread
+            } catch (IOException e) {
+                Log.d(TAG, "stop(): " + e.getMessage());
+            }
+        }
+        mWatchService = null;
+        mThread = null;
+    }
+
+    /**
+     * reload parses a bank file and applies it to the cached engines of its session. It is
+     * called on the watcher thread; only applying the diff runs on the applyOn thread.
+     * @param typeOfTeam the session the bank is for
+     * @param file the new bank
+     */
+    public void reload(String typeOfTeam, File file) {
+        QuestionBank newBank;
+        try {
+            newBank = new QuestionBank(typeOfTeam, new FileInputStream(file));
+        } catch (IOException e) {
+            Log.d(TAG, "reload(): could not read " + file + ": " + e.getMessage());
+            return;
+        }
+
+        if (newBank.countQuestions() == 0) {
+            Log.d(TAG, "reload(): " + file + " has no questions; ignoring it");
+            return;
+        }
+
+        final BankDiff diff = new BankDiff(QuestionBank.getInstance(mContext, typeOfTeam), newBank);
+        if (diff.isEmpty()) {
+            return;
+        }
+
+        Log.d(TAG, "reload(): " + diff);
+        QuestionBank.replace(newBank);
+        final String key = QuestionBank.sessionKey(typeOfTeam);
+
+        mApplyOn.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (TriviaEngine engine : mEngineCache.getEngines()) {
+                    if (engine.getSessionType().equals(key)) {
+                        engine.applyDiff(diff);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * sessionFor finds the session whose bank is kept in a file.
+     * @param fileName the name of the file, with no directory
+     * @return the session, or null if the file is not a bank
+     */
+    public static String sessionFor(String fileName) {
+        for (String session : SESSIONS) {
+            if (QuestionBank.fileNameFor(session).equals(fileName)) {
+                return session;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * watch waits for files to be created or modified in the bank directory, and reloads the
+     * banks among them, until the watch service is closed.
+     * @param watchService the service the directory is registered with
+     * @param directory the bank directory
+     */
+    private void watch(WatchService watchService, File directory) {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        continue;
+                    }
+
+                    String fileName = ((Path) event.context()).getFileName().toString();
+                    String session = sessionFor(fileName);
+                    if (session != null) {
+                        reload(session, new File(directory, fileName));
+                    }
+                }
+
+                if (!key.reset()) {
+                    Log.d(TAG, "watch(): " + directory + " is no longer watched");
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            Log.d(TAG, "watch(): stopped");
+        }
+    }
+}
@@ -8,10 +8,17 @@
 // An ArrayList of Categories is a field in the TriviaEngine class.
 // The TriviaEngine will be included in an app where players earn raffle tickets based
 // on how many trivia questions they answer correctly.
+// NO_CATEGORY is returned wherever no Category can be found, so that drawing a question never
+// allocates. It is shared, empty, and locked, and its mutators do nothing.
+// A Category can also hold the rows of a QuestionStore instead of Question objects (see
+// StoreQuestions below). Its Questions are then views, created when they are asked for, so a
+// team only keeps its answer array; a draw checks the answers directly and creates one view,
+// for the question it returns.
 package org.foxcroft.stem.raffle;
 
 import android.util.Log;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -25,13 +32,18 @@ public class Category
     private String mCategory;
     private boolean mLocked;
     private List<Question> mQuestions;
+    private TriviaEngine mEngine; // the engine holding this category, if there is one
+    private int mId; // this category's index in the engine's list of categories
+    private boolean mDirty = true; // true if this category has changed since it was last saved
+    private int mAnswered; // number of Questions in mQuestions that have been answered
+    private int mCorrect; // number of Questions in mQuestions that have been answered correctly
+    public static final Category NO_CATEGORY = new Category();
 
     /**
      * No-arg constructor initializes the name of the category to EMPTY and locks it.
      * This is to be returned by get() methods if the desired category is not found.
      */
     public Category() {
-        Log.d(TAG, "Category() called");
         mCategory = DEFAULT_CATEGORY;
         mLocked = true;
         mQuestions = new ArrayList<Question>();
@@ -53,12 +65,12 @@ public class Category
         // if the calling object only passes the name of the category
         if (tokens.length == 1)
         {
-            mCategory = line;
+            mCategory = StringPool.getInstance().intern(line);
         }
         // if the calling object passes a line from the .tsv
         else if (tokens.length == 6 || tokens.length == 7)
         {
-            mCategory = tokens[0];
+            mCategory = StringPool.getInstance().intern(tokens[0]);
             addQuestion(line);
         }
 
@@ -73,11 +85,32 @@ public class Category
      */
     public Category(String category, boolean locked) {
         // Log.d(TAG, "Category(" + category + "," + locked + ") called");
-        mCategory = category;
+        mCategory = StringPool.getInstance().intern(category);
         mLocked = locked;
         mQuestions = new ArrayList<Question>();
     }
 
+    /**
+     * Category(String, QuestionStore, byte[], int) creates a locked Category holding one
+     * category of a QuestionStore. Its Questions are views of the store's rows, with their
+     * answers in the team's answer array.
+     * @param category the name of the category
+     * @param store the shared question store
+     * @param answers the team's answer array (see QuestionStore.newAnswers())
+     * @param storeId the category's ID in the store
+     */
+    Category(String category, QuestionStore store, byte[] answers, int storeId) {
+        mCategory = StringPool.getInstance().intern(category);
+        mLocked = true;
+        mQuestions = new StoreQuestions(store, answers, storeId);
+
+        for (int i = 0; i < mQuestions.size(); i++) {
+            if (isAnswered(mQuestions, i)) {
+                countScore(mQuestions.get(i));
+            }
+        }
+    }
+
     /**
      * addQuestion takes a line from questions.tsv and uses it to create and add a Question object
      * to mQuestions. addQuestion also validates the line of text to make sure the Question
@@ -96,6 +129,9 @@ public class Category
      * @param line a line from a .tsv file to pass to the Question constructor
      */
     public void addQuestion(String line) {
+        if (this == NO_CATEGORY) {
+            return; // the shared sentinel never changes
+        }
         // Log.d(TAG, "addQuestion(" + line + ") called on line 105");
         String[] tokens = line.split("\t");
 
@@ -113,7 +149,11 @@ public class Category
 
             if (!found) {
                 // Log.d(TAG, "addQuestion(): Question (" + q.toString() + ") not found");
+                ownQuestions();
+                q.setCategory(this, mQuestions.size());
                 mQuestions.add(q);
+                countScore(q);
+                mDirty = true;
                 // Log.d(TAG, "addQuestion(): Question (" + q.toString() + ") added to mQuestions");
             }
         } else {
@@ -122,25 +162,103 @@ public class Category
     }
 
     /**
-     * countAnswered() iterates through mQuestions and iterates a counter to determine how
-     * many questions have been answered (correctly or incorrectly). this will be used to determine
-     * whether or not a new category should be unlocked, and how many questions are remaining.
-     * @return an int between 0 and the value returned by countQuestions()
+     * addQuestion(Question) adds a Question that has already been built, such as one copied
+     * from a row of a QuestionBank. Unlike addQuestion(String), it does not check for
+     * duplicates; the QuestionBank removes them when it is loaded.
+     * @param q the Question to add
      */
-    public int countAnswered() {
-        // Log.d(TAG, "countAnswered() called");
-        int numAnswered = 0;
+    public void addQuestion(Question q) {
+        if (this == NO_CATEGORY) {
+            return; // the shared sentinel never changes
+        }
+        ownQuestions();
+        q.setCategory(this, mQuestions.size());
+        mQuestions.add(q);
+        countScore(q);
+        mDirty = true;
+    }
 
-        for (Question q : mQuestions)
-        {
-            if (q.isAnswered())
-            {
-                numAnswered++;
-            }
+    /**
+     * answerChanged() is called by Question.checkAnswer() and Question.clearAnswer() when one
+     * of this Category's Questions changes. It marks this Category as dirty, updates the counts
+     * of answered and correct Questions, and passes the change on to the engine.
+     * @param q the Question that changed
+     * @param wasAnswered true if the Question was answered before the change
+     * @param wasCorrect true if the Question was answered correctly before the change
+     */
+    void answerChanged(Question q, boolean wasAnswered, boolean wasCorrect) {
+        int answeredChange = (q.isAnswered() ? 1 : 0) - (wasAnswered ? 1 : 0);
+        int correctChange = (q.isCorrect() ? 1 : 0) - (wasCorrect ? 1 : 0);
+        mDirty = true;
+        mAnswered += answeredChange;
+        mCorrect += correctChange;
+
+        if (mEngine != null) {
+            mEngine.answerChanged(mId, q, answeredChange, correctChange);
+        }
+    }
+
+    /**
+     * attach is called by the TriviaEngine when this Category is added to its list. The engine
+     * keeps the locked status of every category in a bitset indexed by mId, so lock() and
+     * unlock() report changes back to it.
+     * @param engine the TriviaEngine that holds this Category
+     * @param id the index of this Category in the engine's list of categories
+     */
+    void attach(TriviaEngine engine, int id) {
+        if (this == NO_CATEGORY) {
+            return; // the shared sentinel never changes
+        }
+        mEngine = engine;
+        mId = id;
+    }
+
+    /**
+     * replaceQuestions() is called by TriviaEngine.applyDiff() to give this Category the
+     * questions of a new version of the bank, in bank order. Questions that are kept are the
+     * same objects as before, so their answers are not touched. The counts of answered and
+     * correct Questions are recalculated, and the Category is marked as dirty.
+     * @param questions the Questions this Category should hold
+     */
+    void replaceQuestions(List<Question> questions) {
+        if (this == NO_CATEGORY) {
+            return; // the shared sentinel never changes
         }
+        List<Question> replaced = new ArrayList<Question>(questions);
+        int answered = 0;
+        int correct = 0;
+
+        for (int i = 0; i < replaced.size(); i++) {
+            Question q = replaced.get(i);
+            q.setCategory(this, i);
+            answered += q.isAnswered() ? 1 : 0;
+            correct += q.isCorrect() ? 1 : 0;
+        }
+
+        // swapped in all at once, so a draw in progress sees either the old list or the new one
+        mQuestions = replaced;
+        mAnswered = answered;
+        mCorrect = correct;
+        mDirty = true;
+    }
 
-        // Log.d(TAG, "countAnswered(): returning " + numAnswered);
-        return numAnswered;
+    /**
+     * clearDirty() is called by SegmentedSave once this category's segment has been written.
+     */
+    void clearDirty() {
+        mDirty = false;
+    }
+
+    /**
+     * countAnswered() returns how many questions have been answered (correctly or incorrectly).
+     * this will be used to determine whether or not a new category should be unlocked, and how
+     * many questions are remaining. The count is kept up to date as questions are added and
+     * answered, so no questions are scanned.
+     * @return an int between 0 and the value returned by countQuestions()
+     */
+    public int countAnswered() {
+        // Log.d(TAG, "countAnswered() called; returning " + mAnswered);
+        return mAnswered;
     }
 
     /**
@@ -148,37 +266,20 @@ public class Category
      * @return the number of available questions in this category
      */
     public int countAvailable() {
-        Log.d(TAG, "countAvailable(" + mCategory + ") called");
-
-        int available = 0;
-        for (Question q : mQuestions) {
-            available += q.isAnswered() ? 0 : 1;
-        }
-
-        Log.d(TAG, "countAvailable(" + mCategory + ") returning: " + available);
+        int available = mQuestions.size() - mAnswered;
+        // Log.d(TAG, "countAvailable(" + mCategory + ") returning: " + available);
         return available;
     }
 
     /**
-     * countCorrect iterates through mQuestions and increments a counter to determine how
-     * many questions have been answered correctly. this will be used to determine how many raffle
-     * tickets the team has earned for this category.
+     * countCorrect returns how many questions have been answered correctly. this will be used
+     * to determine how many raffle tickets the team has earned for this category. Like
+     * countAnswered(), the count is kept up to date rather than recalculated.
      * @ return an int between 0 and the value returned by countAnswered()
      */
     public int countCorrect() {
-        // Log.d(TAG, "countCorrect(" + mCategory + ") called");
-        int numCorrect = 0;
-
-        for (Question q : mQuestions)
-        {
-            if (q.isCorrect())
-            {
-                numCorrect++;
-            }
-        }
-
-        Log.d(TAG, "countCorrect(" + mCategory + ") called; returning " + numCorrect);
-        return numCorrect;
+        // Log.d(TAG, "countCorrect(" + mCategory + ") called; returning " + mCorrect);
+        return mCorrect;
     }
 
     /**
@@ -190,6 +291,22 @@ public class Category
         // Log.d(TAG, "countQuestions() called; returning " + mQuestions.size());
         return mQuestions.size();  }
 
+    /**
+     * countScore adds the answer of a Question that is being added to this Category to the
+     * counts of answered and correct Questions.
+     * @param q the Question being added
+     */
+    private void countScore(Question q) {
+        int answered = q.isAnswered() ? 1 : 0;
+        int correct = q.isCorrect() ? 1 : 0;
+        mAnswered += answered;
+        mCorrect += correct;
+
+        if (mEngine != null && answered != 0) {
+            mEngine.scoreChanged(answered, correct);
+        }
+    }
+
     /**
      * findQuestion accepts the text of a question, and returns a reference to that Question.
      * @param q the text of the question
@@ -203,9 +320,9 @@ public class Category
                 return question;
             }
         }
-        // return a question with default values that can be checked
+        // return the shared sentinel, which can be checked with isNone()
         // Log.d(TAG, "findQuestion(): returning default Question");
-        return new Question();
+        return Question.NO_QUESTION;
     }
 
     /**
@@ -216,54 +333,73 @@ public class Category
         // Log.d(TAG, "getCategory() called. Returning " + mCategory);
         return mCategory; }
 
+    /**
+     * getId returns the index of this Category in its TriviaEngine's list of categories.
+     * @return the category ID, or 0 if this Category is not held by an engine
+     */
+    public int getId() {
+        return mId;
+    }
+
     /**
      * getNextQuestion returns the next unanswered Question object from the bank.
-     * @return a Question that has not been answered yet, and null if none is available
+     * @return a Question that has not been answered yet, or NO_QUESTION if none is available
      */
     public Question getNextQuestion() {
-        Log.d(TAG, "getNextQuestion() called");
+        // Log.d(TAG, "getNextQuestion() called");
+        List<Question> questions = mQuestions;
+
         if (countAnswered() < countQuestions()) {
             int index = 0;
 
-            while (mQuestions.get(index).isAnswered() && index < mQuestions.size())
+            while (index < questions.size() && isAnswered(questions, index))
             {
                 index++;
             }
 
-            if (index < mQuestions.size())
+            if (index < questions.size())
             {
-                Log.d(TAG, "getNextQuestion(): returning " + mQuestions.get(index).getQuestion());
-                return mQuestions.get(index);
+                // Log.d(TAG, "getNextQuestion(): returning " + questions.get(index).getQuestion());
+                return questions.get(index);
             }
         }
 
-        Log.d(TAG, "getNextQuestion(): returning default Question");
-        return new Question();
+        // Log.d(TAG, "getNextQuestion(): returning default Question");
+        return Question.NO_QUESTION;
+    }
+
+    /**
+     * getQuestion returns the Question at a position in mQuestions. Questions keep their
+     * positions, so this is used with countQuestions() to walk through a category in order.
+     * @param index between 0 and countQuestions() - 1
+     * @return the Question at that position
+     */
+    public Question getQuestion(int index) {
+        return mQuestions.get(index);
     }
 
     /**
      * getRandomQuestion will iterate through the number of questions in a pseudorandom fashion,
      * and will return the first question that is unanswered.
-     * @return an unanswered Question object, or null if none is available
+     * @return an unanswered Question object, or NO_QUESTION if none is available
      */
     public Question getRandomQuestion()
     {
-        Log.d(TAG, "getRandomQuestion() called");
+        // Log.d(TAG, "getRandomQuestion() called");
+        List<Question> questions = mQuestions;
 
         if (hasQuestionsAvailable())
         {
             int index = 0;
             do {
-                index = (int)(Math.random() * mQuestions.size());
+                index = (int)(Math.random() * questions.size());
+            } while (isAnswered(questions, index));
 
-                if (!mQuestions.get(index).isAnswered()) {
-                    return mQuestions.get(index);
-                }
-            } while (mQuestions.get(index).isAnswered());
+            return questions.get(index);
         }
 
-        Log.d(TAG, "getRandomQuestion(): returning default Question");
-        return new Question(); // if there are no unanswered questions
+        // Log.d(TAG, "getRandomQuestion(): returning default Question");
+        return Question.NO_QUESTION; // if there are no unanswered questions
     }
 
     /**
@@ -272,10 +408,41 @@ public class Category
      * @return true if there are unanswered questions, false otherwise
      */
     public boolean hasQuestionsAvailable() {
-        Log.d(TAG, "hasQuestionsAvailable(" + mCategory + ") called; returning " + (countAnswered() < countQuestions()));
+        // Log.d(TAG, "hasQuestionsAvailable(" + mCategory + ") called; returning " + (countAnswered() < countQuestions()));
         return (countAnswered() < countQuestions());
     }
 
+    /**
+     * isAnswered checks to see if the Question at a position has been answered. The answer of
+     * a store row is read from the answer array, so no view is created.
+     * @param questions mQuestions, as read by the caller
+     * @param index between 0 and questions.size() - 1
+     * @return true if the Question has been answered
+     */
+    private static boolean isAnswered(List<Question> questions, int index) {
+        if (questions instanceof StoreQuestions) {
+            return ((StoreQuestions) questions).isAnswered(index);
+        }
+        return questions.get(index).isAnswered();
+    }
+
+    /**
+     * isNone checks to see if this is NO_CATEGORY, the Category returned when none was found.
+     * @return true if this is the shared sentinel
+     */
+    public boolean isNone() {
+        return this == NO_CATEGORY;
+    }
+
+    /**
+     * isDirty checks to see if this Category has changed since it was last saved. Answering or
+     * clearing a Question, adding a Question, locking, and unlocking all mark it as dirty.
+     * @return true if this Category needs to be saved
+     */
+    public boolean isDirty() {
+        return mDirty;
+    }
+
     /**
      * isLocked checks to see if this Category's Questions can be accessed.
      * @return true if the category is locked
@@ -301,7 +468,40 @@ public class Category
      */
     public void lock() {
         // Log.d(TAG, "lock() called");
+        if (this == NO_CATEGORY) {
+            return; // the shared sentinel never changes
+        }
+        if (!mLocked) {
+            mDirty = true;
+        }
         mLocked = true;
+
+        if (mEngine != null) {
+            mEngine.categoryLockChanged(mId, true);
+        }
+    }
+
+    /**
+     * measure adds this Category to a HeapFootprint: the object, its name, its list, and every
+     * Question in it.
+     * @param footprint the footprint to add to
+     */
+    void measure(HeapFootprint footprint) {
+        // TAG, mCategory, mQuestions, mEngine; mId, mAnswered, mCorrect; mLocked, mDirty
+        footprint.add(HeapFootprint.CATEGORIES, this, HeapFootprint.objectSize(4, 14));
+        footprint.addString(HeapFootprint.STRINGS, mCategory);
+        List<Question> questions = mQuestions;
+
+        if (questions instanceof StoreQuestions) {
+            ((StoreQuestions) questions).measure(footprint); // no Questions are kept
+            return;
+        }
+
+        footprint.add(HeapFootprint.CATEGORIES, questions, HeapFootprint.listSize(questions.size()));
+
+        for (Question q : questions) {
+            q.measure(footprint);
+        }
     }
 
     /**
@@ -342,7 +542,29 @@ public class Category
     public void unlock()
     {
         Log.d(TAG, "unlock() called on category: " + mCategory);
-        mLocked = false;   }
+        if (this == NO_CATEGORY) {
+            return; // the shared sentinel never changes
+        }
+        if (mLocked) {
+            mDirty = true;
+        }
+        mLocked = false;
+
+        if (mEngine != null) {
+            mEngine.categoryLockChanged(mId, false);
+        }
+    }
+
+    /**
+     * ownQuestions replaces the views of a store-backed Category with a list of their own, so
+     * that Questions can be added to it. The views still keep their answers in the team's
+     * answer array. It does nothing for any other Category.
+     */
+    private void ownQuestions() {
+        if (mQuestions instanceof StoreQuestions) {
+            mQuestions = new ArrayList<Question>(mQuestions);
+        }
+    }
 
     /**
      * mCategory contains the name of the category. This should be found in the first column
@@ -351,5 +573,78 @@ public class Category
      */
     public void setCategory(String category) {
         // Log.d(TAG, "setCategory(" + category + ") called");
+        if (this == NO_CATEGORY) {
+            return; // the shared sentinel never changes
+        }
         mCategory = category;   }
-}
\ No newline at end of file
+
+    /**
+     * StoreQuestions is the list of Questions of a Category that holds one category of a
+     * QuestionStore. It keeps no Questions: get() creates a view of the row each time it is
+     * called, so a team's state is its answer array, which every one of its categories shares.
+     * The list cannot be changed; ownQuestions() copies it first.
+     */
+    private class StoreQuestions extends AbstractList<Question>
+    {
+        private final QuestionStore mStore;
+        private final byte[] mAnswers; // the team's answers, one byte per row of mStore
+        private final int mStoreId; // the category's ID in mStore
+        private final int mSize;
+
+        /**
+         * Constructor accepts the store, the team's answers, and the category to list.
+         * @param store the shared question store
+         * @param answers the team's answer array
+         * @param storeId the category's ID in the store
+         */
+        StoreQuestions(QuestionStore store, byte[] answers, int storeId) {
+            mStore = store;
+            mAnswers = answers;
+            mStoreId = storeId;
+            mSize = store.countRowsIn(storeId);
+        }
+
+        /**
+         * get creates a view of one of the category's rows, held by this Category.
+         * @param index between 0 and size() - 1
+         * @return a new view of the row
+         */
+        @Override
+        public Question get(int index) {
+            if (index < 0 || index >= mSize) {
+                throw new IndexOutOfBoundsException("index " + index + ", size " + mSize);
+            }
+            Question q = mStore.view(mAnswers, mStore.getRowIn(mStoreId, index));
+            q.setCategory(Category.this, index);
+            return q;
+        }
+
+        /**
+         * @return the number of rows in the category
+         */
+        @Override
+        public int size() {
+            return mSize;
+        }
+
+        /**
+         * isAnswered checks a row's answer without creating a view.
+         * @param index between 0 and size() - 1
+         * @return true if the team has answered the row
+         */
+        boolean isAnswered(int index) {
+            return mAnswers[mStore.getRowIn(mStoreId, index)] != QuestionStore.UNANSWERED;
+        }
+
+        /**
+         * measure adds this list and the team's answer array, which is counted once for all of
+         * the team's categories, to a HeapFootprint.
+         * @param footprint the footprint to add to
+         */
+        void measure(HeapFootprint footprint) {
+            // this$0, mStore, mAnswers; modCount, mStoreId, mSize
+            footprint.add(HeapFootprint.CATEGORIES, this, HeapFootprint.objectSize(3, 12));
+            footprint.add(HeapFootprint.ANSWERS, mAnswers, HeapFootprint.arraySize(mAnswers.length, 1));
+        }
+    }
+}
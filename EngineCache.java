@@ -0,0 +1,341 @@
+// EngineCache class keeps the TriviaEngines of the teams that logged in most recently, keyed by
+// PIN, so a team that logs out and back in gets its engine back without reading and parsing its
+// save again. The cache holds at most a fixed number of engines. When it is full, the engine
+// used least recently is dropped, and then saved on the loading thread, so memory stays bounded
+// no matter how many teams take turns at the same device, and no file is written while the
+// cache is locked.
+// Engines that are not cached are loaded on a background thread by load(), which returns an
+// EngineLoad right away, so the UI can show progress (and cancel the load) instead of waiting
+// for the save or question bank to be read. Every caller gets its own EngineLoad; callers that
+// load the same team at the same time share one PendingLoad, which does the work and is only
+// cancelled when all of its callers have cancelled.
+package org.foxcroft.stem.raffle;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+public class EngineCache
+{
+    private static final String TAG = "EngineCache";
+    public static final int DEFAULT_CAPACITY = 8;
+    private static EngineCache sInstance; // shared by every activity in the process
+    private final Context mContext;
+    private final int mCapacity;
+    private final LinkedHashMap<String, TriviaEngine> mEngines;
+    private final Map<String, PendingLoad> mLoading; // loads that have not finished, by PIN
+    private ExecutorService mExecutor; // loads engines, one at a time
+    private int mHits;
+    private int mMisses;
+    private int mEvictions;
+
+    /**
+     * PendingLoad is one team's engine being loaded, and the callers waiting for it.
+     */
+    private static class PendingLoad
+    {
+        private final EngineLoad mWork; // passed to the loading constructor
+        private final List<EngineLoad> mCallers = new ArrayList<EngineLoad>();
+
+        PendingLoad(String pin) {
+            mWork = new EngineLoad(pin, new EngineLoad.ProgressListener() {
+                @Override
+                public void loadProgress(String pin, int rowsLoaded, int rowsTotal) {
+                    for (EngineLoad caller : callers()) {
+                        caller.report(rowsLoaded, rowsTotal);
+                    }
+                }
+            });
+        }
+
+        /**
+         * @return a copy of the callers, so progress can be reported while callers come and go
+         */
+        synchronized List<EngineLoad> callers() {
+            return new ArrayList<EngineLoad>(mCallers);
+        }
+    }
+
+    /**
+     * Constructor creates an empty cache.
+     * @param context used to save engines that are evicted (the application context is kept)
+     * @param capacity the largest number of engines to keep
+     */
+    public EngineCache(Context context, int capacity) {
+        mContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        mCapacity = capacity;
+        mLoading = new HashMap<String, PendingLoad>();
+
+        // access order, so iteration starts with the engine used least recently
+        mEngines = new LinkedHashMap<String, TriviaEngine>(capacity + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, TriviaEngine> eldest) {
+                if (size() <= mCapacity) {
+                    return false;
+                }
+
+                evict(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * getInstance returns the cache shared by the process, creating it the first time it is
+     * requested.
+     * @param context used to save engines that are evicted
+     * @return the shared EngineCache
+     */
+    public static synchronized EngineCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new EngineCache(context, DEFAULT_CAPACITY);
+        }
+        return sInstance;
+    }
+
+    /**
+     * get returns the cached engine for a team, or loads it from the team's save and caches
+     * it if it is not in the cache. This waits for the load; use load() on the UI thread.
+     * @param pin the team's PIN
+     * @param typeOfTeam TriviaActivity.MORNING_TEAM or TriviaActivity.AFTERNOON_TEAM
+     * @return the team's engine
+     */
+    public TriviaEngine get(String pin, String typeOfTeam) {
+        return load(pin, typeOfTeam, null).join();
+    }
+
+    /**
+     * load returns the cached engine for a team, or starts loading it from the team's save on
+     * a background thread. The engine is cached when the load finishes, unless every caller
+     * cancelled. If the team's engine is already being loaded, the caller joins that load, so a
+     * team never has two engines. Each caller gets its own EngineLoad, with its own listener,
+     * and cancelling it does not affect the other callers.
+     * @param pin the team's PIN
+     * @param typeOfTeam TriviaActivity.MORNING_TEAM or TriviaActivity.AFTERNOON_TEAM
+     * @param listener told about the load's progress, or null
+     * @return the load, which is already complete if the engine was cached
+     */
+    public synchronized EngineLoad load(final String pin, final String typeOfTeam,
+                                        EngineLoad.ProgressListener listener) {
+        TriviaEngine engine = mEngines.get(pin);
+        final EngineLoad caller = new EngineLoad(pin, listener);
+
+        if (engine != null) {
+            mHits++;
+            caller.complete(engine);
+            return caller;
+        }
+
+        PendingLoad pending = mLoading.get(pin);
+        boolean start = pending == null;
+        if (start) {
+            mMisses++;
+            pending = new PendingLoad(pin);
+            mLoading.put(pin, pending);
+        }
+
+        final PendingLoad joined = pending;
+        synchronized (joined) {
+            joined.mCallers.add(caller); // before the load starts, so no progress is missed
+        }
+        caller.setOnCancel(new Runnable() {
+            @Override
+            public void run() {
+                callerCancelled(pin, joined, caller);
+            }
+        });
+
+        if (start) {
+            executor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    finishLoad(joined, pin, typeOfTeam);
+                }
+            });
+        }
+        return caller;
+    }
+
+    /**
+     * getIfCached returns the cached engine for a team without loading it.
+     * @param pin the team's PIN
+     * @return the team's engine, or null if it is not in the cache
+     */
+    public synchronized TriviaEngine getIfCached(String pin) {
+        return mEngines.get(pin);
+    }
+
+    /**
+     * put caches an engine that was built some other way (for instance, restored from a
+     * snapshot), replacing the cached engine for the same team.
+     * @param engine the engine to cache
+     */
+    public synchronized void put(TriviaEngine engine) {
+        mEngines.put(engine.getPin(), engine);
+    }
+
+    /**
+     * flush saves every cached engine. The engines stay in the cache, which is not locked while
+     * they are saved.
+     */
+    public void flush() {
+        for (TriviaEngine engine : getEngines()) {
+            engine.saveFile(mContext);
+        }
+    }
+
+    /**
+     * getEngines returns the engines that are in the cache now. The list is a copy, so it can
+     * be used while the cache changes.
+     * @return every cached engine
+     */
+    public synchronized List<TriviaEngine> getEngines() {
+        return new ArrayList<TriviaEngine>(mEngines.values());
+    }
+
+    /**
+     * @return the largest number of engines the cache keeps
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return the number of engines in the cache
+     */
+    public synchronized int size() {
+        return mEngines.size();
+    }
+
+    /**
+     * toString summarizes the cache for the log.
+     * @return the size of the cache, and its hits, misses, and evictions
+     */
+    @Override
+    public synchronized String toString() {
+        return String.format("%s: %d of %d engines, %d hits, %d misses, %d evictions",
+                TAG, mEngines.size(), mCapacity, mHits, mMisses, mEvictions);
+    }
+
+    /**
+     * callerCancelled drops a caller that cancelled its load. When no callers are left, the
+     * shared load is cancelled, and a later load() of the same team starts a new one.
+     * @param pin the team's PIN
+     * @param pending the load the caller was waiting for
+     * @param caller the caller's EngineLoad
+     */
+    private synchronized void callerCancelled(String pin, PendingLoad pending, EngineLoad caller) {
+        synchronized (pending) {
+            pending.mCallers.remove(caller);
+            if (!pending.mCallers.isEmpty()) {
+                return;
+            }
+        }
+
+        pending.mWork.cancel(false);
+        if (mLoading.get(pin) == pending) {
+            mLoading.remove(pin);
+        }
+    }
+
+    /**
+     * finishLoad builds a team's engine on the loading thread, caches it, and completes every
+     * caller's load. If every caller cancelled, the engine is thrown away before its event log
+     * and ticket ledger are attached, so nothing is cached and nothing is written.
+     * @param pending the load to finish
+     * @param pin the team's PIN
+     * @param typeOfTeam TriviaActivity.MORNING_TEAM or TriviaActivity.AFTERNOON_TEAM
+     */
+    private void finishLoad(PendingLoad pending, String pin, String typeOfTeam) {
+        EngineLoad work = pending.mWork;
+        TriviaEngine engine = null;
+        RuntimeException error = null;
+
+        try {
+            if (!work.isCancelled()) {
+                engine = new TriviaEngine(pin, mContext, typeOfTeam, work);
+            }
+        } catch (RuntimeException e) {
+            // a CancellationException from the load itself just ends it
+            Log.d(TAG, "finishLoad(" + pin + "): " + e);
+            error = e;
+        }
+
+        synchronized (this) {
+            if (mLoading.get(pin) == pending) {
+                mLoading.remove(pin);
+            }
+
+            if (work.isCancelled()) {
+                Log.d(TAG, "finishLoad(): " + pin + " was cancelled");
+                return;
+            }
+
+            if (engine != null) {
+                // the last check: from here on the engine is used, so it may write to the save
+                try {
+                    engine.attachLogs(mContext);
+                    mEngines.put(pin, engine);
+                } catch (RuntimeException e) {
+                    Log.d(TAG, "finishLoad(" + pin + "): " + e);
+                    engine = null;
+                    error = e;
+                }
+            }
+        }
+
+        for (EngineLoad caller : pending.callers()) {
+            if (engine != null) {
+                caller.complete(engine);
+            } else {
+                caller.completeExceptionally(error);
+            }
+        }
+    }
+
+    /**
+     * executor returns the thread used to load engines, creating it the first time it is
+     * needed. Its thread does not keep the process alive.
+     * @return the executor for engine loading
+     */
+    private synchronized ExecutorService executor() {
+        if (mExecutor == null) {
+            mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return mExecutor;
+    }
+
+    /**
+     * evict saves an engine that has been dropped from the cache. It is called while the cache
+     * is locked (from LinkedHashMap.put()), so the save is handed to the loading thread instead
+     * of being written here. That thread takes one task at a time, so a load of the same team
+     * that starts after this waits for the save. Only the categories that changed since the
+     * engine was last saved are written.
+     * @param engine the engine used least recently
+     */
+    private void evict(final TriviaEngine engine) {
+        mEvictions++;
+        executor().execute(new Runnable() {
+            @Override
+            public void run() {
+                Log.d(TAG, "evict(): saving " + engine.getPin());
+                engine.saveFile(mContext);
+            }
+        });
+    }
+}
@@ -0,0 +1,122 @@
+// EngineChange class describes one change to a TriviaEngine, as it is published to the engine's
+// EngineListeners. A change is one of:
+//   ANSWER_RECORDED      a question was answered, or its answer was cleared
+//   TICKETS_CHANGED      the number of tickets that can be redeemed went up or down
+//   CATEGORY_UNLOCKED    a category was unlocked
+//   CATEGORY_EXHAUSTED   the last unanswered question of a category was answered
+//   BANK_CHANGED         the questions were updated from a new version of the bank
+// One action can publish more than one change (a correct answer publishes ANSWER_RECORDED, then
+// TICKETS_CHANGED). Every change carries the engine's totals as they are after the change, so
+// listeners never have to call back into the engine to count them. Changes are immutable.
+package org.foxcroft.stem.raffle;
+
+public class EngineChange
+{
+    public static final String ANSWER_RECORDED = "ANSWER_RECORDED";
+    public static final String TICKETS_CHANGED = "TICKETS_CHANGED";
+    public static final String CATEGORY_UNLOCKED = "CATEGORY_UNLOCKED";
+    public static final String CATEGORY_EXHAUSTED = "CATEGORY_EXHAUSTED";
+    public static final String BANK_CHANGED = "BANK_CHANGED";
+    private final String mType;
+    private final int mCategoryId;
+    private final int mAnswered;
+    private final int mCorrect;
+    private final int mRedeemableTickets;
+    private final int mTicketsRedeemed;
+    private final int mLockedCategories;
+    private final int mAvailableInCategory;
+
+    /**
+     * Constructor accepts every field of the change.
+     * @param type ANSWER_RECORDED, TICKETS_CHANGED, CATEGORY_UNLOCKED, CATEGORY_EXHAUSTED, or
+     *             BANK_CHANGED
+     * @param categoryId the category ID, or -1 if the change is not about a category
+     * @param answered the number of questions answered, in every category
+     * @param correct the number of questions answered correctly, in every category
+     * @param redeemableTickets the number of tickets that can be redeemed
+     * @param ticketsRedeemed the number of tickets that have been redeemed
+     * @param lockedCategories the number of categories that are locked
+     * @param availableInCategory the number of unanswered questions in the category, or -1
+     */
+    public EngineChange(String type, int categoryId, int answered, int correct,
+                        int redeemableTickets, int ticketsRedeemed, int lockedCategories,
+                        int availableInCategory) {
+        mType = type;
+        mCategoryId = categoryId;
+        mAnswered = answered;
+        mCorrect = correct;
+        mRedeemableTickets = redeemableTickets;
+        mTicketsRedeemed = ticketsRedeemed;
+        mLockedCategories = lockedCategories;
+        mAvailableInCategory = availableInCategory;
+    }
+
+    /**
+     * @return the number of questions answered, in every category
+     */
+    public int countAnswered() {
+        return mAnswered;
+    }
+
+    /**
+     * @return the number of unanswered questions in the category, or -1 if the change is not
+     *      about a category
+     */
+    public int countAvailableInCategory() {
+        return mAvailableInCategory;
+    }
+
+    /**
+     * @return the number of questions answered correctly, in every category
+     */
+    public int countCorrect() {
+        return mCorrect;
+    }
+
+    /**
+     * @return the number of categories that are locked
+     */
+    public int countLockedCategories() {
+        return mLockedCategories;
+    }
+
+    /**
+     * @return the category ID, or -1 if the change is not about a category
+     */
+    public int getCategoryId() {
+        return mCategoryId;
+    }
+
+    /**
+     * @return the number of tickets that can be redeemed
+     */
+    public int getRedeemableTickets() {
+        return mRedeemableTickets;
+    }
+
+    /**
+     * @return the number of tickets that have been redeemed
+     */
+    public int getTicketsRedeemed() {
+        return mTicketsRedeemed;
+    }
+
+    /**
+     * @return ANSWER_RECORDED, TICKETS_CHANGED, CATEGORY_UNLOCKED, CATEGORY_EXHAUSTED, or
+     *      BANK_CHANGED
+     */
+    public String getType() {
+        return mType;
+    }
+
+    /**
+     * toString describes the change for the log.
+     * @return the type, category ID, and totals
+     */
+    @Override
+    public String toString() {
+        return mType + "(" + mCategoryId + "): answered " + mAnswered + ", correct " + mCorrect
+                + ", redeemable " + mRedeemableTickets + ", redeemed " + mTicketsRedeemed
+                + ", locked " + mLockedCategories;
+    }
+}
@@ -0,0 +1,144 @@
+// EngineEvent class records one change to a TriviaEngine: a question answered, a category
+// unlocked or locked, or tickets redeemed. Events are immutable and numbered in the order they
+// happened, and the state of an engine is the result of applying its events in order to the
+// starting question bank (see TriviaEngine.apply and EventLog).
+// Each event is stored as one line of a .tsv file:
+//   sequence  time (ms)  type  category id  question index  value  fingerprint (hex)
+// where value is the chosen answer index for ANSWERED (-1 if the answer was cleared) and the
+// total number of tickets redeemed for REDEEMED. The category ID and question index are
+// positions in the bank the engine had when the event happened, so an ANSWERED event also
+// carries the question's fingerprint (see Question.getFingerprint()), which still finds the
+// question after the bank has changed. The fingerprint is 0 for other events, and for lines
+// written before it was added, which have six fields.
+package org.foxcroft.stem.raffle;
+
+public class EngineEvent
+{
+    public static final String ANSWERED = "ANSWERED";
+    public static final String UNLOCKED = "UNLOCKED";
+    public static final String LOCKED = "LOCKED";
+    public static final String REDEEMED = "REDEEMED";
+    private final long mSequence;
+    private final long mTime;
+    private final String mType;
+    private final int mCategoryId;
+    private final int mQuestionIndex;
+    private final int mValue;
+    private final long mFingerprint; // the question's fingerprint, or 0
+
+    /**
+     * Constructor accepts every field of an event that is not about a question.
+     * @param sequence the position of this event in the engine's history (starting at 1)
+     * @param time when the event happened, from System.currentTimeMillis()
+     * @param type UNLOCKED, LOCKED, or REDEEMED
+     * @param categoryId the category ID, or -1 if the event is not about a category
+     * @param questionIndex -1
+     * @param value the tickets redeemed for REDEEMED, or 0
+     */
+    public EngineEvent(long sequence, long time, String type, int categoryId,
+                       int questionIndex, int value) {
+        this(sequence, time, type, categoryId, questionIndex, value, 0);
+    }
+
+    /**
+     * Constructor accepts every field of the event.
+     * @param sequence the position of this event in the engine's history (starting at 1)
+     * @param time when the event happened, from System.currentTimeMillis()
+     * @param type ANSWERED, UNLOCKED, LOCKED, or REDEEMED
+     * @param categoryId the category ID, or -1 if the event is not about a category
+     * @param questionIndex the position of the question in its category, or -1
+     * @param value the answer index for ANSWERED, the tickets redeemed for REDEEMED, or 0
+     * @param fingerprint the question's fingerprint for ANSWERED, or 0
+     */
+    public EngineEvent(long sequence, long time, String type, int categoryId,
+                       int questionIndex, int value, long fingerprint) {
+        mSequence = sequence;
+        mTime = time;
+        mType = type;
+        mCategoryId = categoryId;
+        mQuestionIndex = questionIndex;
+        mValue = value;
+        mFingerprint = fingerprint;
+    }
+
+    /**
+     * Constructor accepts a line written by toString() and splits it using '\t' as a delimiter.
+     * @param line a line from an event log
+     * @throws IllegalArgumentException if the line does not contain an event (for instance, a
+     *      line cut short when the device lost power)
+     */
+    public EngineEvent(String line) {
+        String[] tokens = line.split("\t");
+
+        if (tokens.length != 6 && tokens.length != 7) {
+            throw new IllegalArgumentException("not an event: " + line);
+        }
+
+        mSequence = Long.parseLong(tokens[0]);
+        mTime = Long.parseLong(tokens[1]);
+        mType = tokens[2];
+        mCategoryId = Integer.parseInt(tokens[3]);
+        mQuestionIndex = Integer.parseInt(tokens[4]);
+        mValue = Integer.parseInt(tokens[5]);
+        mFingerprint = tokens.length == 7 ? Long.parseUnsignedLong(tokens[6], 16) : 0;
+    }
+
+    /**
+     * @return the category ID, or -1 if the event is not about a category
+     */
+    public int getCategoryId() {
+        return mCategoryId;
+    }
+
+    /**
+     * @return the fingerprint of the question for ANSWERED, or 0
+     */
+    public long getFingerprint() {
+        return mFingerprint;
+    }
+
+    /**
+     * @return the position of the question in its category, or -1
+     */
+    public int getQuestionIndex() {
+        return mQuestionIndex;
+    }
+
+    /**
+     * @return the position of this event in the engine's history
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * @return when the event happened, from System.currentTimeMillis()
+     */
+    public long getTime() {
+        return mTime;
+    }
+
+    /**
+     * @return ANSWERED, UNLOCKED, LOCKED, or REDEEMED
+     */
+    public String getType() {
+        return mType;
+    }
+
+    /**
+     * @return the answer index for ANSWERED, the tickets redeemed for REDEEMED, or 0
+     */
+    public int getValue() {
+        return mValue;
+    }
+
+    /**
+     * toString formats the event as a line of a .tsv file.
+     * @return the fields of the event, separated by tabs
+     */
+    @Override
+    public String toString() {
+        return mSequence + "\t" + mTime + "\t" + mType + "\t" + mCategoryId
+                + "\t" + mQuestionIndex + "\t" + mValue + "\t" + Long.toHexString(mFingerprint);
+    }
+}
@@ -0,0 +1,15 @@
+// EngineListener is told about every change to a TriviaEngine as it happens (see
+// TriviaEngine.addListener). Each EngineChange carries the engine's totals after the change, so a
+// listener such as TriviaActivity can update its views from the change itself instead of asking
+// the engine to count everything again.
+// Listeners are called on the thread that changed the engine, before the change's method returns.
+package org.foxcroft.stem.raffle;
+
+public interface EngineListener
+{
+    /**
+     * engineChanged is called after each change to an engine this listener was added to.
+     * @param change what changed, and the engine's totals after the change
+     */
+    void engineChanged(EngineChange change);
+}
@@ -0,0 +1,141 @@
+// EngineLoad class is a TriviaEngine that is still being loaded (see EngineCache.load). It is a
+// CompletableFuture, so callers can wait for it or chain work onto it, and it also:
+//   - reports progress to a ProgressListener as the rows of the save or question bank are read
+//   - can be cancelled while it is loading (for instance, when the team logs out before their
+//     engine is ready); the load stops at the next row instead of running to the end
+// The loading thread calls progress() after each row. progress() throws a CancellationException
+// once the load has been cancelled, so the engine that was being built is thrown away before
+// anything is written to the team's save.
+// When several callers load the same team at once, EngineCache gives each caller its own
+// EngineLoad, and they all share one load that does the work. Cancelling a caller's EngineLoad
+// only cancels that caller; the shared load is cancelled once every caller has cancelled.
+package org.foxcroft.stem.raffle;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+
+public class EngineLoad extends CompletableFuture<TriviaEngine>
+{
+    public static final int UNKNOWN = -1; // total rows, when the size of a save is not known
+    private static final int REPORT_EVERY = 64; // rows between progress reports
+    private final String mPin;
+    private final ProgressListener mListener;
+    private volatile boolean mCancelled;
+    private volatile int mRowsLoaded;
+    private volatile int mRowsTotal = UNKNOWN;
+    private Runnable mOnCancel; // told when this load is cancelled, if set
+
+    /**
+     * ProgressListener is told how far a load has got. It is called on the loading thread, so
+     * a listener that updates views must post to the UI thread.
+     */
+    public interface ProgressListener
+    {
+        /**
+         * loadProgress is called every few rows while an engine is loading, and once when the
+         * last row has been read.
+         * @param pin the team's PIN
+         * @param rowsLoaded the number of rows read so far
+         * @param rowsTotal the number of rows to read, or UNKNOWN
+         */
+        void loadProgress(String pin, int rowsLoaded, int rowsTotal);
+    }
+
+    /**
+     * Constructor creates a load that has not started.
+     * @param pin the team's PIN
+     * @param listener told about progress, or null
+     */
+    public EngineLoad(String pin, ProgressListener listener) {
+        mPin = pin;
+        mListener = listener;
+    }
+
+    /**
+     * cancel stops the load at the next row. A cancelled load never completes with an engine.
+     * @param mayInterruptIfRunning ignored; the loading thread checks for cancellation itself
+     * @return true if the load was cancelled, false if it had already finished
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        mCancelled = true;
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+
+        Runnable onCancel;
+        synchronized (this) {
+            onCancel = mOnCancel;
+        }
+        if (cancelled && onCancel != null) {
+            onCancel.run();
+        }
+        return cancelled;
+    }
+
+    /**
+     * @return the team's PIN
+     */
+    public String getPin() {
+        return mPin;
+    }
+
+    /**
+     * @return the number of rows read so far
+     */
+    public int getRowsLoaded() {
+        return mRowsLoaded;
+    }
+
+    /**
+     * @return the number of rows to read, or UNKNOWN
+     */
+    public int getRowsTotal() {
+        return mRowsTotal;
+    }
+
+    /**
+     * setOnCancel sets the code that is run when this load is cancelled (see EngineCache).
+     * @param onCancel the code to run
+     */
+    synchronized void setOnCancel(Runnable onCancel) {
+        mOnCancel = onCancel;
+    }
+
+    /**
+     * report passes on the progress of a shared load to this caller's listener. Unlike
+     * progress(), it never throws, since this caller cancelling does not stop the shared load.
+     * @param rowsLoaded the number of rows read so far
+     * @param rowsTotal the number of rows to read, or UNKNOWN
+     */
+    void report(int rowsLoaded, int rowsTotal) {
+        if (mCancelled) {
+            return;
+        }
+
+        mRowsLoaded = rowsLoaded;
+        mRowsTotal = rowsTotal;
+
+        if (mListener != null) {
+            mListener.loadProgress(mPin, rowsLoaded, rowsTotal);
+        }
+    }
+
+    /**
+     * progress is called by the loading thread after each row. The listener is told every
+     * REPORT_EVERY rows, and when the last row has been read.
+     * @param rowsLoaded the number of rows read so far
+     * @param rowsTotal the number of rows to read, or UNKNOWN
+     * @throws CancellationException if the load has been cancelled
+     */
+    void progress(int rowsLoaded, int rowsTotal) {
+        if (mCancelled) {
+            throw new CancellationException("load of " + mPin + " cancelled");
+        }
+
+        mRowsLoaded = rowsLoaded;
+        mRowsTotal = rowsTotal;
+
+        if (mListener != null && (rowsLoaded % REPORT_EVERY == 0 || rowsLoaded == rowsTotal)) {
+            mListener.loadProgress(mPin, rowsLoaded, rowsTotal);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+// EngineSnapshot class packs the state of a TriviaEngine into a small byte[] for
+// onSaveInstanceState. The text of the questions is not included: it is already in the shared
+// QuestionBank for the team's session, so the snapshot only needs the team's PIN, the number of
+// tickets redeemed, which categories are locked, and which choice was picked for each question.
+// A bank of 100 questions fits in a snapshot of under 200 bytes.
+// Questions are stored by position, so a snapshot only fits the bank it was made from. The
+// bank's version (see QuestionBank.getVersion()) is stored with it, and a snapshot is not
+// restored against any other version of the bank, even one with the same number of categories
+// and questions; the team is loaded from its save instead, which is migrated (see
+// TriviaEngine.migrate()).
+//
+// Format (written with DataOutputStream):
+//   byte    VERSION
+//   UTF     PIN
+//   byte    session (SESSION_MORNING, SESSION_AFTERNOON, or SESSION_DEFAULT)
+//   long    version of the bank the engine's questions came from
+//   int     tickets redeemed
+//   short   number of categories, then one short per category with its number of questions
+//   short   length of the lock bits, then BitSet.toByteArray() of the locked category IDs
+//   byte    one per question, in the order of TriviaEngine.getQuestionAt():
+//           -1 unanswered, 0 to 3 the index of the chosen answer (0 is correct), or
+//           ANSWER_NOT_IN_CHOICES
+package org.foxcroft.stem.raffle;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+
+public class EngineSnapshot
+{
+    private static final String TAG = "EngineSnapshot";
+    private static final byte VERSION = 2; // 1 had no bank version
+    private static final byte SESSION_MORNING = 0;
+    private static final byte SESSION_AFTERNOON = 1;
+    private static final byte SESSION_DEFAULT = 2;
+    private static final byte UNANSWERED = -1;
+    private static final byte ANSWER_NOT_IN_CHOICES = 4;
+
+    /**
+     * toBytes packs the state of the engine into a byte[].
+     * @param engine the TriviaEngine to save
+     * @return the snapshot
+     */
+    public static byte[] toBytes(TriviaEngine engine) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        try {
+            out.writeByte(VERSION);
+            out.writeUTF(engine.getPin());
+            out.writeByte(sessionCode(engine.getSessionType()));
+            out.writeLong(engine.getBankVersion());
+            out.writeInt(engine.getTicketsRedeemed());
+
+            BitSet locked = new BitSet();
+            out.writeShort(engine.countCategories());
+            for (int id = 0; id < engine.countCategories(); id++) {
+                Category c = engine.getCategoryAt(id);
+                out.writeShort(c.countQuestions());
+
+                if (c.isLocked()) {
+                    locked.set(id);
+                }
+            }
+
+            byte[] lockBits = locked.toByteArray();
+            out.writeShort(lockBits.length);
+            out.write(lockBits);
+
+            for (int id = 0; id < engine.countCategories(); id++) {
+                Category c = engine.getCategoryAt(id);
+
+                for (int i = 0; i < c.countQuestions(); i++) {
+                    int answer = c.getQuestion(i).getUserAnswerIndex();
+                    out.writeByte(answer > ANSWER_NOT_IN_CHOICES ? ANSWER_NOT_IN_CHOICES : answer);
+                }
+            }
+
+            out.flush();
+        } catch (IOException e) {
+            // a ByteArrayOutputStream does not throw
+            Log.wtf(TAG, "toBytes(): " + e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * restore rebuilds an engine from a snapshot, using the shared QuestionBank for the
+     * session stored in the snapshot, and reattaches the team's event log, ticket ledger, and
+     * response times (see TriviaEngine.attachLogs()).
+     * @param snapshot a byte[] returned by toBytes
+     * @param context used to find the QuestionBank
+     * @return the restored TriviaEngine, or null if the snapshot was made from another version
+     *         of the bank
+     */
+    public static TriviaEngine restore(byte[] snapshot, Context context) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot));
+
+            if (in.readByte() != VERSION) {
+                Log.d(TAG, "restore(): unknown snapshot version");
+                return null;
+            }
+
+            String pin = in.readUTF();
+            String sessionType = sessionType(in.readByte());
+            TriviaEngine engine = restore(pin, in, QuestionBank.getInstance(context, sessionType));
+
+            // keep recording changes where the engine that was saved left off
+            if (engine != null) {
+                engine.attachLogs(context);
+            }
+            return engine;
+        } catch (IOException e) {
+            Log.d(TAG, "restore(): could not read snapshot: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * restore rebuilds an engine from a snapshot against a bank the caller already has. The
+     * session stored in the snapshot is not checked against the bank.
+     * @param snapshot a byte[] returned by toBytes
+     * @param bank the shared question bank for the team's session
+     * @return the restored TriviaEngine, or null if the snapshot was made from another version
+     *         of the bank
+     */
+    public static TriviaEngine restore(byte[] snapshot, QuestionBank bank) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot));
+
+            if (in.readByte() != VERSION) {
+                Log.d(TAG, "restore(): unknown snapshot version");
+                return null;
+            }
+
+            String pin = in.readUTF();
+            in.readByte(); // session
+            return restore(pin, in, bank);
+        } catch (IOException e) {
+            Log.d(TAG, "restore(): could not read snapshot: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * restore reads the rest of a snapshot (after the PIN and session) and applies it to a new
+     * engine started from the bank.
+     * @param pin the team's PIN
+     * @param in the snapshot, positioned at the bank version
+     * @param bank the shared question bank for the team's session
+     * @return the restored TriviaEngine, or null if the snapshot does not match the bank
+     * @throws IOException if the snapshot is truncated
+     */
+    private static TriviaEngine restore(String pin, DataInputStream in, QuestionBank bank)
+            throws IOException {
+        long bankVersion = in.readLong();
+        if (bankVersion != bank.getVersion()) {
+            Log.d(TAG, "restore(): snapshot is from bank " + Long.toHexString(bankVersion)
+                    + ", not " + Long.toHexString(bank.getVersion()));
+            return null;
+        }
+
+        TriviaEngine engine = new TriviaEngine(pin, bank);
+        engine.setTicketsRedeemed(in.readInt());
+
+        // the bank has to have the same shape as the engine that was saved
+        int numCategories = in.readShort();
+        if (numCategories != engine.countCategories()) {
+            Log.d(TAG, "restore(): snapshot does not match the question bank");
+            return null;
+        }
+
+        for (int id = 0; id < numCategories; id++) {
+            if (in.readShort() != engine.getCategoryAt(id).countQuestions()) {
+                Log.d(TAG, "restore(): snapshot does not match the question bank");
+                return null;
+            }
+        }
+
+        byte[] lockBits = new byte[in.readShort()];
+        in.readFully(lockBits);
+        BitSet locked = BitSet.valueOf(lockBits);
+
+        for (int id = 0; id < numCategories; id++) {
+            Category c = engine.getCategoryAt(id);
+
+            if (locked.get(id)) {
+                c.lock();
+            } else {
+                c.unlock();
+            }
+
+            for (int i = 0; i < c.countQuestions(); i++) {
+                byte answer = in.readByte();
+
+                if (answer >= 0 && answer < ANSWER_NOT_IN_CHOICES) {
+                    c.getQuestion(i).checkAnswer(c.getQuestion(i).getChoices()[answer]);
+                } else if (answer != UNANSWERED) {
+                    c.getQuestion(i).checkAnswer(Question.DEFAULT_USER_ANSWER);
+                }
+            }
+        }
+
+        return engine;
+    }
+
+    /**
+     * sessionCode converts a session to the byte stored in the snapshot.
+     * @param sessionType MORNING_TEAM, AFTERNOON_TEAM, or anything else
+     * @return SESSION_MORNING, SESSION_AFTERNOON, or SESSION_DEFAULT
+     */
+    private static byte sessionCode(String sessionType) {
+        if (TriviaActivity.MORNING_TEAM.equals(sessionType)) {
+            return SESSION_MORNING;
+        } else if (TriviaActivity.AFTERNOON_TEAM.equals(sessionType)) {
+            return SESSION_AFTERNOON;
+        }
+        return SESSION_DEFAULT;
+    }
+
+    /**
+     * sessionType converts the byte stored in the snapshot back to a session.
+     * @param code SESSION_MORNING, SESSION_AFTERNOON, or SESSION_DEFAULT
+     * @return MORNING_TEAM, AFTERNOON_TEAM, or TEAM_NOT_FOUND
+     */
+    private static String sessionType(byte code) {
+        if (code == SESSION_MORNING) {
+            return TriviaActivity.MORNING_TEAM;
+        } else if (code == SESSION_AFTERNOON) {
+            return TriviaActivity.AFTERNOON_TEAM;
+        }
+        return TriviaActivity.TEAM_NOT_FOUND;
+    }
+}
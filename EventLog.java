@@ -0,0 +1,513 @@
+// EventLog class keeps a team's history as an append-only file of EngineEvents, plus a snapshot
+// (see EngineSnapshot) that is rewritten every SNAPSHOT_INTERVAL events. Recording a change
+// costs one short line appended to the log. An engine is recovered by restoring the snapshot
+// and replaying only the events that came after it, and the whole history is available for
+// analysis without reading full save files. The snapshot records how long events.tsv was when
+// it was written, so opening the log or recovering an engine reads only the events after that
+// point, however long the history has grown.
+// Both files live in the team's save directory:
+//   events.tsv      one EngineEvent per line, in order of sequence number
+//   snapshot.bin    the sequence number of the last event included, the snapshot (its length,
+//                   then its bytes), then the length of events.tsv through that event
+//   log.id          a random ID for this log, created the first time it is asked for
+// Sequence numbers are only unique within one log, and a log that is deleted (a device reset,
+// or the app reinstalled) starts again at 1, so anything that keeps events from several logs
+// (RaffleServer) keeps them apart by log ID. The ID is created with the log, so it goes away
+// with it.
+// Several processes may keep logs in the same directory (the team's tablet and the raffle desk
+// tool, for instance). Every write takes the team's SaveLock on LOCK, then catches up with any
+// events another process appended, so sequence numbers are never given out twice. Once another
+// process has appended events, this log stops writing snapshots on its own, since its engine
+// does not include those events; the snapshot would say it did.
+package org.foxcroft.stem.raffle;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+public class EventLog
+{
+    private static final String TAG = "EventLog";
+    public static final String EVENTS = "events.tsv";
+    public static final String SNAPSHOT = "snapshot.bin";
+    public static final String LOCK = "events" + SaveLock.EXTENSION;
+    public static final String LOG_ID = "log.id";
+    private static final String TEMP_EXTENSION = ".tmp";
+    public static final int SNAPSHOT_INTERVAL = 50;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private File mDirectory;
+    private long mLastSequence; // sequence number of the last event in the log
+    private long mSnapshotSequence; // sequence number of the last event in the snapshot, or -1
+    private long mSnapshotOffset; // length of events.tsv through the snapshot's last event
+    private long mEventsLength; // length of events.tsv when this log last read or wrote it
+    private boolean mShared; // true once another process has appended to the log
+    private String mLogId; // read from LOG_ID the first time it is asked for
+
+    /**
+     * Constructor opens the log in a directory, reading the snapshot header and the events
+     * after it so that new events continue the numbering.
+     * @param directory the team's save directory (created if it does not exist)
+     */
+    public EventLog(File directory) {
+        mDirectory = directory;
+        mSnapshotSequence = -1;
+        mLastSequence = 0;
+
+        try {
+            readSnapshotHeader();
+            if (hasSnapshot()) {
+                mLastSequence = mSnapshotSequence;
+            }
+
+            mEventsLength = new File(mDirectory, EVENTS).length();
+            List<EngineEvent> tail = readEvents(mSnapshotSequence);
+            if (!tail.isEmpty()) {
+                mLastSequence = tail.get(tail.size() - 1).getSequence();
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "EventLog(File): could not read " + mDirectory + ": " + e);
+        }
+    }
+
+    /**
+     * append adds an event to the end of the log, and rewrites the snapshot if
+     * SNAPSHOT_INTERVAL events have been added since the last one.
+     * @param type ANSWERED, UNLOCKED, LOCKED, or REDEEMED
+     * @param categoryId the category ID, or -1
+     * @param questionIndex the position of the question in its category, or -1
+     * @param value the answer index, the tickets redeemed, or 0
+     * @param fingerprint the question's fingerprint for ANSWERED, or 0
+     * @param engine the engine, after the change has been made to it
+     * @return the event that was recorded
+     * @throws IOException if the event cannot be written
+     */
+    public synchronized EngineEvent append(String type, int categoryId, int questionIndex,
+                                           int value, long fingerprint, TriviaEngine engine)
+            throws IOException {
+        SaveLock lock = SaveLock.acquire(new File(mDirectory, LOCK));
+        try {
+            catchUp();
+            EngineEvent event = new EngineEvent(mLastSequence + 1, System.currentTimeMillis(),
+                    type, categoryId, questionIndex, value, fingerprint);
+
+            Writer writer = new OutputStreamWriter(
+                    new FileOutputStream(new File(mDirectory, EVENTS), true), UTF_8);
+            try {
+                writer.write(event.toString() + "\n");
+            } finally {
+                writer.close();
+            }
+            wrote(event.getSequence());
+            snapshotIfDue(engine);
+            return event;
+        } finally {
+            lock.close();
+        }
+    }
+
+    /**
+     * appendAll records several changes that were made to an engine together (see
+     * TriviaEngine.submitAnswers()). The events are numbered after the last one in the log and
+     * written with one write and one fsync, and a snapshot is written at most once, after all
+     * of them.
+     * @param events the events, in the order they happened; their sequence numbers are ignored
+     * @param engine the engine, after every change has been made to it
+     * @return the number of events recorded
+     * @throws IOException if the events cannot be written
+     */
+    public synchronized int appendAll(List<EngineEvent> events, TriviaEngine engine) throws IOException {
+        if (events.isEmpty()) {
+            return 0;
+        }
+
+        SaveLock lock = SaveLock.acquire(new File(mDirectory, LOCK));
+        try {
+            catchUp();
+            StringBuilder str = new StringBuilder();
+            long last = mLastSequence;
+
+            for (EngineEvent event : events) {
+                last++;
+                str.append(new EngineEvent(last, event.getTime(), event.getType(), event.getCategoryId(),
+                        event.getQuestionIndex(), event.getValue(), event.getFingerprint())).append("\n");
+            }
+
+            appendSynced(str.toString());
+            wrote(last);
+            snapshotIfDue(engine);
+            return events.size();
+        } finally {
+            lock.close();
+        }
+    }
+
+    /**
+     * @return the directory holding the log and its snapshot
+     */
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * getLogId returns the ID of this log, creating it if the log does not have one yet.
+     * @return the ID, as 16 hex digits
+     * @throws IOException if the ID cannot be read or written
+     */
+    public synchronized String getLogId() throws IOException {
+        if (mLogId != null) {
+            return mLogId;
+        }
+
+        SaveLock lock = SaveLock.acquire(new File(mDirectory, LOCK));
+        try {
+            File file = new File(mDirectory, LOG_ID);
+            if (file.isFile()) {
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(new FileInputStream(file), UTF_8));
+                try {
+                    String line = reader.readLine();
+                    if (line != null && line.trim().matches("[0-9a-f]{16}")) {
+                        mLogId = line.trim();
+                        return mLogId;
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+
+            String id = String.format("%016x", new SecureRandom().nextLong());
+            File temp = new File(mDirectory, LOG_ID + TEMP_EXTENSION);
+            makeDirectory();
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                out.write((id + "\n").getBytes(UTF_8));
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("could not replace " + LOG_ID);
+            }
+
+            mLogId = id;
+            Log.d(TAG, "getLogId(): new log " + mLogId + " in " + mDirectory);
+            return mLogId;
+        } finally {
+            lock.close();
+        }
+    }
+
+    /**
+     * @return the sequence number of the last event recorded
+     */
+    public synchronized long getLastSequence() {
+        return mLastSequence;
+    }
+
+    /**
+     * hasSnapshot checks to see if a snapshot has been written. An engine attached to a log
+     * without a snapshot writes one first, so that replay has somewhere to start.
+     * @return true if the log has a snapshot
+     */
+    public synchronized boolean hasSnapshot() {
+        return mSnapshotSequence >= 0;
+    }
+
+    /**
+     * ingest adds events that were recorded somewhere else, such as events synced from a
+     * device to RaffleServer. Events are kept with their own sequence numbers, and any event
+     * whose sequence number is not larger than the last one in the log is skipped, so sending
+     * the same events twice has no effect. The events are written together with one fsync.
+     * @param events the events, in order of sequence number
+     * @return the number of events added
+     * @throws IOException if the events cannot be written
+     */
+    public synchronized int ingest(List<EngineEvent> events) throws IOException {
+        SaveLock lock = SaveLock.acquire(new File(mDirectory, LOCK));
+        try {
+            catchUp();
+            StringBuilder str = new StringBuilder();
+            long last = mLastSequence;
+            int added = 0;
+
+            for (EngineEvent event : events) {
+                if (event.getSequence() > last) {
+                    str.append(event.toString()).append("\n");
+                    last = event.getSequence();
+                    added++;
+                }
+            }
+
+            if (added == 0) {
+                return 0;
+            }
+
+            appendSynced(str.toString());
+            wrote(last);
+            return added;
+        } finally {
+            lock.close();
+        }
+    }
+
+    /**
+     * readEvents reads every event after a sequence number. A line that cannot be parsed (the
+     * end of a write interrupted by a crash) is skipped. If the sequence number is not before
+     * the snapshot, reading starts where the snapshot's events end.
+     * @param afterSequence only events with a larger sequence number are returned
+     * @return the events, in order
+     * @throws IOException if the log cannot be read
+     */
+    public synchronized List<EngineEvent> readEvents(long afterSequence) throws IOException {
+        boolean afterSnapshot = hasSnapshot() && afterSequence >= mSnapshotSequence;
+        return readEvents(afterSnapshot ? mSnapshotOffset : 0, afterSequence);
+    }
+
+    /**
+     * readEvents(long, long) reads the events after a sequence number, starting at an offset
+     * in events.tsv. The events before the offset are not read at all.
+     * @param offset where to start reading; if the file is shorter, it is read from the start
+     * @param afterSequence only events with a larger sequence number are returned
+     * @return the events, in order
+     * @throws IOException if the log cannot be read
+     */
+    private List<EngineEvent> readEvents(long offset, long afterSequence) throws IOException {
+        List<EngineEvent> events = new ArrayList<EngineEvent>();
+        File file = new File(mDirectory, EVENTS);
+
+        if (!file.isFile()) {
+            return events;
+        }
+
+        FileInputStream fileIn = new FileInputStream(file);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(fileIn, UTF_8));
+        try {
+            if (offset <= file.length()) {
+                fileIn.getChannel().position(offset);
+            }
+            String line = "";
+
+            while ((line = reader.readLine()) != null) {
+                try {
+                    EngineEvent event = new EngineEvent(line);
+
+                    if (event.getSequence() > afterSequence) {
+                        events.add(event);
+                    }
+                } catch (IllegalArgumentException e) {
+                    Log.d(TAG, "readEvents(): skipping line: " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return events;
+    }
+
+    /**
+     * recover rebuilds an engine from the snapshot and the events recorded after it (see
+     * TriviaEngine.importFile()). Only the events after the snapshot are read.
+     * @param bank the shared question bank for the team's session
+     * @return the recovered engine, or null if there is no snapshot, or it was taken from
+     *         another version of the bank
+     * @throws IOException if the snapshot or the log cannot be read
+     */
+    public synchronized TriviaEngine recover(QuestionBank bank) throws IOException {
+        File file = new File(mDirectory, SNAPSHOT);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        // another process may have replaced the snapshot since this log last read its header
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        long sequence;
+        long offset = 0;
+        byte[] snapshot;
+        try {
+            sequence = in.readLong();
+            snapshot = new byte[in.readInt()];
+            in.readFully(snapshot);
+            try {
+                offset = in.readLong();
+            } catch (EOFException e) {
+                offset = 0; // written before the offset was kept, so the whole log is read
+            }
+        } finally {
+            in.close();
+        }
+
+        TriviaEngine engine = EngineSnapshot.restore(snapshot, bank);
+        if (engine == null) {
+            return null;
+        }
+
+        for (EngineEvent event : readEvents(offset, sequence)) {
+            engine.apply(event);
+        }
+
+        return engine;
+    }
+
+    /**
+     * writeSnapshot replaces the snapshot with the current state of the engine, which must
+     * include every event recorded so far. The new snapshot is written to a temporary file and
+     * renamed over the old one.
+     * @param engine the engine to snapshot
+     * @throws IOException if the snapshot cannot be written
+     */
+    public synchronized void writeSnapshot(TriviaEngine engine) throws IOException {
+        SaveLock lock = SaveLock.acquire(new File(mDirectory, LOCK));
+        try {
+            catchUp();
+            writeSnapshotLocked(engine);
+        } finally {
+            lock.close();
+        }
+    }
+
+    /**
+     * appendSynced appends lines to the log and forces them to storage. The lock must be held.
+     * @param lines the lines, each ending with a newline
+     * @throws IOException if the lines cannot be written
+     */
+    private void appendSynced(String lines) throws IOException {
+        FileOutputStream out = new FileOutputStream(new File(mDirectory, EVENTS), true);
+        try {
+            out.write(lines.getBytes(UTF_8));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * catchUp reads what other processes have written since this log last looked: the events
+     * appended to the log, and the sequence number of the snapshot. The lock must be held.
+     * @throws IOException if the log cannot be read
+     */
+    private void catchUp() throws IOException {
+        File events = new File(mDirectory, EVENTS);
+
+        if (events.length() != mEventsLength) {
+            for (String line : SaveLock.readLinesFrom(events, mEventsLength)) {
+                try {
+                    long sequence = new EngineEvent(line).getSequence();
+                    if (sequence > mLastSequence) {
+                        mLastSequence = sequence;
+                        mShared = true;
+                    }
+                } catch (IllegalArgumentException e) {
+                    Log.d(TAG, "catchUp(): skipping line: " + line);
+                }
+            }
+            mEventsLength = events.length();
+        }
+
+        readSnapshotHeader();
+    }
+
+    /**
+     * readSnapshotHeader reads the sequence number of the snapshot and the length of
+     * events.tsv through it, skipping over the snapshot itself. A snapshot written before the
+     * length was kept gives an offset of 0, so the whole log is read.
+     * @throws IOException if the snapshot cannot be read
+     */
+    private void readSnapshotHeader() throws IOException {
+        File snapshot = new File(mDirectory, SNAPSHOT);
+        if (!snapshot.isFile()) {
+            return;
+        }
+
+        DataInputStream in = new DataInputStream(new FileInputStream(snapshot));
+        try {
+            mSnapshotSequence = in.readLong();
+            mSnapshotOffset = 0;
+            in.skipBytes(in.readInt());
+            mSnapshotOffset = in.readLong();
+        } catch (EOFException e) {
+            Log.d(TAG, "readSnapshotHeader(): no offset in " + snapshot);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * wrote notes that this log has appended events through a sequence number. The lock must
+     * be held.
+     * @param lastSequence the sequence number of the last event written
+     */
+    private void wrote(long lastSequence) {
+        mLastSequence = lastSequence;
+        mEventsLength = new File(mDirectory, EVENTS).length();
+    }
+
+    /**
+     * snapshotIfDue writes a snapshot if SNAPSHOT_INTERVAL events have been added since the
+     * last one, unless another process has appended events that the engine does not include.
+     * The lock must be held.
+     * @param engine the engine, after every change in the log has been made to it
+     * @throws IOException if the snapshot cannot be written
+     */
+    private void snapshotIfDue(TriviaEngine engine) throws IOException {
+        if (mLastSequence - mSnapshotSequence >= SNAPSHOT_INTERVAL && !mShared) {
+            writeSnapshotLocked(engine);
+        }
+    }
+
+    /**
+     * writeSnapshotLocked replaces the snapshot, as writeSnapshot() does. The lock must be held.
+     * @param engine the engine to snapshot
+     * @throws IOException if the snapshot cannot be written
+     */
+    private void writeSnapshotLocked(TriviaEngine engine) throws IOException {
+        byte[] snapshot = EngineSnapshot.toBytes(engine);
+        File temp = new File(mDirectory, SNAPSHOT + TEMP_EXTENSION);
+
+        makeDirectory();
+        FileOutputStream fileOut = new FileOutputStream(temp);
+        try {
+            DataOutputStream out = new DataOutputStream(fileOut);
+            out.writeLong(mLastSequence);
+            out.writeInt(snapshot.length);
+            out.write(snapshot);
+            out.writeLong(mEventsLength); // every event through mLastSequence, after catchUp()
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+
+        if (!temp.renameTo(new File(mDirectory, SNAPSHOT))) {
+            throw new IOException("could not replace " + SNAPSHOT);
+        }
+
+        mSnapshotSequence = mLastSequence;
+        mSnapshotOffset = mEventsLength;
+        Log.d(TAG, "writeSnapshot(): snapshot at event " + mSnapshotSequence);
+    }
+
+    /**
+     * makeDirectory creates the save directory if it does not exist yet.
+     * @throws IOException if the directory cannot be created
+     */
+    private void makeDirectory() throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("could not create " + mDirectory);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+// HeapFootprint class estimates how much heap a TriviaEngine or a QuestionBank uses, so that
+// questions like "how many teams fit in 256 MB?" can be answered with numbers (see
+// MetricsSnapshot). Nothing is dumped or sampled: each class adds its own objects, by walking
+// its fields (see TriviaEngine.measure(), QuestionBank.measure(), Category.measure(), and
+// Question.measure()). Objects are counted and sized under five kinds:
+//   CATEGORIES   Category objects and their lists of questions
+//   QUESTIONS    Question objects, their choice arrays, and bank rows
+//   STRINGS      text held only by this engine or bank
+//   ANSWERS      each team's answers (user answer text, and the answer arrays of store views)
+//   OTHER        everything else: the engine or bank itself, its lists, bit sets, and indexes
+// Text that is held by the StringPool is shared by every engine and bank in the process, so it
+// is counted separately as shared, and left out of getTotalBytes(); the pool's own size is
+// reported by StringPool.getPooledBytes(). An object is only counted once, however many
+// references to it are walked.
+// Sizes are estimated for a 64-bit VM with compressed references, the same model that
+// StringPool.estimateSize() uses: a 12-byte object header, 4-byte references, a 16-byte array
+// header, one byte per character of ASCII text, and every object rounded up to a multiple of 8
+// bytes.
+package org.foxcroft.stem.raffle;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+public class HeapFootprint
+{
+    public static final int CATEGORIES = 0;
+    public static final int QUESTIONS = 1;
+    public static final int STRINGS = 2;
+    public static final int ANSWERS = 3;
+    public static final int OTHER = 4;
+    private static final String[] KIND_NAMES = { "categories", "questions", "strings", "answers", "other" };
+    public static final int OBJECT_HEADER = 12;
+    public static final int REFERENCE = 4;
+    private final String mName;
+    private final long[] mObjects = new long[KIND_NAMES.length];
+    private final long[] mBytes = new long[KIND_NAMES.length];
+    private final Set<Object> mSeen = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+    private long mSharedStrings;
+    private long mSharedBytes;
+
+    /**
+     * Constructor creates an empty footprint.
+     * @param name what is being measured (a PIN or a session), for toString()
+     */
+    public HeapFootprint(String name) {
+        mName = name;
+    }
+
+    /**
+     * objectSize estimates the size of an object from its fields. Fields inherited from a
+     * superclass count too.
+     * @param references the number of reference fields
+     * @param primitiveBytes the total size of the primitive fields (4 for an int, 8 for a long)
+     * @return the estimated size in bytes
+     */
+    public static long objectSize(int references, int primitiveBytes) {
+        return align(OBJECT_HEADER + (long) references * REFERENCE + primitiveBytes);
+    }
+
+    /**
+     * arraySize estimates the size of an array.
+     * @param length the length of the array
+     * @param elementBytes the size of one element (REFERENCE for an array of objects)
+     * @return the estimated size in bytes
+     */
+    public static long arraySize(int length, int elementBytes) {
+        return align(StringPool.ARRAY_OVERHEAD + (long) length * elementBytes);
+    }
+
+    /**
+     * listSize estimates the size of an ArrayList: the list, and an array just big enough for
+     * its elements (the real array may have room to spare).
+     * @param size the number of elements
+     * @return the estimated size in bytes
+     */
+    public static long listSize(int size) {
+        return objectSize(1, 8) + arraySize(size, REFERENCE); // elementData; size, modCount
+    }
+
+    /**
+     * add counts an object, unless it has been counted already.
+     * @param kind CATEGORIES, QUESTIONS, STRINGS, ANSWERS, or OTHER
+     * @param object the object (or null, to count something that cannot be told apart)
+     * @param bytes the estimated size of the object
+     * @return true if the object was counted, false if it had been counted before
+     */
+    public boolean add(int kind, Object object, long bytes) {
+        if (object != null && !mSeen.add(object)) {
+            return false;
+        }
+        mObjects[kind]++;
+        mBytes[kind] += bytes;
+        return true;
+    }
+
+    /**
+     * addString counts a String. Pooled Strings are counted as shared, whatever the kind.
+     * @param kind the kind to count the String under if it is not pooled
+     * @param s the String (null is ignored)
+     */
+    public void addString(int kind, String s) {
+        if (s == null || !mSeen.add(s)) {
+            return;
+        }
+
+        if (StringPool.getInstance().isPooled(s)) {
+            mSharedStrings++;
+            mSharedBytes += StringPool.estimateSize(s);
+        } else {
+            mObjects[kind]++;
+            mBytes[kind] += StringPool.estimateSize(s);
+        }
+    }
+
+    /**
+     * @param kind CATEGORIES, QUESTIONS, STRINGS, ANSWERS, or OTHER
+     * @return the estimated bytes of that kind
+     */
+    public long getBytes(int kind) {
+        return mBytes[kind];
+    }
+
+    /**
+     * @param kind CATEGORIES, QUESTIONS, STRINGS, ANSWERS, or OTHER
+     * @return the number of objects of that kind
+     */
+    public long countObjects(int kind) {
+        return mObjects[kind];
+    }
+
+    /**
+     * @return the number of pooled Strings that were referenced
+     */
+    public long countSharedStrings() {
+        return mSharedStrings;
+    }
+
+    /**
+     * @return the estimated bytes of the pooled Strings that were referenced
+     */
+    public long getSharedBytes() {
+        return mSharedBytes;
+    }
+
+    /**
+     * @return what was measured
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @return the number of objects of every kind, not counting shared Strings
+     */
+    public long countTotalObjects() {
+        long total = 0;
+        for (long objects : mObjects) {
+            total += objects;
+        }
+        return total;
+    }
+
+    /**
+     * getTotalBytes returns the heap that would be freed if what was measured were dropped.
+     * @return the estimated bytes of every kind, not counting shared Strings
+     */
+    public long getTotalBytes() {
+        long total = 0;
+        for (long bytes : mBytes) {
+            total += bytes;
+        }
+        return total;
+    }
+
+    /**
+     * toString summarizes the footprint for the log.
+     * @return the objects and bytes of each kind, the total, and the shared Strings
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(mName).append(": ");
+
+        for (int kind = 0; kind < KIND_NAMES.length; kind++) {
+            sb.append(String.format("%s %d (%d bytes), ", KIND_NAMES[kind], mObjects[kind], mBytes[kind]));
+        }
+        return sb.append(String.format("total %d bytes; %d shared strings (%d bytes)",
+                getTotalBytes(), mSharedStrings, mSharedBytes)).toString();
+    }
+
+    /**
+     * align rounds a size up to a multiple of 8 bytes.
+     * @param bytes the size
+     * @return the aligned size
+     */
+    private static long align(long bytes) {
+        return (bytes + 7) / 8 * 8;
+    }
+}
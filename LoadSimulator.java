@@ -0,0 +1,368 @@
+// LoadSimulator is a headless load test for the engine, used to decide what hardware an event
+// with hundreds of teams needs. It writes a pins.tsv with made-up teams, gives every team its
+// own thread, and has each team repeat what a real team does at the tablet:
+//   getRandomQuestion  ->  checkAnswer  ->  saveFile  ->  think
+// until the time is up. The think time is random, between 0 and twice the given value, so the
+// teams do not move in lockstep. At the end it reports:
+//   - throughput (rounds per second)
+//   - p50, p99, and p99.9 latency, and the maximum, for each of the three operations
+//   - bytes saved per second
+//   - GC pressure: estimated allocation rate, collections seen, and peak heap in use
+//   - the estimated footprint of the banks and of an average engine, and how many teams would
+//     fit in a 256 MB heap (see MetricsSnapshot)
+// Heap use is sampled with Runtime, since java.lang.management is not part of Android. A drop
+// in the heap in use between two samples counts as a collection, and the rises between samples
+// add up to an estimate of how much was allocated.
+//
+// Usage: LoadSimulator <questions.tsv> [teams] [seconds] [think ms] [save directory]
+package org.foxcroft.stem.raffle;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class LoadSimulator
+{
+    public static final int DEFAULT_TEAMS = 100;
+    public static final int DEFAULT_SECONDS = 30;
+    public static final int DEFAULT_THINK_MS = 500;
+    private static final int HEAP_SAMPLE_MS = 10;
+    private static final String PINS = "pins.tsv";
+    private static final int FIRST_PIN = 100000;
+    private static final long PLANNING_HEAP = 256L * 1024 * 1024; // for estimateTeams()
+
+    /**
+     * Latencies holds every latency measured for one operation, in nanoseconds.
+     */
+    public static class Latencies
+    {
+        private long[] mNanos;
+        private int mCount;
+
+        public Latencies() {
+            mNanos = new long[1024];
+            mCount = 0;
+        }
+
+        /**
+         * add records one latency.
+         * @param nanos the time the operation took, in nanoseconds
+         */
+        public void add(long nanos) {
+            if (mCount == mNanos.length) {
+                mNanos = Arrays.copyOf(mNanos, mCount * 2);
+            }
+            mNanos[mCount++] = nanos;
+        }
+
+        /**
+         * addAll records every latency from another Latencies.
+         * @param other the latencies to add
+         */
+        public void addAll(Latencies other) {
+            for (int i = 0; i < other.mCount; i++) {
+                add(other.mNanos[i]);
+            }
+        }
+
+        /**
+         * @return the number of latencies recorded
+         */
+        public int count() {
+            return mCount;
+        }
+
+        /**
+         * percentile returns the latency that the given fraction of operations finished
+         * within. The latencies are sorted the first time this is called after adding.
+         * @param fraction between 0 and 1 (0.5 for the median, 0.999 for p99.9)
+         * @return the latency in nanoseconds, or 0 if nothing was recorded
+         */
+        public long percentile(double fraction) {
+            if (mCount == 0) {
+                return 0;
+            }
+
+            Arrays.sort(mNanos, 0, mCount);
+            int index = (int) Math.ceil(fraction * mCount) - 1;
+            return mNanos[Math.max(0, Math.min(index, mCount - 1))];
+        }
+    }
+
+    /**
+     * SimulatedTeam plays the game for one team on its own thread until the deadline.
+     */
+    public static class SimulatedTeam implements Runnable
+    {
+        private final TriviaEngine mEngine;
+        private final File mDirectory;
+        private final long mDeadline;
+        private final int mThinkMs;
+        private final Random mRandom;
+        private final Latencies mDraws = new Latencies();
+        private final Latencies mAnswers = new Latencies();
+        private final Latencies mSaves = new Latencies();
+        private int mRounds;
+
+        /**
+         * Constructor accepts the team's engine and where its save should be written.
+         * @param engine the team's engine
+         * @param directory the team's save directory
+         * @param deadline when to stop, from System.nanoTime()
+         * @param thinkMs the average time between rounds, in milliseconds
+         * @param seed the seed for choosing answers and think times
+         */
+        public SimulatedTeam(TriviaEngine engine, File directory, long deadline, int thinkMs, long seed) {
+            mEngine = engine;
+            mDirectory = directory;
+            mDeadline = deadline;
+            mThinkMs = thinkMs;
+            mRandom = new Random(seed);
+        }
+
+        @Override
+        public void run() {
+            while (System.nanoTime() < mDeadline) {
+                long start = System.nanoTime();
+                Question q = mEngine.getRandomQuestion();
+                long drawn = System.nanoTime();
+
+                String[] choices = q.getChoices();
+                if (choices != null && choices.length > 0) {
+                    q.checkAnswer(choices[mRandom.nextInt(choices.length)]);
+                }
+                long answered = System.nanoTime();
+
+                mEngine.saveFile(mDirectory);
+                long saved = System.nanoTime();
+
+                mDraws.add(drawn - start);
+                mAnswers.add(answered - drawn);
+                mSaves.add(saved - answered);
+                mRounds++;
+
+                if (mThinkMs > 0) {
+                    try {
+                        Thread.sleep(mRandom.nextInt(2 * mThinkMs + 1));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return the team's engine
+         */
+        public TriviaEngine getEngine() {
+            return mEngine;
+        }
+
+        /**
+         * @return the number of rounds the team played
+         */
+        public int getRounds() {
+            return mRounds;
+        }
+    }
+
+    /**
+     * HeapSampler watches the heap in use on its own thread until it is stopped. Its results
+     * are read after stop(), once its thread has been joined.
+     */
+    public static class HeapSampler implements Runnable
+    {
+        private volatile boolean mRunning = true;
+        private long mAllocated; // sum of the rises in heap use between samples
+        private int mCollections; // number of drops in heap use between samples
+        private long mPeak;
+
+        @Override
+        public void run() {
+            Runtime runtime = Runtime.getRuntime();
+            long last = runtime.totalMemory() - runtime.freeMemory();
+
+            while (mRunning) {
+                try {
+                    Thread.sleep(HEAP_SAMPLE_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                long used = runtime.totalMemory() - runtime.freeMemory();
+
+                if (used >= last) {
+                    mAllocated += used - last;
+                } else {
+                    mCollections++;
+                }
+
+                mPeak = Math.max(mPeak, used);
+                last = used;
+            }
+        }
+
+        /**
+         * stop ends sampling after the current sample.
+         */
+        public void stop() {
+            mRunning = false;
+        }
+
+        /**
+         * @return the estimated number of bytes allocated while sampling
+         */
+        public long getAllocated() {
+            return mAllocated;
+        }
+
+        /**
+         * @return the number of collections seen while sampling
+         */
+        public int getCollections() {
+            return mCollections;
+        }
+
+        /**
+         * @return the most heap in use at any sample, in bytes
+         */
+        public long getPeak() {
+            return mPeak;
+        }
+    }
+
+    /**
+     * writePins writes a pins.tsv with made-up teams. Each row has a morning PIN and an
+     * afternoon PIN, so teams / 2 rows (rounded up) are written.
+     * @param file where to write pins.tsv
+     * @param teams the number of PINs needed
+     * @throws IOException if the file cannot be written
+     */
+    public static void writePins(File file, int teams) throws IOException {
+        PrintWriter out = new PrintWriter(file, "UTF-8");
+
+        try {
+            for (int row = 0; row < (teams + 1) / 2; row++) {
+                out.print("Team " + (row + 1) + "\t" + (FIRST_PIN + 2 * row)
+                        + "\t" + (FIRST_PIN + 2 * row + 1) + "\n");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * loadBank parses the question bank for one session.
+     * @param questions the questions.tsv file
+     * @param sessionType TriviaActivity.MORNING_TEAM or TriviaActivity.AFTERNOON_TEAM
+     * @return the bank
+     * @throws IOException if the file cannot be opened
+     */
+    private static QuestionBank loadBank(File questions, String sessionType) throws IOException {
+        InputStream in = new FileInputStream(questions);
+        return new QuestionBank(sessionType, in);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: LoadSimulator <questions.tsv> [teams] [seconds] [think ms] [save directory]");
+            System.exit(1);
+        }
+
+        File questions = new File(args[0]);
+        int teams = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_TEAMS;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_SECONDS;
+        int thinkMs = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_THINK_MS;
+        File directory = args.length > 4 ? new File(args[4])
+                : new File(System.getProperty("java.io.tmpdir"), "LoadSimulator" + System.currentTimeMillis());
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("could not create " + directory);
+        }
+
+        File pins = new File(directory, PINS);
+        writePins(pins, teams);
+        TeamRegistry registry = new TeamRegistry(new FileInputStream(pins));
+        QuestionBank morning = loadBank(questions, TriviaActivity.MORNING_TEAM);
+        QuestionBank afternoon = loadBank(questions, TriviaActivity.AFTERNOON_TEAM);
+
+        long deadline = System.nanoTime() + seconds * 1000000000L;
+        List<SimulatedTeam> simulated = new ArrayList<SimulatedTeam>();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < teams; i++) {
+            String pin = Integer.toString(FIRST_PIN + i);
+            QuestionBank bank = registry.getSessionType(pin).equals(TriviaActivity.MORNING_TEAM)
+                    ? morning : afternoon;
+            SimulatedTeam team = new SimulatedTeam(new TriviaEngine(pin, bank),
+                    new File(directory, "save" + pin), deadline, thinkMs, i);
+            simulated.add(team);
+            threads.add(new Thread(team, "team-" + pin));
+        }
+
+        HeapSampler sampler = new HeapSampler();
+        Thread samplerThread = new Thread(sampler, "heap-sampler");
+        samplerThread.setDaemon(true);
+        samplerThread.start();
+
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        sampler.stop();
+        samplerThread.join(); // the results are only safe to read once the sampler is done
+
+        Latencies draws = new Latencies();
+        Latencies answers = new Latencies();
+        Latencies saves = new Latencies();
+        long rounds = 0;
+        long bytes = 0;
+
+        for (SimulatedTeam team : simulated) {
+            draws.addAll(team.mDraws);
+            answers.addAll(team.mAnswers);
+            saves.addAll(team.mSaves);
+            rounds += team.getRounds();
+            bytes += team.getEngine().getBytesSaved();
+        }
+
+        System.out.println(String.format("%d teams, %.1f s, think time %d ms, saves in %s",
+                teams, elapsed, thinkMs, directory));
+        System.out.println(String.format("throughput: %d rounds, %.1f rounds/s", rounds, rounds / elapsed));
+        System.out.println(String.format("%-18s %9s %9s %9s %9s %9s",
+                "operation (ms)", "count", "p50", "p99", "p99.9", "max"));
+        printLatencies("getRandomQuestion", draws);
+        printLatencies("checkAnswer", answers);
+        printLatencies("saveFile", saves);
+        System.out.println(String.format("saved: %d bytes, %.1f KB/s", bytes, bytes / elapsed / 1024));
+        System.out.println(String.format("heap: ~%.1f MB/s allocated, %d collections seen, %.1f MB peak in use",
+                sampler.getAllocated() / elapsed / (1024 * 1024), sampler.getCollections(),
+                sampler.getPeak() / (1024.0 * 1024)));
+
+        List<TriviaEngine> engines = new ArrayList<TriviaEngine>();
+        for (SimulatedTeam team : simulated) {
+            engines.add(team.getEngine());
+        }
+        MetricsSnapshot metrics = new MetricsSnapshot(engines, Arrays.asList(morning, afternoon));
+        System.out.println(String.format("footprint: banks %.1f KB, pool %.1f KB, %.1f KB per engine; ~%d teams fit in %d MB",
+                metrics.getBankBytes() / 1024.0, metrics.getPooledBytes() / 1024.0,
+                metrics.getEngineBytes() / 1024.0 / teams, metrics.estimateTeams(PLANNING_HEAP),
+                PLANNING_HEAP / (1024 * 1024)));
+    }
+
+    private static void printLatencies(String operation, Latencies latencies) {
+        System.out.println(String.format("%-18s %9d %9.3f %9.3f %9.3f %9.3f", operation,
+                latencies.count(), latencies.percentile(0.5) / 1e6, latencies.percentile(0.99) / 1e6,
+                latencies.percentile(0.999) / 1e6, latencies.percentile(1.0) / 1e6));
+    }
+}
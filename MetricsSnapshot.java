@@ -0,0 +1,169 @@
+// MetricsSnapshot class records how much heap the app is using at one moment, and what it is
+// used for, for capacity planning:
+//   - the footprint of each engine (see TriviaEngine.measure()), by PIN
+//   - the footprint of each shared question bank (see QuestionBank.measure()), by session
+//   - the size of the StringPool, which holds the text shared by all of them
+//   - the heap in use and the most the heap can grow to, from Runtime
+// estimateTeams() turns these into the number of teams that fit in a heap of a given size,
+// using the average footprint of the engines that were measured. A snapshot is taken with
+// capture(), which measures the engines in the EngineCache and the banks that have loaded.
+// Snapshots are immutable.
+package org.foxcroft.stem.raffle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class MetricsSnapshot
+{
+    private final long mTime;
+    private final List<HeapFootprint> mEngines;
+    private final List<HeapFootprint> mBanks;
+    private final int mPooledStrings;
+    private final long mPooledBytes;
+    private final long mHeapUsed;
+    private final long mHeapMax;
+
+    /**
+     * Constructor measures a list of engines and banks.
+     * @param engines the engines to measure
+     * @param banks the banks to measure
+     */
+    public MetricsSnapshot(List<TriviaEngine> engines, List<QuestionBank> banks) {
+        mTime = System.currentTimeMillis();
+        List<HeapFootprint> engineFootprints = new ArrayList<HeapFootprint>();
+        List<HeapFootprint> bankFootprints = new ArrayList<HeapFootprint>();
+
+        for (TriviaEngine engine : engines) {
+            engineFootprints.add(engine.measure());
+        }
+        for (QuestionBank bank : banks) {
+            bankFootprints.add(bank.measure());
+        }
+
+        mEngines = Collections.unmodifiableList(engineFootprints);
+        mBanks = Collections.unmodifiableList(bankFootprints);
+        StringPool pool = StringPool.getInstance();
+        mPooledStrings = pool.countStrings();
+        mPooledBytes = pool.getPooledBytes();
+        Runtime runtime = Runtime.getRuntime();
+        mHeapUsed = runtime.totalMemory() - runtime.freeMemory();
+        mHeapMax = runtime.maxMemory();
+    }
+
+    /**
+     * capture measures the engines in an EngineCache and every bank that has loaded.
+     * @param engineCache the cache holding the engines
+     * @return the snapshot
+     */
+    public static MetricsSnapshot capture(EngineCache engineCache) {
+        return new MetricsSnapshot(engineCache.getEngines(), QuestionBank.getLoadedBanks());
+    }
+
+    /**
+     * @return the number of distinct Strings in the StringPool
+     */
+    public int countPooledStrings() {
+        return mPooledStrings;
+    }
+
+    /**
+     * estimateTeams estimates how many teams' engines fit in a heap, after the banks and the
+     * StringPool, using the average size of the engines in this snapshot.
+     * @param heapBytes the size of the heap, for instance 256 MB
+     * @return the number of teams, or -1 if no engines were measured
+     */
+    public long estimateTeams(long heapBytes) {
+        if (mEngines.isEmpty()) {
+            return -1;
+        }
+
+        long available = heapBytes - getBankBytes() - mPooledBytes;
+        long perEngine = getEngineBytes() / mEngines.size();
+        return available <= 0 ? 0 : available / Math.max(1, perEngine);
+    }
+
+    /**
+     * @return the estimated bytes used by every bank, not counting pooled Strings
+     */
+    public long getBankBytes() {
+        long total = 0;
+        for (HeapFootprint bank : mBanks) {
+            total += bank.getTotalBytes();
+        }
+        return total;
+    }
+
+    /**
+     * @return the footprint of each bank that was measured
+     */
+    public List<HeapFootprint> getBanks() {
+        return mBanks;
+    }
+
+    /**
+     * @return the estimated bytes used by every engine, not counting pooled Strings
+     */
+    public long getEngineBytes() {
+        long total = 0;
+        for (HeapFootprint engine : mEngines) {
+            total += engine.getTotalBytes();
+        }
+        return total;
+    }
+
+    /**
+     * @return the footprint of each engine that was measured
+     */
+    public List<HeapFootprint> getEngines() {
+        return mEngines;
+    }
+
+    /**
+     * @return the most the heap can grow to, in bytes
+     */
+    public long getHeapMax() {
+        return mHeapMax;
+    }
+
+    /**
+     * @return the heap in use when the snapshot was taken, in bytes
+     */
+    public long getHeapUsed() {
+        return mHeapUsed;
+    }
+
+    /**
+     * @return the estimated bytes used by the Strings in the StringPool
+     */
+    public long getPooledBytes() {
+        return mPooledBytes;
+    }
+
+    /**
+     * @return when the snapshot was taken, in milliseconds since the epoch
+     */
+    public long getTime() {
+        return mTime;
+    }
+
+    /**
+     * toString lists the snapshot for the log, one footprint per line.
+     * @return the totals, then each bank and engine
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(String.format(
+                "MetricsSnapshot: heap %d of %d bytes; %d banks %d bytes, %d engines %d bytes, pool %d strings %d bytes",
+                mHeapUsed, mHeapMax, mBanks.size(), getBankBytes(), mEngines.size(), getEngineBytes(),
+                mPooledStrings, mPooledBytes));
+
+        for (HeapFootprint bank : mBanks) {
+            sb.append("\n  bank ").append(bank);
+        }
+        for (HeapFootprint engine : mEngines) {
+            sb.append("\n  engine ").append(engine);
+        }
+        return sb.toString();
+    }
+}
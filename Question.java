@@ -6,6 +6,12 @@
 // An ArrayList of Categories is a field in the TriviaEngine class.
 // The TriviaEngine will be included in an Android app where players earn raffle tickets based
 // on how many trivia questions they answer correctly.
+// A Question either holds its own text, or is a view of one row of a QuestionStore. A view
+// keeps no text of its own: it reads its text from the store, and keeps the user's answer as
+// one byte in a team's answer array. Every method works the same way for both.
+// NO_QUESTION is returned wherever no Question can be found (an empty category, a locked
+// engine, a bad index), so that drawing a question never allocates. It is shared, so its
+// setters and checkAnswer() do nothing; test for it with isNone() or ==.
 package org.foxcroft.stem.raffle;
 
 import android.util.Log;
@@ -17,11 +23,21 @@ public class Question
     public static final String DEFAULT_ANSWER = "DEFAULT_ANSWER";
     public static final String DEFAULT_USER_ANSWER = "DEFAULT_USER_ANSWER";
     public static final String[] DEFAULT_CHOICES = { "DEFAULT_CHOICE_1", "DEFAULT_CHOICE_2", "DEFAULT_CHOICE_3", "DEFAULT_CHOICE_4"};
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L; // 64-bit FNV-1a
+    private static final long FNV_PRIME = 0x100000001b3L;
     private String mQuestion;
     private String mAnswer;
     private final String UNANSWERED = "UNANSWERED"; // so I can type the literal just once
     private String mUserAnswer;
     private String[] mChoices;
+    private Category mCategory; // the Category holding this Question, if there is one
+    private int mIndex; // the position of this Question in its Category
+    private QuestionStore mStore; // the store this Question is a view of, or null
+    private byte[] mAnswers; // the team's answers, if this Question is a view
+    private int mRow; // the row of mStore, if this Question is a view
+    private long mFingerprint; // 0 until getFingerprint() is first called
+    private long mContentHash; // 0 until getContentHash() is first called
+    public static final Question NO_QUESTION = new Question(); // after DEFAULT_CHOICES
 
     /**
      * Question() initializes all fields to default values.
@@ -46,17 +62,19 @@ public class Question
      * [4] distractor2: an incorrect answer
      * [5] distractor3: an incorrect answer
      * [6] userAnswer (will not contain a value on first load)
+     * The text is deduplicated through the shared StringPool.
      * @param row an array of Strings containing question data
      */
     public Question(String[] row) {
         // Log.d(TAG, "Question(String[]) called");
-        mQuestion = row[1];
-        mAnswer = row[2];
-        mChoices = new String[] { row[2], row[3], row[4], row[5] };
+        StringPool pool = StringPool.getInstance();
+        mQuestion = pool.intern(row[1]);
+        mAnswer = pool.intern(row[2]);
+        mChoices = new String[] { mAnswer, pool.intern(row[3]), pool.intern(row[4]), pool.intern(row[5]) };
 
         if (row.length == 7)
         {
-            mUserAnswer = row[6];
+            mUserAnswer = pool.intern(row[6]);
         }
 
         else
@@ -86,12 +104,13 @@ public class Question
         String[] row = line.split("\t");
 
         if (row.length == 6 || row.length == 7) {
-            mQuestion = row[1];
-            mAnswer = row[2];
-            mChoices = new String[]{row[2], row[3], row[4], row[5]};
+            StringPool pool = StringPool.getInstance();
+            mQuestion = pool.intern(row[1]);
+            mAnswer = pool.intern(row[2]);
+            mChoices = new String[]{mAnswer, pool.intern(row[3]), pool.intern(row[4]), pool.intern(row[5])};
 
             if (row.length == 7) {
-                mUserAnswer = row[6];
+                mUserAnswer = pool.intern(row[6]);
             } else {
                 mUserAnswer = UNANSWERED;
             }
@@ -103,6 +122,19 @@ public class Question
         }
     }
 
+    /**
+     * Constructor creates a view of one row of a QuestionStore. It is called by
+     * QuestionStore.view().
+     * @param store the store holding the text
+     * @param answers the team's answer array (see QuestionStore.newAnswers())
+     * @param row the row of the store
+     */
+    Question(QuestionStore store, byte[] answers, int row) {
+        mStore = store;
+        mAnswers = answers;
+        mRow = row;
+    }
+
     /**
      * checkAnswer changes the value in mUserAnswer. The value passed should be one of the
      * Strings stored as fields in this object. This method will return true if the user chose
@@ -112,7 +144,19 @@ public class Question
      * @return the value returned by isCorrect()
      */
     public boolean checkAnswer(String userAnswer) {
-        mUserAnswer = userAnswer;
+        if (this == NO_QUESTION) {
+            return false; // the shared sentinel never changes
+        }
+        boolean wasAnswered = isAnswered();
+        boolean wasCorrect = isCorrect();
+
+        if (mStore != null) {
+            mAnswers[mRow] = (byte) indexOfChoice(userAnswer);
+        } else {
+            mUserAnswer = userAnswer;
+        }
+
+        notifyCategory(wasAnswered, wasCorrect);
         return isCorrect();
     }
 
@@ -121,35 +165,151 @@ public class Question
      * This method will be called iteratively to clear the user's answers and reset the app.
      */
     public void clearAnswer() {
-        mUserAnswer = UNANSWERED;
+        if (this == NO_QUESTION) {
+            return; // the shared sentinel never changes
+        }
+        boolean wasAnswered = isAnswered();
+        boolean wasCorrect = isCorrect();
+
+        if (mStore != null) {
+            mAnswers[mRow] = QuestionStore.UNANSWERED;
+        } else {
+            mUserAnswer = UNANSWERED;
+        }
+
+        notifyCategory(wasAnswered, wasCorrect);
     }
 
     /**
-     * equals checks the values in all fields.
+     * detach() copies a view's text and answer into this Question's own fields, so that it
+     * can be changed without changing the QuestionStore. It does nothing if this Question is
+     * not a view.
+     */
+    private void detach() {
+        if (mStore != null) {
+            mQuestion = getQuestion();
+            mAnswer = getAnswer();
+            mChoices = getChoices();
+            mChoices[0] = mAnswer;
+            mUserAnswer = getUserAnswer();
+            mStore = null;
+            mAnswers = null;
+        }
+    }
+
+    /**
+     * contentHash calculates the content hash of a question from its text (see
+     * getContentHash()). QuestionBank and QuestionStore use this to hash rows without creating
+     * Questions.
+     * @param question the text of the question
+     * @param answer the correct answer
+     * @param distractor1 an incorrect answer
+     * @param distractor2 an incorrect answer
+     * @param distractor3 an incorrect answer
+     * @return the content hash
+     */
+    static long contentHash(String question, String answer, String distractor1,
+                            String distractor2, String distractor3) {
+        long hash = fingerprint(question);
+        hash = hashText(hashChar(hash, '\t'), answer);
+        hash = hashText(hashChar(hash, '\t'), distractor1);
+        hash = hashText(hashChar(hash, '\t'), distractor2);
+        hash = hashText(hashChar(hash, '\t'), distractor3);
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * equals checks the text of the question, the answer, and every choice. The user's answer
+     * is not compared: it belongs to the team, not to the question, so the same question
+     * answered by two teams is still the same question.
      * @param obj a Question to check for equality
      * @return true if the Questions have the same content
      */
     public boolean equals(Question obj) {
-        if (!this.mQuestion.equals(obj.mQuestion)) {
+        if (obj == null || this.getContentHash() != obj.getContentHash()) {
             return false;
         }
 
-        if (!this.mAnswer.equals(obj.mAnswer)) {
+        if (!this.getQuestion().equals(obj.getQuestion())) {
             return false;
         }
 
-        if (!this.mUserAnswer.equals(obj.mUserAnswer)) {
+        if (!this.getAnswer().equals(obj.getAnswer())) {
             return false;
         }
 
-        for (int i = 0; i < mChoices.length; i++) {
-            if (!this.mChoices[i].equals(obj.mChoices[i]))
+        for (int i = 0; i < countChoices(); i++) {
+            if (!this.getChoice(i).equals(obj.getChoice(i)))
                 return false;
         }
 
         return true;
     }
 
+    /**
+     * equals(Object) compares Questions the same way as equals(Question), so Questions can be
+     * kept in a HashMap or HashSet.
+     * @param obj the object to compare with
+     * @return true if obj is a Question with the same content
+     */
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof Question && equals((Question) obj);
+    }
+
+    /**
+     * fingerprint(String) calculates a 64-bit hash of a piece of text, ignoring case and extra
+     * whitespace (see QuestionBank.getVersion()).
+     * @param text the text
+     * @return the hash of the text; never 0
+     */
+    static long fingerprint(String text) {
+        long hash = hashWords(FNV_OFFSET, text);
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * fingerprint(String, String) calculates the fingerprint of a question in a category (see
+     * getFingerprint()).
+     * @param category the name of the question's category
+     * @param question the text of the question
+     * @return a 64-bit hash of both, ignoring case and extra whitespace; never 0
+     */
+    static long fingerprint(String category, String question) {
+        long hash = hashWords(FNV_OFFSET, category);
+        hash = hashChar(hash, '\t');
+        hash = hashWords(hash, question);
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * hashWords adds the characters of some text to a hash, in lower case, without leading or
+     * trailing whitespace and with each run of whitespace counted as one space.
+     * @param hash the hash so far
+     * @param text the text to add
+     * @return the hash including the text
+     */
+    private static long hashWords(long hash, String text) {
+        boolean started = false;
+        boolean space = false;
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+
+            if (Character.isWhitespace(c)) {
+                space = started; // leading whitespace is skipped
+            } else {
+                if (space) {
+                    hash = hashChar(hash, ' ');
+                    space = false;
+                }
+                hash = hashChar(hash, Character.toLowerCase(c));
+                started = true;
+            }
+        }
+        return hash;
+    }
+
     /**
      * overloaded equals method checks to see if the text of this question matches the
      * String passed.
@@ -157,7 +317,7 @@ public class Question
      * @return true if the text matches this question's text, false otherwise
      */
     public boolean equals(String q) {
-        return q.equals(this.mQuestion);
+        return q.equals(getQuestion());
     }
 
     /**
@@ -165,16 +325,39 @@ public class Question
      * @return the correct answer to this Question
      */
     public String getAnswer() {
+        if (mStore != null) {
+            return mStore.getText(mRow, QuestionStore.ANSWER);
+        }
         return mAnswer;
     }
 
+    /**
+     * getChoice() returns one answer choice, in the order used by getChoices().
+     * @param index between 0 and countChoices() - 1 (0 is the correct answer)
+     * @return the answer choice
+     */
+    private String getChoice(int index) {
+        if (mStore != null) {
+            return mStore.getText(mRow, QuestionStore.ANSWER + index);
+        }
+        return mChoices[index];
+    }
+
     /**
      * getChoices() returns a COPY of the mChoices array, not a reference to the original.
      * this method returns choices in the order mAnswer, distractor1, distractor2, distractor3.
      * @return a copy of the answer choices.
      */
     public String[] getChoices() {
-        return new String[] { mChoices[0], mChoices[1], mChoices[2], mChoices[3] };
+        return new String[] { getChoice(0), getChoice(1), getChoice(2), getChoice(3) };
+    }
+
+    /**
+     * countChoices() returns the number of answer choices.
+     * @return 4 for every Question built from a .tsv row
+     */
+    private int countChoices() {
+        return mStore != null ? QuestionStore.FIELDS - QuestionStore.ANSWER : mChoices.length;
     }
 
     /**
@@ -183,22 +366,73 @@ public class Question
      * @return an array of Strings containing the answer choices
      */
     public String[] getChoicesShuffled() {
-        String[] shuffled = new String[mChoices.length];
+        String[] shuffled = new String[countChoices()];
         int start = (int)(Math.random()*4);
 
         for (int i = 0; i < shuffled.length; i++)
         {
-            shuffled[(start + i + 5)%4] = mChoices[i];
+            shuffled[(start + i + 5)%4] = getChoice(i);
         }
 
         return shuffled;
     }
 
+    /**
+     * getCategory() returns the Category holding this Question.
+     * @return the Category, or null if this Question is not held by a Category
+     */
+    Category getCategory() {
+        return mCategory;
+    }
+
+    /**
+     * getContentHash() returns a 64-bit hash of the question, the answer, and the distractors.
+     * Two Questions with the same content hash almost certainly have the same text, so this
+     * is used to compare Questions without comparing every field, and by
+     * QuestionBank.getVersion(). It is calculated the first time it is needed.
+     * @return the content hash (never 0)
+     */
+    public long getContentHash() {
+        if (mContentHash == 0) {
+            mContentHash = contentHash(getQuestion(), getAnswer(),
+                    getChoice(1), getChoice(2), getChoice(3));
+        }
+        return mContentHash;
+    }
+
+    /**
+     * getFingerprint() returns a 64-bit hash of the name of the question's category and the
+     * text of the question, ignoring case and extra whitespace. It stays the same when the
+     * answer or distractors of a question are corrected in a new version of the bank, so a
+     * team's answer can be found again by fingerprint (see TriviaEngine.migrate()). The same
+     * question asked in two categories has two fingerprints. It is calculated the first time it
+     * is needed, and again after the Question moves to another Category.
+     * @return the fingerprint (never 0)
+     */
+    public long getFingerprint() {
+        if (mFingerprint == 0) {
+            mFingerprint = fingerprint(mCategory == null ? "" : mCategory.getCategory(), getQuestion());
+        }
+        return mFingerprint;
+    }
+
+    /**
+     * getIndex() returns the position of this Question in its Category, as used by
+     * Category.getQuestion(int).
+     * @return the position of this Question, or 0 if it is not held by a Category
+     */
+    public int getIndex() {
+        return mIndex;
+    }
+
     /**
      * getQuestion() returns the text of the question
      * @return the question
      */
     public String getQuestion() {
+        if (mStore != null) {
+            return mStore.getText(mRow, QuestionStore.QUESTION);
+        }
         return mQuestion;
     }
 
@@ -207,36 +441,208 @@ public class Question
      * @return the user's answer, or UNANSWERED
      */
     public String getUserAnswer() {
+        if (mStore != null) {
+            int index = mAnswers[mRow];
+
+            if (index == QuestionStore.UNANSWERED) {
+                return UNANSWERED;
+            } else if (index == QuestionStore.OTHER_ANSWER) {
+                return DEFAULT_USER_ANSWER;
+            }
+            return getChoice(index);
+        }
         return mUserAnswer;
     }
 
+    /**
+     * getUserAnswerIndex() returns the position of the user's answer in the choices, in the
+     * order returned by getChoices() (0 is the correct answer).
+     * @return -1 if the question is unanswered, 0 to 3 for one of the choices, or
+     *      the number of choices if the user's answer is not one of them
+     */
+    public int getUserAnswerIndex() {
+        if (mStore != null) {
+            return mAnswers[mRow];
+        }
+
+        if (!isAnswered()) {
+            return -1;
+        }
+
+        return indexOfChoice(mUserAnswer);
+    }
+
+    /**
+     * indexOfChoice() finds the position of an answer in the choices.
+     * @param answer the answer to look for
+     * @return 0 to 3 for one of the choices, or the number of choices if it is not one of them
+     */
+    private int indexOfChoice(String answer) {
+        for (int i = 0; i < countChoices(); i++) {
+            if (getChoice(i).equals(answer)) {
+                return i;
+            }
+        }
+
+        return countChoices();
+    }
+
+    /**
+     * hashCode is calculated from the content hash, to agree with equals().
+     * @return a hash code for this Question
+     */
+    @Override
+    public int hashCode() {
+        long hash = getContentHash();
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * hashChar adds one character to an FNV-1a hash, a byte at a time.
+     * @param hash the hash so far
+     * @param c the character
+     * @return the new hash
+     */
+    private static long hashChar(long hash, char c) {
+        hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+        return (hash ^ (c >>> 8)) * FNV_PRIME;
+    }
+
+    /**
+     * hashText adds every character of some text to an FNV-1a hash.
+     * @param hash the hash so far
+     * @param text the text
+     * @return the new hash
+     */
+    private static long hashText(long hash, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            hash = hashChar(hash, text.charAt(i));
+        }
+        return hash;
+    }
+
     /**
      * isAnswered checks to see if the value in mUserAnswer is still equal to the value in
      * UNANSWERED. This value will be changed when the user answers the question.
      * @return true if the value in mAnswered equals the value in UNANSWERED.
      */
     public boolean isAnswered() {
+        if (mStore != null) {
+            return mAnswers[mRow] != QuestionStore.UNANSWERED;
+        }
         return !mUserAnswer.equals(UNANSWERED);
     }
 
+    /**
+     * isNone checks to see if this is NO_QUESTION, the Question returned when none was found.
+     * @return true if this is the shared sentinel
+     */
+    public boolean isNone() {
+        return this == NO_QUESTION;
+    }
+
+    /**
+     * sameAs checks to see if another Question is this one. A Category backed by a
+     * QuestionStore creates a new view each time a Question is asked for, so two views of the
+     * same row of the same team's answers are the same Question.
+     * @param other another Question, or null
+     * @return true if other is this Question, or a view of the same row
+     */
+    public boolean sameAs(Question other) {
+        if (this == other) {
+            return true;
+        }
+        return other != null && mStore != null && mStore == other.mStore
+                && mAnswers == other.mAnswers && mRow == other.mRow;
+    }
+
     /**
      * isCorrect checks to see if the value in mUserAnswer is equal to the value in mAnswer.
      * @return true if the value in mAnswered equals the value in mAnswer.
      */
     public boolean isCorrect() {
+        if (mStore != null) {
+            return mAnswers[mRow] == 0;
+        }
         return mUserAnswer.equals(mAnswer);
     }
 
+    /**
+     * notifyCategory() tells the Category holding this Question that the user's answer has
+     * changed, so the Category can be saved, its score counts can be updated, and the change
+     * can be recorded.
+     * @param wasAnswered the value of isAnswered() before the change
+     * @param wasCorrect the value of isCorrect() before the change
+     */
+    private void notifyCategory(boolean wasAnswered, boolean wasCorrect) {
+        if (mCategory != null) {
+            mCategory.answerChanged(this, wasAnswered, wasCorrect);
+        }
+    }
+
+    /**
+     * measure adds this Question to a HeapFootprint: the object, its text and choices, and its
+     * answer. A view's text is in its QuestionStore, which is not counted; its answer array is
+     * shared by every view of the same team, and is counted once.
+     * @param footprint the footprint to add to
+     */
+    void measure(HeapFootprint footprint) {
+        // 9 references (including TAG and UNANSWERED); mIndex, mRow, mFingerprint, mContentHash
+        footprint.add(HeapFootprint.QUESTIONS, this, HeapFootprint.objectSize(9, 24));
+
+        if (mStore != null) {
+            footprint.add(HeapFootprint.ANSWERS, mAnswers,
+                    HeapFootprint.arraySize(mAnswers.length, 1));
+            return;
+        }
+
+        footprint.addString(HeapFootprint.STRINGS, mQuestion);
+        footprint.addString(HeapFootprint.STRINGS, mAnswer);
+        if (footprint.add(HeapFootprint.QUESTIONS, mChoices,
+                HeapFootprint.arraySize(mChoices.length, HeapFootprint.REFERENCE))) {
+            for (String choice : mChoices) {
+                footprint.addString(HeapFootprint.STRINGS, choice);
+            }
+        }
+        footprint.addString(HeapFootprint.ANSWERS, mUserAnswer);
+    }
+
     /**
      * print() just outputs the question for testing purposes.
      */
     public void print() {
-        System.out.println(mQuestion + "\n\t" +
-                mAnswer + "\n\t" +
-                mChoices[1] + "\n\t" +
-                mChoices[2] + "\n\t" +
-                mChoices[3] + "\n" +
-                "User answer: " + mUserAnswer);
+        System.out.println(getQuestion() + "\n\t" +
+                getAnswer() + "\n\t" +
+                getChoice(1) + "\n\t" +
+                getChoice(2) + "\n\t" +
+                getChoice(3) + "\n" +
+                "User answer: " + getUserAnswer());
+    }
+
+    /**
+     * replaceText() gives this Question the text of a corrected row of a new version of the
+     * bank (see TriviaEngine.applyDiff()), keeping the team's answer. An answer that was correct
+     * stays correct, even if the answer key changed. The Category is not told: it recounts its
+     * Questions once every row has been replaced.
+     * @param row the category, question, answer, and three distractors
+     */
+    void replaceText(String[] row) {
+        if (this == NO_QUESTION) {
+            return; // the shared sentinel never changes
+        }
+        boolean wasCorrect = isCorrect();
+        detach();
+        StringPool pool = StringPool.getInstance();
+        mQuestion = pool.intern(row[1]);
+        mAnswer = pool.intern(row[2]);
+        mChoices = new String[] { mAnswer, pool.intern(row[3]), pool.intern(row[4]), pool.intern(row[5]) };
+
+        if (wasCorrect) {
+            mUserAnswer = mAnswer;
+        }
+
+        mFingerprint = 0;
+        mContentHash = 0;
     }
 
     /**
@@ -247,7 +653,32 @@ public class Question
      * @param answer the answer to the trivia question
      */
     public void setAnswer(String answer) {
+        if (this == NO_QUESTION) {
+            return; // the shared sentinel never changes
+        }
+        boolean wasAnswered = isAnswered();
+        boolean wasCorrect = isCorrect();
+        detach();
         mAnswer = answer;
+        mContentHash = 0;
+        notifyCategory(wasAnswered, wasCorrect);
+    }
+
+    /**
+     * setCategory() is called by Category.addQuestion() so that answering this Question marks
+     * its Category as changed since the last save.
+     * @param category the Category holding this Question
+     * @param index the position of this Question in the Category
+     */
+    void setCategory(Category category, int index) {
+        if (this == NO_QUESTION) {
+            return; // the shared sentinel never changes
+        }
+        if (category != mCategory) {
+            mFingerprint = 0; // the fingerprint includes the category's name
+        }
+        mCategory = category;
+        mIndex = index;
     }
 
     /**
@@ -258,6 +689,11 @@ public class Question
      * @param choices an array of four Strings containing all answer choices.
      */
     public void setChoices(String[] choices) {
+        if (this == NO_QUESTION) {
+            return; // the shared sentinel never changes
+        }
+        detach();
+        mContentHash = 0;
         mChoices = new String[choices.length];
         for (int i = 0; i < mChoices.length; i++)
         {
@@ -272,7 +708,13 @@ public class Question
      * @param question a trivia question that can have four answer choices
      */
     public void setQuestion(String question) {
+        if (this == NO_QUESTION) {
+            return; // the shared sentinel never changes
+        }
+        detach();
         mQuestion = question;
+        mFingerprint = 0;
+        mContentHash = 0;
     }
 
     /**
@@ -283,11 +725,11 @@ public class Question
      */
     @Override
     public String toString() {
-        return mQuestion + "\t" + mAnswer
-                + "\t" + mChoices[1]
-                + "\t" + mChoices[2]
-                + "\t" + mChoices[3]
-                + "\t" + mUserAnswer;
+        return getQuestion() + "\t" + getAnswer()
+                + "\t" + getChoice(1)
+                + "\t" + getChoice(2)
+                + "\t" + getChoice(3)
+                + "\t" + getUserAnswer();
     }
 
 }
\ No newline at end of file
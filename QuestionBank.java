@@ -0,0 +1,406 @@
+// QuestionBank class holds the parsed rows of one questions .tsv resource (morning, afternoon,
+// or default). Each bank is parsed once per process and shared, so a TriviaEngine that starts
+// from the bank (a new team, or a team restored from a snapshot) copies rows that have already
+// been split instead of reading and splitting the resource again.
+// Rows are stored in file order with duplicates removed, and are never modified after loading.
+// Every field is deduplicated through the shared StringPool, so text that appears in more than
+// one bank (or more than once in a bank) is only held once.
+// preload() starts parsing all three banks at once on background threads when the app starts.
+// A login that arrives before its bank is ready waits for that one bank only.
+// Every bank has a version (see getVersion()), a hash of all of its rows, which is written to
+// each team's save so that a save made from an older bank can be migrated (see
+// TriviaEngine.migrate()).
+// A bank can be replaced while the app is running by copying a new .tsv into the BANK_DIRECTORY
+// of the app's files directory (see BankWatcher). A bank in that directory is also used instead
+// of the raw resource the next time the app starts.
+// Each bank is indexed by word when it is loaded (see QuestionIndex), and search() looks a word
+// or phrase up in all three banks.
+package org.foxcroft.stem.raffle;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Supplier;
+
+public class QuestionBank
+{
+    private static final String TAG = "QuestionBank";
+    public static final String BANK_DIRECTORY = "banks"; // banks that replace the raw resources
+    private static final String[] SESSIONS = {
+            TriviaActivity.MORNING_TEAM, TriviaActivity.AFTERNOON_TEAM, TriviaActivity.TEAM_NOT_FOUND };
+    private static Map<String, CompletableFuture<QuestionBank>> sBanks =
+            new HashMap<String, CompletableFuture<QuestionBank>>();
+    private static ExecutorService sExecutor; // parses banks in the background
+    private final String mSessionType;
+    private final List<String[]> mRows; // category, question, answer, distractor1, 2, 3
+    private long mVersion; // hash of every row, in order
+    private long[] mFingerprints; // Question.fingerprint() of each row
+    private long[] mContentHashes; // Question.contentHash() of each row
+    private QuestionIndex mIndex; // the words of every row
+
+    /**
+     * Constructor reads a questions .tsv from an InputStream. Each row must have six columns
+     * (category, question, answer, and three distractors) or seven (with a user answer);
+     * other rows are skipped, as are rows that repeat an earlier row exactly. The rows are
+     * scanned as bytes (see BankScanner), so only the fields that are kept are decoded. The
+     * stream is closed when reading is done.
+     * @param sessionType TriviaActivity.MORNING_TEAM, TriviaActivity.AFTERNOON_TEAM, or any
+     *                    other value for the default bank
+     * @param is an InputStream containing the contents of the .tsv
+     */
+    public QuestionBank(String sessionType, InputStream is) {
+        mSessionType = sessionType;
+        mRows = new ArrayList<String[]>();
+
+        try {
+            BankScanner scanner = new BankScanner(BankScanner.readAll(is));
+
+            while (scanner.nextLine()) {
+                int columns = scanner.countFields();
+
+                if ((columns == 6 || columns == 7) && !scanner.isRepeatedLine()) {
+                    String[] row = new String[columns];
+                    for (int i = 0; i < columns; i++) {
+                        row[i] = scanner.pooledField(i);
+                    }
+                    mRows.add(row);
+                }
+            }
+            Log.d(TAG, "QuestionBank(InputStream): decoded " + scanner.countDecodedBytes() + " bytes");
+        } catch (IOException e) {
+            Log.wtf(TAG, "QuestionBank(InputStream): error reading file" + e);
+        }
+
+        // a question repeated in one category cannot be told apart by fingerprint (see
+        // TriviaEngine.migrate()); it is kept, since it is part of the bank
+        Set<Long> fingerprints = new HashSet<Long>();
+        mFingerprints = new long[mRows.size()];
+        mContentHashes = new long[mRows.size()];
+
+        for (int i = 0; i < mRows.size(); i++) {
+            String[] row = mRows.get(i);
+            mFingerprints[i] = Question.fingerprint(row[0], row[1]);
+            mContentHashes[i] = Question.contentHash(row[1], row[2], row[3], row[4], row[5]);
+            mVersion = addToVersion(mVersion, row[0], mContentHashes[i]);
+
+            if (!fingerprints.add(mFingerprints[i])) {
+                Log.d(TAG, "QuestionBank(InputStream): question repeated in " + row[0] + ": " + row[1]);
+            }
+        }
+        mIndex = new QuestionIndex(this);
+    }
+
+    /**
+     * addToVersion adds one row to a bank version. The version changes if any row is added,
+     * removed, moved, or edited, since questions are identified by their position in saves
+     * and event logs.
+     * @param version the version of the rows before this one (0 for the first row)
+     * @param category the row's category
+     * @param contentHash the row's content hash (see Question.getContentHash())
+     * @return the version including this row
+     */
+    static long addToVersion(long version, String category, long contentHash) {
+        long hash = (version ^ Question.fingerprint(category)) * 0x100000001b3L;
+        return (hash ^ contentHash) * 0x100000001b3L;
+    }
+
+    /**
+     * getInstance returns the bank for a session, waiting for it to be parsed if it is still
+     * loading, or parsing it if nothing has requested it yet. Every later call for the same
+     * session returns the same object.
+     * @param context used to open the raw resource
+     * @param typeOfTeam TriviaActivity.MORNING_TEAM, TriviaActivity.AFTERNOON_TEAM, or any
+     *                   other value for the default bank
+     * @return the shared QuestionBank for the session
+     */
+    public static QuestionBank getInstance(Context context, String typeOfTeam) {
+        CompletableFuture<QuestionBank> future = load(context, typeOfTeam);
+
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            forget(sessionKey(typeOfTeam), future); // so the next call tries again
+            throw e;
+        }
+    }
+
+    /**
+     * load returns the future for a session's bank, starting to parse it on a background
+     * thread if that has not been started yet.
+     * @param context used to open the raw resource
+     * @param typeOfTeam the session
+     * @return a future that completes with the shared QuestionBank for the session
+     */
+    public static synchronized CompletableFuture<QuestionBank> load(Context context, String typeOfTeam) {
+        final String key = sessionKey(typeOfTeam);
+        final Context appContext = context.getApplicationContext() != null
+                ? context.getApplicationContext() : context;
+        CompletableFuture<QuestionBank> future = sBanks.get(key);
+
+        if (future == null) {
+            future = CompletableFuture.supplyAsync(new Supplier<QuestionBank>() {
+                @Override
+                public QuestionBank get() {
+                    long start = System.nanoTime();
+                    QuestionBank bank = new QuestionBank(key, open(appContext, key));
+                    Log.d(TAG, "load(" + key + "): loaded " + bank.countQuestions() + " questions in "
+                            + (System.nanoTime() - start) / 1000000 + " ms");
+                    Log.d(TAG, StringPool.getInstance().toString());
+                    return bank;
+                }
+            }, executor());
+            sBanks.put(key, future);
+        }
+
+        return future;
+    }
+
+    /**
+     * open opens the .tsv for a session: the file in BANK_DIRECTORY if there is one, or the
+     * raw resource.
+     * @param context used to find the files directory and the raw resource
+     * @param key the session key
+     * @return the stream to read the bank from
+     */
+    private static InputStream open(Context context, String key) {
+        File file = fileFor(context, key);
+
+        if (file.isFile()) {
+            try {
+                return new FileInputStream(file);
+            } catch (IOException e) {
+                Log.d(TAG, "open(" + key + "): could not open " + file + ": " + e);
+            }
+        }
+        return context.getResources().openRawResource(resourceFor(key));
+    }
+
+    /**
+     * fileFor returns the file that replaces a session's raw resource when it exists.
+     * @param context used to find the files directory
+     * @param typeOfTeam the session
+     * @return the file in BANK_DIRECTORY for the session
+     */
+    public static File fileFor(Context context, String typeOfTeam) {
+        return new File(new File(context.getFilesDir(), BANK_DIRECTORY), fileNameFor(typeOfTeam));
+    }
+
+    /**
+     * fileNameFor returns the name of the file that holds a session's bank in BANK_DIRECTORY.
+     * @param typeOfTeam the session
+     * @return questions_morning.tsv, questions_afternoon.tsv, or questions.tsv
+     */
+    public static String fileNameFor(String typeOfTeam) {
+        if (TriviaActivity.MORNING_TEAM.equals(typeOfTeam)) {
+            return "questions_morning.tsv";
+        } else if (TriviaActivity.AFTERNOON_TEAM.equals(typeOfTeam)) {
+            return "questions_afternoon.tsv";
+        }
+        return "questions.tsv";
+    }
+
+    /**
+     * replace makes a newly loaded bank the shared bank for its session. Engines that already
+     * exist keep the old bank until a BankDiff is applied to them.
+     * @param bank the new bank
+     */
+    public static synchronized void replace(QuestionBank bank) {
+        sBanks.put(sessionKey(bank.getSessionType()), CompletableFuture.completedFuture(bank));
+    }
+
+    /**
+     * search looks a word or phrase up in the morning, afternoon, and default banks, waiting
+     * for any of them that are still loading (see QuestionIndex.search()).
+     * @param context used to open the raw resources
+     * @param query one or more words; the last may be the start of a word
+     * @return the matching questions, with their banks and categories
+     */
+    public static List<QuestionIndex.Match> search(Context context, String query) {
+        List<QuestionIndex.Match> matches = new ArrayList<QuestionIndex.Match>();
+
+        for (String session : SESSIONS) {
+            matches.addAll(getInstance(context, session).getIndex().search(query));
+        }
+        return matches;
+    }
+
+    /**
+     * getLoadedBanks returns the banks that have finished loading. Banks that are still being
+     * parsed, or that failed, are left out.
+     * @return the loaded banks
+     */
+    public static synchronized List<QuestionBank> getLoadedBanks() {
+        List<QuestionBank> banks = new ArrayList<QuestionBank>();
+
+        for (CompletableFuture<QuestionBank> future : sBanks.values()) {
+            if (future.isDone() && !future.isCompletedExceptionally()) {
+                banks.add(future.join());
+            }
+        }
+        return banks;
+    }
+
+    /**
+     * preload starts parsing the morning, afternoon, and default banks in parallel. It returns
+     * right away; TriviaEngines created later wait only for the bank they need.
+     * @param context used to open the raw resources
+     */
+    public static void preload(Context context) {
+        for (String session : SESSIONS) {
+            load(context, session);
+        }
+    }
+
+    /**
+     * forget removes a bank that failed to load, so that it can be requested again.
+     * @param key the session key
+     * @param future the future that failed
+     */
+    private static synchronized void forget(String key, CompletableFuture<QuestionBank> future) {
+        if (sBanks.get(key) == future) {
+            sBanks.remove(key);
+        }
+    }
+
+    /**
+     * executor returns the thread pool used to parse banks, creating it the first time it is
+     * needed. It has one thread per bank, and its threads do not keep the process alive.
+     * @return the executor for bank loading
+     */
+    private static synchronized ExecutorService executor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newFixedThreadPool(SESSIONS.length, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sExecutor;
+    }
+
+    /**
+     * resourceFor returns the raw resource holding the questions for a session.
+     * @param typeOfTeam the session
+     * @return R.raw.questions_morning, R.raw.questions_afternoon, or R.raw.questions
+     */
+    public static int resourceFor(String typeOfTeam) {
+        if (TriviaActivity.MORNING_TEAM.equals(typeOfTeam)) {
+            return R.raw.questions_morning;
+        } else if (TriviaActivity.AFTERNOON_TEAM.equals(typeOfTeam)) {
+            return R.raw.questions_afternoon;
+        }
+        return R.raw.questions;
+    }
+
+    /**
+     * sessionKey maps every session that does not have its own bank to TEAM_NOT_FOUND, so the
+     * default bank is only loaded once.
+     * @param typeOfTeam the session
+     * @return MORNING_TEAM, AFTERNOON_TEAM, or TEAM_NOT_FOUND
+     */
+    public static String sessionKey(String typeOfTeam) {
+        if (TriviaActivity.MORNING_TEAM.equals(typeOfTeam)
+                || TriviaActivity.AFTERNOON_TEAM.equals(typeOfTeam)) {
+            return typeOfTeam;
+        }
+        return TriviaActivity.TEAM_NOT_FOUND;
+    }
+
+    /**
+     * @return the number of questions in the bank
+     */
+    public int countQuestions() {
+        return mRows.size();
+    }
+
+    /**
+     * @param index the row number, between 0 and countQuestions() - 1
+     * @return the content hash of the row (see Question.getContentHash())
+     */
+    public long getContentHash(int index) {
+        return mContentHashes[index];
+    }
+
+    /**
+     * @param index the row number, between 0 and countQuestions() - 1
+     * @return the fingerprint of the row's question (see Question.getFingerprint())
+     */
+    public long getFingerprint(int index) {
+        return mFingerprints[index];
+    }
+
+    /**
+     * @return the index of the words in the bank
+     */
+    public QuestionIndex getIndex() {
+        return mIndex;
+    }
+
+    /**
+     * getRow returns one row of the bank. The array is shared, so it must not be modified.
+     * @param index the row number, between 0 and countQuestions() - 1
+     * @return the category, question, answer, and three distractors
+     */
+    public String[] getRow(int index) {
+        return mRows.get(index);
+    }
+
+    /**
+     * getVersion returns a 64-bit hash of every row of the bank, in order. Two banks with the
+     * same version have the same questions in the same order.
+     * @return the bank version
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * measure estimates the heap used by this bank (see HeapFootprint): its rows, the text
+     * that is not pooled, its fingerprints, and its word index.
+     * @return the footprint of the bank
+     */
+    public HeapFootprint measure() {
+        HeapFootprint footprint = new HeapFootprint(mSessionType);
+
+        // mSessionType, mRows, mFingerprints, mContentHashes, mIndex; mVersion
+        footprint.add(HeapFootprint.OTHER, this, HeapFootprint.objectSize(5, 8));
+        footprint.add(HeapFootprint.OTHER, mRows, HeapFootprint.listSize(mRows.size()));
+        footprint.add(HeapFootprint.OTHER, mFingerprints, HeapFootprint.arraySize(mFingerprints.length, 8));
+        footprint.add(HeapFootprint.OTHER, mContentHashes, HeapFootprint.arraySize(mContentHashes.length, 8));
+
+        for (String[] row : mRows) {
+            footprint.add(HeapFootprint.QUESTIONS, row, HeapFootprint.arraySize(row.length, HeapFootprint.REFERENCE));
+            for (String field : row) {
+                footprint.addString(HeapFootprint.STRINGS, field);
+            }
+        }
+
+        mIndex.measure(footprint);
+        return footprint;
+    }
+
+    /**
+     * @return the session this bank was loaded for
+     */
+    public String getSessionType() {
+        return mSessionType;
+    }
+}
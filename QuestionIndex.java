@@ -0,0 +1,411 @@
+// QuestionIndex class is an inverted index over the words of one QuestionBank, so that a
+// question can be looked up at the raffle table by a word or phrase instead of its exact text
+// (see Category.findQuestion()). Every word of a row's question and four choices is a term;
+// terms are lower case and made only of letters and digits ("Jupiter's moon" is the terms
+// "jupiter", "s", and "moon").
+// The index is built once, when the bank is loaded (see QuestionBank.getIndex()):
+//   - the terms are kept in one sorted array, so a term is found by binary search and every
+//     term with a given prefix is a run of neighbouring entries
+//   - each term has a posting list: the sorted row numbers of the rows that contain it
+// A term query is one binary search. A prefix query merges the posting lists of the run of
+// terms it matches. A phrase ("red pla") matches the rows that contain every word, with the
+// last word taken as a prefix, since admins usually type only the start of it; the posting
+// lists of the whole words are intersected first, and the prefix is checked on what is left.
+//
+// Usage: QuestionIndex <query> <questions.tsv> [more .tsv files]
+package org.foxcroft.stem.raffle;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class QuestionIndex
+{
+    private static final int[] NO_ROWS = new int[0];
+    private final QuestionBank mBank;
+    private final String[] mTerms; // sorted
+    private final int[][] mPostings; // row numbers containing mTerms[i], sorted
+
+    /**
+     * Match is one row found by a search, with the bank it came from.
+     */
+    public static class Match
+    {
+        private final QuestionBank mBank;
+        private final int mRow;
+
+        /**
+         * Constructor accepts the bank and the row number.
+         * @param bank the bank the row is in
+         * @param row the row number
+         */
+        public Match(QuestionBank bank, int row) {
+            mBank = bank;
+            mRow = row;
+        }
+
+        /**
+         * @return the correct answer to the question
+         */
+        public String getAnswer() {
+            return mBank.getRow(mRow)[2];
+        }
+
+        /**
+         * @return the name of the question's category
+         */
+        public String getCategory() {
+            return mBank.getRow(mRow)[0];
+        }
+
+        /**
+         * @return the text of the question
+         */
+        public String getQuestion() {
+            return mBank.getRow(mRow)[1];
+        }
+
+        /**
+         * @return the row number of the question in its bank
+         */
+        public int getRow() {
+            return mRow;
+        }
+
+        /**
+         * @return the session of the bank the question is in
+         */
+        public String getSessionType() {
+            return mBank.getSessionType();
+        }
+
+        /**
+         * toString describes the match for the log and for main().
+         * @return the session, row, category, question, and answer
+         */
+        @Override
+        public String toString() {
+            return getSessionType() + "\t" + mRow + "\t" + getCategory() + "\t" + getQuestion()
+                    + "\t" + getAnswer();
+        }
+    }
+
+    /**
+     * Constructor indexes every row of a bank. Each posting list is built in row order, so it
+     * is sorted without sorting it.
+     * @param bank the bank to index
+     */
+    public QuestionIndex(QuestionBank bank) {
+        mBank = bank;
+        Map<String, int[]> postings = new HashMap<String, int[]>(); // [0] is the count
+        List<String> terms = new ArrayList<String>();
+
+        for (int row = 0; row < bank.countQuestions(); row++) {
+            String[] fields = bank.getRow(row);
+
+            for (int i = 1; i <= 5; i++) { // question, answer, and distractors
+                terms.clear();
+                tokenize(fields[i], terms);
+
+                for (String term : terms) {
+                    int[] list = postings.get(term);
+
+                    if (list == null) {
+                        list = new int[4];
+                    } else if (list[list[0]] == row) {
+                        continue; // already in this row
+                    } else if (list[0] + 1 == list.length) {
+                        list = Arrays.copyOf(list, list.length * 2);
+                    }
+                    list[++list[0]] = row;
+                    postings.put(term, list);
+                }
+            }
+        }
+
+        mTerms = postings.keySet().toArray(new String[0]);
+        Arrays.sort(mTerms);
+        mPostings = new int[mTerms.length][];
+
+        for (int i = 0; i < mTerms.length; i++) {
+            int[] list = postings.get(mTerms[i]);
+            mPostings[i] = Arrays.copyOfRange(list, 1, list[0] + 1);
+        }
+    }
+
+    /**
+     * @return the number of different terms in the bank
+     */
+    public int countTerms() {
+        return mTerms.length;
+    }
+
+    /**
+     * measure adds this index to a HeapFootprint: the index, its terms, and its posting lists.
+     * @param footprint the footprint to add to
+     */
+    void measure(HeapFootprint footprint) {
+        // mBank, mTerms, mPostings
+        footprint.add(HeapFootprint.OTHER, this, HeapFootprint.objectSize(3, 0));
+        footprint.add(HeapFootprint.OTHER, mTerms, HeapFootprint.arraySize(mTerms.length, HeapFootprint.REFERENCE));
+        footprint.add(HeapFootprint.OTHER, mPostings, HeapFootprint.arraySize(mPostings.length, HeapFootprint.REFERENCE));
+
+        for (int i = 0; i < mTerms.length; i++) {
+            footprint.addString(HeapFootprint.OTHER, mTerms[i]);
+            footprint.add(HeapFootprint.OTHER, mPostings[i], HeapFootprint.arraySize(mPostings[i].length, 4));
+        }
+    }
+
+    /**
+     * findPrefix returns the rows that contain a term starting with a prefix.
+     * @param prefix the start of a term; it is made lower case
+     * @return the row numbers, sorted, with no duplicates (the array may be shared, so it must
+     *      not be modified)
+     */
+    public int[] findPrefix(String prefix) {
+        prefix = prefix.toLowerCase();
+        int first = lowerBound(prefix);
+        int last = endOfPrefix(first, prefix);
+
+        if (last - first == 1) {
+            return mPostings[first]; // one term needs no merging
+        }
+        return toRows(prefixRows(first, last));
+    }
+
+    /**
+     * findTerm returns the rows that contain a term.
+     * @param term a whole term; it is made lower case
+     * @return the row numbers, sorted (the array is shared, so it must not be modified)
+     */
+    public int[] findTerm(String term) {
+        int i = Arrays.binarySearch(mTerms, term.toLowerCase());
+        return i >= 0 ? mPostings[i] : NO_ROWS;
+    }
+
+    /**
+     * search finds the rows that contain every word of a query. The last word is matched as a
+     * prefix, unless the query ends with a space or punctuation. The whole words are looked up
+     * first, shortest posting list first, so a common prefix only has to be checked against
+     * the few rows that are left instead of merging every term it matches.
+     * @param query one or more words
+     * @return the matching rows, in bank order
+     */
+    public List<Match> search(String query) {
+        List<String> words = new ArrayList<String>();
+        tokenize(query, words);
+        List<Match> matches = new ArrayList<Match>();
+
+        if (words.isEmpty()) {
+            return matches;
+        }
+
+        String prefix = null;
+        if (Character.isLetterOrDigit(query.charAt(query.length() - 1))) {
+            prefix = words.remove(words.size() - 1);
+        }
+
+        int[][] lists = new int[words.size()][];
+        for (int w = 0; w < words.size(); w++) {
+            lists[w] = findTerm(words.get(w));
+        }
+        Arrays.sort(lists, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return Integer.compare(a.length, b.length);
+            }
+        });
+
+        int[] rows;
+        if (lists.length == 0) {
+            rows = findPrefix(prefix);
+        } else {
+            rows = lists[0];
+            for (int w = 1; w < lists.length && rows.length > 0; w++) {
+                rows = intersect(rows, lists[w]);
+            }
+            if (prefix != null) {
+                rows = filterPrefix(rows, prefix);
+            }
+        }
+
+        for (int row : rows) {
+            matches.add(new Match(mBank, row));
+        }
+        return matches;
+    }
+
+    /**
+     * tokenize splits text into lower case terms of letters and digits.
+     * @param text the text to split
+     * @param terms the list the terms are added to
+     */
+    public static void tokenize(String text, List<String> terms) {
+        int start = -1;
+
+        for (int i = 0; i <= text.length(); i++) {
+            boolean inTerm = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+
+            if (inTerm && start < 0) {
+                start = i;
+            } else if (!inTerm && start >= 0) {
+                terms.add(text.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+    }
+
+    /**
+     * endOfPrefix finds the end of the run of terms that start with a prefix.
+     * @param first the index of the first term >= prefix (see lowerBound())
+     * @param prefix the prefix
+     * @return one past the index of the last term that starts with the prefix
+     */
+    private int endOfPrefix(int first, String prefix) {
+        int last = first;
+
+        while (last < mTerms.length && mTerms[last].startsWith(prefix)) {
+            last++;
+        }
+        return last;
+    }
+
+    /**
+     * filterPrefix keeps the rows that contain a term starting with a prefix. The rows' text
+     * is checked directly, which is quicker than merging posting lists when there are few rows.
+     * @param rows the row numbers, sorted
+     * @param prefix the start of a term, in lower case
+     * @return the rows that contain a matching term
+     */
+    private int[] filterPrefix(int[] rows, String prefix) {
+        int[] kept = new int[rows.length];
+        int n = 0;
+
+        for (int row : rows) {
+            String[] fields = mBank.getRow(row);
+
+            for (int i = 1; i <= 5; i++) {
+                if (hasTermWithPrefix(fields[i], prefix)) {
+                    kept[n++] = row;
+                    break;
+                }
+            }
+        }
+        return Arrays.copyOf(kept, n);
+    }
+
+    /**
+     * hasTermWithPrefix checks the terms of some text without splitting it (see tokenize()).
+     * @param text the text to check
+     * @param prefix the start of a term, in lower case
+     * @return true if one of the terms of the text starts with the prefix
+     */
+    private static boolean hasTermWithPrefix(String text, String prefix) {
+        for (int i = 0; i + prefix.length() <= text.length(); i++) {
+            if ((i == 0 || !Character.isLetterOrDigit(text.charAt(i - 1)))
+                    && text.regionMatches(true, i, prefix, 0, prefix.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * intersect finds the rows that are in two sorted lists. Each row of the shorter list is
+     * looked up in the longer one by binary search.
+     * @param shorter the shorter list
+     * @param longer the longer list
+     * @return the rows in both, sorted
+     */
+    private static int[] intersect(int[] shorter, int[] longer) {
+        int[] both = new int[shorter.length];
+        int n = 0;
+        int from = 0;
+
+        for (int row : shorter) {
+            int i = Arrays.binarySearch(longer, from, longer.length, row);
+            if (i >= 0) {
+                both[n++] = row;
+                from = i + 1;
+            } else {
+                from = -i - 1;
+            }
+        }
+        return Arrays.copyOf(both, n);
+    }
+
+    /**
+     * lowerBound finds the first term that is not less than a string.
+     * @param s the string to look for
+     * @return the index of the first term >= s, or the number of terms
+     */
+    private int lowerBound(String s) {
+        int i = Arrays.binarySearch(mTerms, s);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    /**
+     * prefixRows merges the posting lists of a run of terms.
+     * @param first the index of the first term
+     * @param last one past the index of the last term
+     * @return the rows containing any of the terms
+     */
+    private BitSet prefixRows(int first, int last) {
+        BitSet rows = new BitSet(mBank.countQuestions());
+
+        for (int i = first; i < last; i++) {
+            for (int row : mPostings[i]) {
+                rows.set(row);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * toRows lists the rows that are set in a BitSet.
+     * @param rows the rows
+     * @return the row numbers, sorted
+     */
+    private static int[] toRows(BitSet rows) {
+        int[] list = new int[rows.cardinality()];
+        int n = 0;
+
+        for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1)) {
+            list[n++] = row;
+        }
+        return list;
+    }
+
+    /**
+     * main indexes one or more question banks and prints the rows that match a query.
+     * @param args the query, then the path to each .tsv to search
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: QuestionIndex <query> <questions.tsv> [more .tsv files]");
+            System.exit(1);
+        }
+
+        for (int i = 1; i < args.length; i++) {
+            long start = System.nanoTime();
+            QuestionBank bank = new QuestionBank(args[i], new FileInputStream(args[i]));
+            QuestionIndex index = bank.getIndex();
+            long built = System.nanoTime();
+            List<Match> matches = index.search(args[0]);
+            long searched = System.nanoTime();
+
+            for (Match match : matches) {
+                System.out.println(match);
+            }
+            System.err.println(String.format("%s: %d rows, %d terms, loaded in %d ms, %d matches in %d us",
+                    args[i], bank.countQuestions(), index.countTerms(), (built - start) / 1000000,
+                    matches.size(), (searched - built) / 1000));
+        }
+    }
+}
@@ -0,0 +1,310 @@
+// QuestionStore class holds a question bank in columns instead of objects, so that banks with
+// hundreds of thousands (or millions) of rows fit in a small heap. A QuestionBank row costs a
+// String[] and up to seven Strings; a QuestionStore row costs one int for its category ID and
+// five ints that point into a shared text arena:
+//   mCategories    category ID of each row (an index into mCategoryNames)
+//   mFields        for each row, the text IDs of its question, answer, and three distractors
+//   mTextStarts    where each distinct piece of text starts in mText
+//   mText          every distinct piece of text, UTF-8 encoded, one after another
+//   mRowsByCategory  every row number, grouped by category ID (built by trim())
+//   mCategoryStarts  where each category's rows start in mRowsByCategory
+// Text that repeats (answers like "True" or "1970", distractors reused from row to row) is
+// stored once. Each team's answers are kept separately, packed one byte per row (see
+// newAnswers()), so one store can be shared by every team in the process.
+// Rows are read as Question objects through views: view() returns a Question that reads its
+// text from the store and keeps its answer in a team's answer array, so getQuestion(),
+// getChoices(), checkAnswer(), and the rest work as they do for any other Question. Views are
+// cheap to create, and only hold a reference to the store and the row number, so a team does
+// not keep one per row: its categories create them as they are asked for (see Category), and a
+// team costs its answer array plus a few small objects per category.
+package org.foxcroft.stem.raffle;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class QuestionStore
+{
+    private static final String TAG = "QuestionStore";
+    public static final int QUESTION = 0;
+    public static final int ANSWER = 1; // the distractors follow the answer
+    public static final int FIELDS = 5; // question, answer, and three distractors
+    public static final byte UNANSWERED = -1; // in an answer array
+    public static final byte OTHER_ANSWER = 4; // in an answer array: not one of the choices
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private List<String> mCategoryNames;
+    private int[] mCategories;
+    private int[] mFields;
+    private int[] mTextStarts;
+    private byte[] mText;
+    private int[] mRowsByCategory; // null until trim()
+    private int[] mCategoryStarts; // null until trim()
+    private int mRows;
+    private int mTextCount; // number of distinct pieces of text
+    private int mTextLength; // bytes of mText in use
+    private long mVersion; // hash of every row, in order (see QuestionBank.getVersion())
+    private Map<String, Integer> mTextIds; // text to text ID while loading; null once trimmed
+    private Map<String, Integer> mCategoryIds;
+
+    /**
+     * Constructor creates an empty store. Rows are added with addRow().
+     */
+    public QuestionStore() {
+        mCategoryNames = new ArrayList<String>();
+        mCategoryIds = new HashMap<String, Integer>();
+        mCategories = new int[16];
+        mFields = new int[16 * FIELDS];
+        mTextStarts = new int[64];
+        mText = new byte[1024];
+        mTextIds = new HashMap<String, Integer>();
+    }
+
+    /**
+     * Constructor reads a questions .tsv from an InputStream. Each row must have six columns
+     * (category, question, answer, and three distractors) or seven (with a user answer, which
+     * is ignored); other rows are skipped. The rows are scanned as bytes (see BankScanner), so
+     * text that repeats is only decoded once. The stream is closed when reading is done, and
+     * the store is trimmed.
+     * @param is an InputStream containing the contents of the .tsv
+     */
+    public QuestionStore(InputStream is) {
+        this();
+
+        try {
+            BankScanner scanner = new BankScanner(BankScanner.readAll(is));
+
+            while (scanner.nextLine()) {
+                if (scanner.countFields() == 6 || scanner.countFields() == 7) {
+                    addRow(scanner.field(0), scanner.field(1), scanner.field(2),
+                            scanner.field(3), scanner.field(4), scanner.field(5));
+                }
+            }
+        } catch (IOException e) {
+            Log.wtf(TAG, "QuestionStore(InputStream): error reading file" + e);
+        }
+
+        trim();
+        Log.d(TAG, "QuestionStore(InputStream): " + mRows + " rows, " + mTextCount
+                + " distinct texts, about " + estimateBytes() + " bytes");
+    }
+
+    /**
+     * addRow adds a question to the end of the store.
+     * @param category the trivia category
+     * @param question the text of the question
+     * @param answer the correct answer
+     * @param distractor1 an incorrect answer
+     * @param distractor2 an incorrect answer
+     * @param distractor3 an incorrect answer
+     * @return the row number of the new question
+     */
+    public int addRow(String category, String question, String answer,
+                      String distractor1, String distractor2, String distractor3) {
+        if (mTextIds == null) {
+            throw new IllegalStateException("rows cannot be added after trim()");
+        }
+
+        if (mRows == mCategories.length) {
+            mCategories = Arrays.copyOf(mCategories, mRows * 2);
+            mFields = Arrays.copyOf(mFields, mRows * 2 * FIELDS);
+        }
+
+        Integer categoryId = mCategoryIds.get(category);
+        if (categoryId == null) {
+            categoryId = mCategoryNames.size();
+            mCategoryNames.add(StringPool.getInstance().intern(category));
+            mCategoryIds.put(category, categoryId);
+        }
+
+        int row = mRows++;
+        mCategories[row] = categoryId;
+        mFields[row * FIELDS + QUESTION] = textId(question);
+        mFields[row * FIELDS + ANSWER] = textId(answer);
+        mFields[row * FIELDS + ANSWER + 1] = textId(distractor1);
+        mFields[row * FIELDS + ANSWER + 2] = textId(distractor2);
+        mFields[row * FIELDS + ANSWER + 3] = textId(distractor3);
+        mVersion = QuestionBank.addToVersion(mVersion, category,
+                Question.contentHash(question, answer, distractor1, distractor2, distractor3));
+        return row;
+    }
+
+    /**
+     * @return the number of categories in the store
+     */
+    public int countCategories() {
+        return mCategoryNames.size();
+    }
+
+    /**
+     * @return the number of questions in the store
+     */
+    public int countRows() {
+        return mRows;
+    }
+
+    /**
+     * countRowsIn returns the number of rows in a category. The store must have been trimmed.
+     * @param categoryId the category ID, between 0 and countCategories() - 1
+     * @return the number of rows with that category ID
+     */
+    public int countRowsIn(int categoryId) {
+        if (mCategoryStarts == null) {
+            throw new IllegalStateException("rows are grouped by category by trim()");
+        }
+        return mCategoryStarts[categoryId + 1] - mCategoryStarts[categoryId];
+    }
+
+    /**
+     * estimateBytes estimates how much heap the store's columns use.
+     * @return the estimated size in bytes
+     */
+    public long estimateBytes() {
+        long grouped = mRowsByCategory == null ? 0
+                : 4L * mRowsByCategory.length + 4L * mCategoryStarts.length;
+        return 4L * mCategories.length + 4L * mFields.length + 4L * mTextStarts.length
+                + mText.length + grouped;
+    }
+
+    /**
+     * @param row the row number, between 0 and countRows() - 1
+     * @return the category ID of the row
+     */
+    public int getCategoryId(int row) {
+        return mCategories[row];
+    }
+
+    /**
+     * getRowIn returns the row number of one of a category's rows. The rows of a category are
+     * in the order they were added. The store must have been trimmed.
+     * @param categoryId the category ID, between 0 and countCategories() - 1
+     * @param index the position of the row in its category, between 0 and
+     *              countRowsIn(categoryId) - 1
+     * @return the row number
+     */
+    public int getRowIn(int categoryId, int index) {
+        if (mCategoryStarts == null) {
+            throw new IllegalStateException("rows are grouped by category by trim()");
+        }
+        return mRowsByCategory[mCategoryStarts[categoryId] + index];
+    }
+
+    /**
+     * @param id the category ID, between 0 and countCategories() - 1
+     * @return the name of the category
+     */
+    public String getCategoryName(int id) {
+        return mCategoryNames.get(id);
+    }
+
+    /**
+     * getVersion returns a hash of every row of the store, in order. A store holding the same
+     * rows as a QuestionBank has the same version.
+     * @return the store version
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * getText decodes one field of a row from the text arena.
+     * @param row the row number, between 0 and countRows() - 1
+     * @param field QUESTION, ANSWER, or ANSWER + 1 to ANSWER + 3 for the distractors
+     * @return the text of the field
+     */
+    public String getText(int row, int field) {
+        int id = mFields[row * FIELDS + field];
+        int start = mTextStarts[id];
+        return new String(mText, start, mTextStarts[id + 1] - start, UTF_8);
+    }
+
+    /**
+     * newAnswers creates an answer array for one team, with every row unanswered. Each byte
+     * is UNANSWERED, the index of the chosen answer (0 for the correct answer, 1 to 3 for the
+     * distractors), or OTHER_ANSWER.
+     * @return an answer array with one byte per row
+     */
+    public byte[] newAnswers() {
+        byte[] answers = new byte[mRows];
+        Arrays.fill(answers, UNANSWERED);
+        return answers;
+    }
+
+    /**
+     * trim shrinks the columns to the number of rows, frees the table used to find repeated
+     * text while loading, and groups the rows by category, so that every team's categories can
+     * share one list of their rows (see getRowIn()). No rows can be added after the store is
+     * trimmed.
+     */
+    public void trim() {
+        mCategories = Arrays.copyOf(mCategories, mRows);
+        mFields = Arrays.copyOf(mFields, mRows * FIELDS);
+        mTextStarts = Arrays.copyOf(mTextStarts, mTextCount + 1);
+        mText = Arrays.copyOf(mText, mTextLength);
+        mTextIds = null;
+
+        // count the rows of each category, then place each row after the ones before it
+        int[] starts = new int[mCategoryNames.size() + 1];
+        for (int row = 0; row < mRows; row++) {
+            starts[mCategories[row] + 1]++;
+        }
+        for (int id = 0; id < mCategoryNames.size(); id++) {
+            starts[id + 1] += starts[id];
+        }
+
+        int[] next = Arrays.copyOf(starts, mCategoryNames.size());
+        int[] grouped = new int[mRows];
+        for (int row = 0; row < mRows; row++) {
+            grouped[next[mCategories[row]]++] = row;
+        }
+
+        mRowsByCategory = grouped;
+        mCategoryStarts = starts;
+    }
+
+    /**
+     * view returns a Question that reads a row of this store, with its answer kept in a
+     * team's answer array.
+     * @param answers the team's answer array, from newAnswers()
+     * @param row the row number, between 0 and countRows() - 1
+     * @return a Question backed by the store
+     */
+    public Question view(byte[] answers, int row) {
+        return new Question(this, answers, row);
+    }
+
+    /**
+     * textId returns the ID of a piece of text, adding it to the arena if it is not there yet.
+     * @param text the text
+     * @return its text ID
+     */
+    private int textId(String text) {
+        Integer id = mTextIds.get(text);
+
+        if (id != null) {
+            return id;
+        }
+
+        byte[] bytes = text.getBytes(UTF_8);
+        if (mTextLength + bytes.length > mText.length) {
+            mText = Arrays.copyOf(mText, Math.max(mText.length * 2, mTextLength + bytes.length));
+        }
+        if (mTextCount + 2 > mTextStarts.length) {
+            mTextStarts = Arrays.copyOf(mTextStarts, mTextStarts.length * 2);
+        }
+
+        System.arraycopy(bytes, 0, mText, mTextLength, bytes.length);
+        mTextStarts[mTextCount] = mTextLength;
+        mTextLength += bytes.length;
+        mTextStarts[mTextCount + 1] = mTextLength; // the end of the last piece of text
+
+        mTextIds.put(text, mTextCount);
+        return mTextCount++;
+    }
+}
@@ -0,0 +1,457 @@
+// RaffleReport is a batch tool for the raffle table. At the end of the event, the save files
+// (save####.tsv) or save directories (save####) are copied off every device into one directory,
+// and RaffleReport reads all of them and reports:
+//   - for each team: correct answers, questions answered, tickets redeemed, tickets left
+//   - for each category: how many questions were answered, and how many correctly
+//   - for each question: how many teams answered it, and how many correctly
+// Saves are read with the same parser the engine uses (TriviaEngine.readSave) and tallied in
+// parallel with a ForkJoinPool, so thousands of saves take seconds on a multi-core laptop.
+// The report is written row by row to a Writer as CSV or JSON.
+//
+// Usage: RaffleReport <directory of saves> [csv|json] [pins.tsv]
+package org.foxcroft.stem.raffle;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+public class RaffleReport
+{
+    public static final String CSV = "csv";
+    public static final String JSON = "json";
+    private static final String SAVE_PREFIX = "save";
+    private static final int SAVES_PER_TASK = 16; // saves read by one task before it splits
+
+    /**
+     * Team holds the totals for one save.
+     */
+    public static class Team
+    {
+        private final String mPin;
+        private final int mCorrect;
+        private final int mAnswered;
+        private final int mQuestions;
+        private final int mTicketsRedeemed;
+
+        public Team(String pin, int correct, int answered, int questions, int ticketsRedeemed) {
+            mPin = pin;
+            mCorrect = correct;
+            mAnswered = answered;
+            mQuestions = questions;
+            mTicketsRedeemed = ticketsRedeemed;
+        }
+
+        /**
+         * @return the team's PIN
+         */
+        public String getPin() {
+            return mPin;
+        }
+
+        /**
+         * @return the number of questions answered correctly (tickets earned)
+         */
+        public int getCorrect() {
+            return mCorrect;
+        }
+
+        /**
+         * @return the number of questions answered
+         */
+        public int getAnswered() {
+            return mAnswered;
+        }
+
+        /**
+         * @return the number of questions in the team's bank
+         */
+        public int getQuestions() {
+            return mQuestions;
+        }
+
+        /**
+         * @return the number of tickets redeemed at the raffle table
+         */
+        public int getTicketsRedeemed() {
+            return mTicketsRedeemed;
+        }
+
+        /**
+         * @return the tickets the team has earned but not redeemed yet
+         */
+        public int getUnredeemed() {
+            return mCorrect - mTicketsRedeemed;
+        }
+    }
+
+    /**
+     * Tally holds the totals for a group of saves. Two tallies are combined with add() when the
+     * tasks that built them finish. The counts in each map are {answered, correct}.
+     */
+    public static class Tally
+    {
+        private final List<Team> mTeams = new ArrayList<Team>();
+        private final Map<String, int[]> mCategories = new LinkedHashMap<String, int[]>();
+        private final Map<String, int[]> mQuestions = new LinkedHashMap<String, int[]>(); // key: category + "\t" + question
+        private final List<String> mErrors = new ArrayList<String>();
+
+        /**
+         * addSave counts every question in one team's engine.
+         * @param engine an engine read from a save
+         */
+        public void addSave(TriviaEngine engine) {
+            int correct = 0;
+            int answered = 0;
+            int questions = 0;
+
+            for (int id = 0; id < engine.countCategories(); id++) {
+                Category c = engine.getCategoryAt(id);
+                int[] categoryCounts = counts(mCategories, c.getCategory());
+
+                for (int i = 0; i < c.countQuestions(); i++) {
+                    Question q = c.getQuestion(i);
+                    int[] questionCounts = counts(mQuestions, c.getCategory() + "\t" + q.getQuestion());
+                    questions++;
+
+                    if (q.isAnswered()) {
+                        answered++;
+                        categoryCounts[0]++;
+                        questionCounts[0]++;
+                    }
+
+                    if (q.isCorrect()) {
+                        correct++;
+                        categoryCounts[1]++;
+                        questionCounts[1]++;
+                    }
+                }
+            }
+
+            mTeams.add(new Team(engine.getPin(), correct, answered, questions,
+                    engine.getTicketsRedeemed()));
+        }
+
+        /**
+         * add combines another tally into this one.
+         * @param other the tally to add
+         */
+        public void add(Tally other) {
+            mTeams.addAll(other.mTeams);
+            mErrors.addAll(other.mErrors);
+            merge(mCategories, other.mCategories);
+            merge(mQuestions, other.mQuestions);
+        }
+
+        /**
+         * @return the totals for each save
+         */
+        public List<Team> getTeams() {
+            return mTeams;
+        }
+
+        /**
+         * @return {answered, correct} for each category name
+         */
+        public Map<String, int[]> getCategories() {
+            return mCategories;
+        }
+
+        /**
+         * @return {answered, correct} for each category name + "\t" + question text
+         */
+        public Map<String, int[]> getQuestions() {
+            return mQuestions;
+        }
+
+        /**
+         * @return a message for each save that could not be read
+         */
+        public List<String> getErrors() {
+            return mErrors;
+        }
+
+        private static int[] counts(Map<String, int[]> map, String key) {
+            int[] counts = map.get(key);
+
+            if (counts == null) {
+                counts = new int[2];
+                map.put(key, counts);
+            }
+            return counts;
+        }
+
+        private static void merge(Map<String, int[]> into, Map<String, int[]> from) {
+            for (Map.Entry<String, int[]> entry : from.entrySet()) {
+                int[] counts = counts(into, entry.getKey());
+                counts[0] += entry.getValue()[0];
+                counts[1] += entry.getValue()[1];
+            }
+        }
+    }
+
+    /**
+     * TallyTask reads a range of saves, splitting the range in half until it is small enough
+     * to read in one task.
+     */
+    private static class TallyTask extends RecursiveTask<Tally>
+    {
+        private static final long serialVersionUID = 1L; // RecursiveTask is Serializable
+        private final File[] mSaves;
+        private final int mStart;
+        private final int mEnd;
+
+        TallyTask(File[] saves, int start, int end) {
+            mSaves = saves;
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        protected Tally compute() {
+            if (mEnd - mStart <= SAVES_PER_TASK) {
+                Tally tally = new Tally();
+
+                for (int i = mStart; i < mEnd; i++) {
+                    try {
+                        tally.addSave(TriviaEngine.readSave(mSaves[i]));
+                    } catch (IOException e) {
+                        tally.getErrors().add(mSaves[i].getName() + ": " + e.getMessage());
+                    }
+                }
+                return tally;
+            }
+
+            int middle = (mStart + mEnd) / 2;
+            TallyTask left = new TallyTask(mSaves, mStart, middle);
+            left.fork();
+            Tally tally = new TallyTask(mSaves, middle, mEnd).compute();
+            tally.add(left.join());
+            return tally;
+        }
+    }
+
+    /**
+     * findSaves lists the saves in a directory: files named save####.tsv and directories
+     * named save####. If a team has both, only the directory (the newer format) is used.
+     * @param directory the directory the saves were copied into
+     * @return the saves, sorted by name
+     */
+    public static File[] findSaves(File directory) {
+        File[] files = directory.listFiles();
+        List<File> saves = new ArrayList<File>();
+
+        if (files == null) {
+            return new File[0];
+        }
+
+        Arrays.sort(files);
+        for (File f : files) {
+            String name = f.getName();
+
+            if (!name.startsWith(SAVE_PREFIX)) {
+                continue;
+            }
+
+            if (f.isDirectory() && new File(f, SegmentedSave.MANIFEST).isFile()) {
+                saves.add(f);
+            } else if (f.isFile() && name.endsWith(".tsv")) {
+                String dirName = name.substring(0, name.length() - ".tsv".length());
+
+                if (!new File(directory, dirName + File.separator + SegmentedSave.MANIFEST).isFile()) {
+                    saves.add(f);
+                }
+            }
+        }
+
+        return saves.toArray(new File[saves.size()]);
+    }
+
+    /**
+     * tally reads every save in parallel.
+     * @param saves the saves returned by findSaves
+     * @param pool the pool to run the tasks in
+     * @return the combined tally
+     */
+    public static Tally tally(File[] saves, ForkJoinPool pool) {
+        return pool.invoke(new TallyTask(saves, 0, saves.length));
+    }
+
+    /**
+     * writeCsv writes the tally as CSV. Each row starts with its kind (team, category, or
+     * question), and each kind has its own header row.
+     * @param tally the combined tally
+     * @param registry used to look up team names (may be null)
+     * @param out where the report is written
+     */
+    public static void writeCsv(Tally tally, TeamRegistry registry, Writer out) throws IOException {
+        out.write("kind,pin,team,correct,answered,questions,tickets_redeemed,tickets_unredeemed\n");
+        for (Team t : sortedTeams(tally)) {
+            out.write("team," + csv(t.getPin()) + "," + csv(teamName(registry, t.getPin())) + ","
+                    + t.getCorrect() + "," + t.getAnswered() + "," + t.getQuestions() + ","
+                    + t.getTicketsRedeemed() + "," + t.getUnredeemed() + "\n");
+        }
+
+        out.write("kind,category,answered,correct,rate\n");
+        for (Map.Entry<String, int[]> entry : tally.getCategories().entrySet()) {
+            int[] counts = entry.getValue();
+            out.write("category," + csv(entry.getKey()) + "," + counts[0] + "," + counts[1] + ","
+                    + rate(counts) + "\n");
+        }
+
+        out.write("kind,category,question,answered,correct,rate\n");
+        for (Map.Entry<String, int[]> entry : tally.getQuestions().entrySet()) {
+            String[] key = entry.getKey().split("\t", 2);
+            int[] counts = entry.getValue();
+            out.write("question," + csv(key[0]) + "," + csv(key[1]) + "," + counts[0] + ","
+                    + counts[1] + "," + rate(counts) + "\n");
+        }
+        out.flush();
+    }
+
+    /**
+     * writeJson writes the tally as a JSON object with "teams", "categories", "questions",
+     * and "errors" arrays.
+     * @param tally the combined tally
+     * @param registry used to look up team names (may be null)
+     * @param out where the report is written
+     */
+    public static void writeJson(Tally tally, TeamRegistry registry, Writer out) throws IOException {
+        String separator = "\n";
+
+        out.write("{\"teams\":[");
+        for (Team t : sortedTeams(tally)) {
+            out.write(separator + "{\"pin\":" + json(t.getPin())
+                    + ",\"team\":" + json(teamName(registry, t.getPin()))
+                    + ",\"correct\":" + t.getCorrect()
+                    + ",\"answered\":" + t.getAnswered()
+                    + ",\"questions\":" + t.getQuestions()
+                    + ",\"ticketsRedeemed\":" + t.getTicketsRedeemed()
+                    + ",\"ticketsUnredeemed\":" + t.getUnredeemed() + "}");
+            separator = ",\n";
+        }
+
+        out.write("],\n\"categories\":[");
+        separator = "\n";
+        for (Map.Entry<String, int[]> entry : tally.getCategories().entrySet()) {
+            int[] counts = entry.getValue();
+            out.write(separator + "{\"category\":" + json(entry.getKey())
+                    + ",\"answered\":" + counts[0] + ",\"correct\":" + counts[1]
+                    + ",\"rate\":" + rate(counts) + "}");
+            separator = ",\n";
+        }
+
+        out.write("],\n\"questions\":[");
+        separator = "\n";
+        for (Map.Entry<String, int[]> entry : tally.getQuestions().entrySet()) {
+            String[] key = entry.getKey().split("\t", 2);
+            int[] counts = entry.getValue();
+            out.write(separator + "{\"category\":" + json(key[0]) + ",\"question\":" + json(key[1])
+                    + ",\"answered\":" + counts[0] + ",\"correct\":" + counts[1]
+                    + ",\"rate\":" + rate(counts) + "}");
+            separator = ",\n";
+        }
+
+        out.write("],\n\"errors\":[");
+        separator = "\n";
+        for (String error : tally.getErrors()) {
+            out.write(separator + json(error));
+            separator = ",\n";
+        }
+        out.write("]}\n");
+        out.flush();
+    }
+
+    /**
+     * main reads a directory of saves and prints the report to standard output.
+     * @param args the directory of saves, then optionally "csv" or "json" (the default is
+     *             csv), then optionally the path to pins.tsv for team names
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: RaffleReport <directory of saves> [csv|json] [pins.tsv]");
+            System.exit(1);
+        }
+
+        String format = args.length > 1 ? args[1] : CSV;
+        TeamRegistry registry = null;
+        if (args.length > 2) {
+            registry = new TeamRegistry(new FileInputStream(args[2]));
+        }
+
+        long start = System.nanoTime();
+        File[] saves = findSaves(new File(args[0]));
+        Tally tally = tally(saves, ForkJoinPool.commonPool());
+        long elapsed = System.nanoTime() - start;
+
+        Writer out = new PrintWriter(new OutputStreamWriter(System.out, "UTF-8"));
+        if (format.equals(JSON)) {
+            writeJson(tally, registry, out);
+        } else {
+            writeCsv(tally, registry, out);
+        }
+
+        System.err.println(String.format("Read %d saves in %d ms (%d could not be read)",
+                saves.length, elapsed / 1000000, tally.getErrors().size()));
+        for (String error : tally.getErrors()) {
+            System.err.println(error);
+        }
+    }
+
+    private static List<Team> sortedTeams(Tally tally) {
+        List<Team> teams = new ArrayList<Team>(tally.getTeams());
+        Collections.sort(teams, new Comparator<Team>() {
+            @Override
+            public int compare(Team a, Team b) {
+                return a.getPin().compareTo(b.getPin());
+            }
+        });
+        return teams;
+    }
+
+    private static String teamName(TeamRegistry registry, String pin) {
+        return registry == null ? "" : registry.getTeamName(pin);
+    }
+
+    private static String rate(int[] counts) {
+        return counts[0] == 0 ? "0" : String.format("%.3f", (double) counts[1] / counts[0]);
+    }
+
+    private static String csv(String s) {
+        if (s == null) {
+            return "";
+        }
+        return "\"" + s.replace("\"", "\"\"") + "\"";
+    }
+
+    private static String json(String s) {
+        if (s == null) {
+            return "null";
+        }
+
+        StringBuilder str = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+
+            if (ch == '"' || ch == '\\') {
+                str.append('\\').append(ch);
+            } else if (ch < 0x20) {
+                str.append(String.format("\\u%04x", (int) ch));
+            } else {
+                str.append(ch);
+            }
+        }
+        return str.append("\"").toString();
+    }
+}
@@ -0,0 +1,372 @@
+// RaffleServer collects the events of every team in one place while the competition is running,
+// so the raffle table does not have to wait for the saves to be copied off each device. Devices
+// push to it with RaffleSyncClient. It can be run on localhost for testing.
+// Each push is a batch of the team's answer and redemption events (see EngineEvent) that the
+// server has not acknowledged yet. Events are delta-encoded against the one before them, so
+// sequence numbers and times, which only grow by small amounts, are sent as short numbers:
+//   SYNC  PIN  log ID  count  base sequence  base time
+//   sequence - previous sequence  time - previous time  type  category id  question index
+//       value  fingerprint (hex)
+//   ... (count lines in all)
+// where the log ID is the device's EventLog.getLogId(), the first event is compared against
+// the base sequence and base time, and the type is sent as its first letter. The fingerprint
+// (see EngineEvent) lets the raffle table find the question after the bank has been reloaded,
+// when the category ID and question index may point somewhere else.
+// Sequence numbers start again at 1 when a device's log is reset, so events are stored by
+// (PIN, log ID): each log gets its own copy of the team's EventLog, in save<PIN>/log<ID> in the
+// server's directory. The base sequence must be the last sequence number the server has stored
+// for that log. If it is, the events are stored and the server answers with the new last
+// sequence number:
+//   ACK  PIN  last sequence
+// If it is not (the device never received an ACK, or lost track of what it sent), nothing is
+// stored and the server answers with the last sequence number it does have, so the device can
+// start again from there:
+//   ERROR  PIN  last sequence  message
+// A batch of no events just asks for the last sequence number.
+// Each connection is served on its own thread, and one connection can carry any number of
+// batches.
+//
+// Usage: RaffleServer <directory> [port]
+package org.foxcroft.stem.raffle;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class RaffleServer
+{
+    private static final String TAG = "RaffleServer";
+    public static final int DEFAULT_PORT = 5757;
+    public static final String SYNC = "SYNC";
+    public static final String ACK = "ACK";
+    public static final String ERROR = "ERROR";
+    public static final int MAX_BATCH = 1024; // most events accepted in one batch
+    private static final int READ_TIMEOUT_MS = 30000;
+    private static final String SAVE_PREFIX = "save";
+    private static final String LOG_PREFIX = "log";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private final File mDirectory;
+    private final Map<String, EventLog> mLogs; // by PIN and log ID, opened on the first sync
+    private ServerSocket mServerSocket;
+    private ExecutorService mConnections;
+    private final Set<Socket> mSockets = new HashSet<Socket>(); // connections being served
+    private long mEventsReceived;
+    private long mEventsStored;
+
+    /**
+     * Constructor accepts the directory where team events are stored.
+     * @param directory the server's directory, with one save<PIN> directory for each team,
+     *                  holding one log<ID> directory for each device log
+     */
+    public RaffleServer(File directory) {
+        mDirectory = directory;
+        mLogs = new HashMap<String, EventLog>();
+    }
+
+    /**
+     * start listens for devices on a port, and returns once the server is listening.
+     * @param address the address to listen on (InetAddress.getLoopbackAddress() for testing),
+     *                or null for every address
+     * @param port the port to listen on, or 0 for any free port
+     * @throws IOException if the port cannot be opened
+     */
+    public synchronized void start(InetAddress address, int port) throws IOException {
+        mServerSocket = new ServerSocket(port, 50, address);
+        mConnections = Executors.newCachedThreadPool(); // a thread per connection
+
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, TAG);
+        acceptor.start();
+        Log.d(TAG, "start(): listening on " + mServerSocket.getLocalSocketAddress());
+    }
+
+    /**
+     * stop closes the port and every open connection. Closing a connection's socket wakes the
+     * thread that is reading from it, which interrupting the thread would not.
+     * @throws IOException if the port cannot be closed
+     */
+    public synchronized void stop() throws IOException {
+        if (mServerSocket != null) {
+            mServerSocket.close();
+            mConnections.shutdownNow();
+
+            for (Socket socket : mSockets) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    Log.d(TAG, "stop(): " + e);
+                }
+            }
+            mSockets.clear();
+        }
+    }
+
+    /**
+     * @return the port the server is listening on
+     */
+    public synchronized int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    /**
+     * getLastSequence returns the last sequence number stored for one of a team's logs.
+     * @param pin the team's PIN
+     * @param logId the device's log ID
+     * @return the sequence number, or 0 if the log has not synced
+     * @throws IOException if the PIN or log ID is not valid
+     */
+    public long getLastSequence(String pin, String logId) throws IOException {
+        return logFor(pin, logId).getLastSequence();
+    }
+
+    /**
+     * ingest stores a batch of events from one of a team's logs, skipping any that are already
+     * stored.
+     * @param pin the team's PIN
+     * @param logId the device's log ID
+     * @param events the events, in order of sequence number
+     * @return the last sequence number stored for the log
+     * @throws IOException if the events cannot be written
+     */
+    public long ingest(String pin, String logId, List<EngineEvent> events) throws IOException {
+        EventLog log = logFor(pin, logId);
+        int stored = log.ingest(events);
+
+        synchronized (this) {
+            mEventsReceived += events.size();
+            mEventsStored += stored;
+        }
+        return log.getLastSequence();
+    }
+
+    /**
+     * toString summarizes the server for the log.
+     * @return the number of teams, and the events received and stored
+     */
+    @Override
+    public synchronized String toString() {
+        return String.format("%s: %d device logs, %d events received, %d stored",
+                TAG, mLogs.size(), mEventsReceived, mEventsStored);
+    }
+
+    /**
+     * writeBatch sends a batch of events in the format described at the top of this file.
+     * @param out where to write the batch
+     * @param pin the team's PIN
+     * @param logId the ID of the log the events came from
+     * @param events the events, in order of sequence number
+     * @param baseSequence the last sequence number the server has stored for the log
+     * @throws IOException if the batch cannot be written
+     */
+    public static void writeBatch(Writer out, String pin, String logId, List<EngineEvent> events,
+                                  long baseSequence) throws IOException {
+        long baseTime = events.isEmpty() ? 0 : events.get(0).getTime();
+        long sequence = baseSequence;
+        long time = baseTime;
+
+        out.write(SYNC + "\t" + pin + "\t" + logId + "\t" + events.size() + "\t" + baseSequence
+                + "\t" + baseTime + "\n");
+        for (EngineEvent event : events) {
+            out.write((event.getSequence() - sequence) + "\t" + (event.getTime() - time)
+                    + "\t" + event.getType().charAt(0) + "\t" + event.getCategoryId()
+                    + "\t" + event.getQuestionIndex() + "\t" + event.getValue()
+                    + "\t" + Long.toHexString(event.getFingerprint()) + "\n");
+            sequence = event.getSequence();
+            time = event.getTime();
+        }
+        out.flush();
+    }
+
+    /**
+     * readBatch reads the events of a batch, after its SYNC line has been read.
+     * @param in where to read the events
+     * @param header the fields of the SYNC line
+     * @return the events, with their sequence numbers and times restored
+     * @throws IOException if the batch cannot be read or is not valid
+     */
+    public static List<EngineEvent> readBatch(BufferedReader in, String[] header) throws IOException {
+        int count = Integer.parseInt(header[3]);
+        long sequence = Long.parseLong(header[4]);
+        long time = Long.parseLong(header[5]);
+        List<EngineEvent> events = new ArrayList<EngineEvent>();
+
+        if (count < 0 || count > MAX_BATCH) {
+            throw new IOException("batch too large: " + count);
+        }
+
+        for (int i = 0; i < count; i++) {
+            String line = in.readLine();
+            String[] tokens = line == null ? new String[0] : line.split("\t");
+
+            if (tokens.length != 7 || Long.parseLong(tokens[0]) <= 0) {
+                throw new IOException("not an event: " + line);
+            }
+
+            sequence += Long.parseLong(tokens[0]);
+            time += Long.parseLong(tokens[1]);
+            events.add(new EngineEvent(sequence, time, eventType(tokens[2]),
+                    Integer.parseInt(tokens[3]), Integer.parseInt(tokens[4]),
+                    Integer.parseInt(tokens[5]), Long.parseUnsignedLong(tokens[6], 16)));
+        }
+
+        return events;
+    }
+
+    /**
+     * accept waits for devices to connect, and serves each one on its own thread, until the
+     * server is stopped.
+     */
+    private void accept() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                synchronized (this) {
+                    if (mServerSocket.isClosed()) {
+                        socket.close(); // stop() ran while the device was connecting
+                        return;
+                    }
+                    mSockets.add(socket);
+                }
+                mConnections.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException e) {
+                if (!mServerSocket.isClosed()) {
+                    Log.d(TAG, "accept(): " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * serve reads batches from one device and answers each one, until the device hangs up.
+     * @param socket the device's connection
+     */
+    private void serve(Socket socket) {
+        try {
+            socket.setSoTimeout(READ_TIMEOUT_MS);
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), UTF_8));
+            Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), UTF_8));
+            String line = "";
+
+            while ((line = in.readLine()) != null) {
+                String[] header = line.split("\t");
+
+                if (header.length != 6 || !header[0].equals(SYNC)) {
+                    out.write(ERROR + "\tnot a batch\n");
+                    out.flush();
+                    return;
+                }
+
+                String pin = header[1];
+                List<EngineEvent> events = readBatch(in, header);
+                long base = Long.parseLong(header[4]);
+                EventLog log = logFor(pin, header[2]);
+
+                synchronized (log) { // so another connection from the same log cannot store in between
+                    long last = log.getLastSequence();
+                    if (events.isEmpty() || base == last) {
+                        last = ingest(pin, header[2], events);
+                        out.write(ACK + "\t" + pin + "\t" + last + "\n");
+                    } else {
+                        out.write(ERROR + "\t" + pin + "\t" + last + "\tbatch starts after "
+                                + base + "\n");
+                    }
+                }
+                out.flush();
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.d(TAG, "serve(): " + socket.getRemoteSocketAddress() + ": " + e);
+        } finally {
+            synchronized (this) {
+                mSockets.remove(socket);
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.d(TAG, "serve(): " + e);
+            }
+        }
+    }
+
+    /**
+     * logFor returns the server's copy of one of a team's logs, opening it the first time the
+     * log syncs.
+     * @param pin the team's PIN
+     * @param logId the device's log ID
+     * @return the log in the server's directory
+     * @throws IOException if the PIN or log ID is not valid
+     */
+    private synchronized EventLog logFor(String pin, String logId) throws IOException {
+        // both become part of a file name, so only letters and digits are allowed
+        if (pin.isEmpty() || !pin.matches("[A-Za-z0-9]+")) {
+            throw new IOException("not a valid PIN: " + pin);
+        }
+        if (!logId.matches("[0-9a-f]{16}")) {
+            throw new IOException("not a valid log ID: " + logId);
+        }
+
+        String key = pin + "/" + logId;
+        EventLog log = mLogs.get(key);
+        if (log == null) {
+            log = new EventLog(new File(new File(mDirectory, SAVE_PREFIX + pin), LOG_PREFIX + logId));
+            mLogs.put(key, log);
+        }
+        return log;
+    }
+
+    /**
+     * eventType turns the first letter of an event type back into the type.
+     * @param letter A, U, L, or R
+     * @return EngineEvent.ANSWERED, UNLOCKED, LOCKED, or REDEEMED
+     * @throws IOException if the letter is not an event type
+     */
+    private static String eventType(String letter) throws IOException {
+        String[] types = { EngineEvent.ANSWERED, EngineEvent.UNLOCKED,
+                EngineEvent.LOCKED, EngineEvent.REDEEMED };
+
+        for (String type : types) {
+            if (type.substring(0, 1).equals(letter)) {
+                return type;
+            }
+        }
+        throw new IOException("not an event type: " + letter);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: RaffleServer <directory> [port]");
+            System.exit(1);
+        }
+
+        RaffleServer server = new RaffleServer(new File(args[0]));
+        server.start(null, args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT);
+        System.err.println("Listening on port " + server.getPort());
+    }
+}
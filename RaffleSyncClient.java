@@ -0,0 +1,241 @@
+// RaffleSyncClient pushes a device's answer and redemption events to a RaffleServer. For each
+// team it remembers the last sequence number the server acknowledged, in a small file next to
+// the team's event log, so each sync only sends the events recorded since then. Events are read
+// from the team's EventLog and sent in batches of up to BATCH_SIZE, delta-encoded by
+// RaffleServer.writeBatch. Unlock and lock events are not sent, since the raffle table only
+// needs answers and redemptions.
+// Batches are sent with the log's ID (see EventLog.getLogId()), and each one says which
+// sequence number it follows. If the server has stored a different number of events for the
+// log (an ACK was lost, or the file of acknowledged events was), it answers ERROR with the last
+// sequence number it has, and the team's events are sent again from there.
+//
+// Usage: RaffleSyncClient <host> <port> <directory of save directories>
+package org.foxcroft.stem.raffle;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+public class RaffleSyncClient
+{
+    private static final String TAG = "RaffleSyncClient";
+    public static final String SYNCED = "synced.txt"; // last sequence acknowledged by the server
+    public static final int BATCH_SIZE = 256;
+    private static final int TIMEOUT_MS = 10000;
+    private static final String SAVE_PREFIX = "save";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private final String mHost;
+    private final int mPort;
+
+    /**
+     * Constructor accepts the address of the server.
+     * @param host the server's host name or address
+     * @param port the server's port
+     */
+    public RaffleSyncClient(String host, int port) {
+        mHost = host;
+        mPort = port;
+    }
+
+    /**
+     * sync pushes one team's new events to the server.
+     * @param pin the team's PIN
+     * @param log the team's event log
+     * @return the number of events the server acknowledged
+     * @throws IOException if the server cannot be reached or does not acknowledge the events
+     */
+    public int sync(String pin, EventLog log) throws IOException {
+        List<String> pins = new ArrayList<String>();
+        List<EventLog> logs = new ArrayList<EventLog>();
+        pins.add(pin);
+        logs.add(log);
+        return sync(pins, logs);
+    }
+
+    /**
+     * sync pushes the new events of several teams to the server over one connection.
+     * @param pins the teams' PINs
+     * @param logs the teams' event logs, in the same order as pins
+     * @return the number of events the server acknowledged
+     * @throws IOException if the server cannot be reached or does not acknowledge the events
+     */
+    public int sync(List<String> pins, List<EventLog> logs) throws IOException {
+        Socket socket = new Socket();
+        int sent = 0;
+
+        try {
+            socket.connect(new InetSocketAddress(mHost, mPort), TIMEOUT_MS);
+            socket.setSoTimeout(TIMEOUT_MS);
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), UTF_8));
+            Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), UTF_8));
+
+            for (int i = 0; i < pins.size(); i++) {
+                sent += syncTeam(pins.get(i), logs.get(i), in, out);
+            }
+        } finally {
+            socket.close();
+        }
+
+        Log.d(TAG, "sync(): " + sent + " events acknowledged for " + pins.size() + " teams");
+        return sent;
+    }
+
+    /**
+     * readSynced returns the last sequence number the server acknowledged for a team.
+     * @param log the team's event log
+     * @return the sequence number, or 0 if the team has never synced
+     */
+    public static long readSynced(EventLog log) {
+        File file = new File(log.getDirectory(), SYNCED);
+
+        if (!file.isFile()) {
+            return 0;
+        }
+
+        try {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), UTF_8));
+            try {
+                return Long.parseLong(reader.readLine().trim());
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.d(TAG, "readSynced(): " + e);
+            return 0; // the server answers ERROR with what it does have
+        }
+    }
+
+    /**
+     * syncTeam sends one team's events in batches, and waits for each batch to be
+     * acknowledged before sending the next. If the server answers ERROR with its own last
+     * sequence number, sending starts again after it; a second ERROR in a row means the two
+     * cannot agree, and the sync fails.
+     * @param pin the team's PIN
+     * @param log the team's event log
+     * @param in the server's replies
+     * @param out the connection to the server
+     * @return the number of events acknowledged
+     * @throws IOException if a batch is not acknowledged
+     */
+    private static int syncTeam(String pin, EventLog log, BufferedReader in, Writer out)
+            throws IOException {
+        String logId = log.getLogId();
+        long base = readSynced(log); // the last sequence number the server has stored
+        List<EngineEvent> events = eventsAfter(log, base);
+        boolean resynced = false;
+        int sent = 0;
+
+        int start = 0;
+        while (start < events.size()) {
+            int end = Math.min(start + BATCH_SIZE, events.size());
+            List<EngineEvent> batch = events.subList(start, end);
+            RaffleServer.writeBatch(out, pin, logId, batch, base);
+
+            String reply = in.readLine();
+            String[] tokens = reply == null ? new String[0] : reply.split("\t");
+            if (tokens.length == 4 && tokens[0].equals(RaffleServer.ERROR) && tokens[1].equals(pin)
+                    && !resynced) {
+                // start again after the last event the server has
+                base = Long.parseLong(tokens[2]);
+                writeSynced(log, base);
+                events = eventsAfter(log, base);
+                start = 0;
+                resynced = true;
+                Log.d(TAG, "syncTeam(): " + pin + " resumes after " + base + ": " + tokens[3]);
+                continue;
+            }
+            if (tokens.length != 3 || !tokens[0].equals(RaffleServer.ACK) || !tokens[1].equals(pin)) {
+                throw new IOException("server did not acknowledge " + pin + ": " + reply);
+            }
+
+            base = Long.parseLong(tokens[2]);
+            writeSynced(log, base);
+            sent += batch.size();
+            start = end;
+            resynced = false;
+        }
+
+        return sent;
+    }
+
+    /**
+     * eventsAfter reads the events of a team that are sent to the server.
+     * @param log the team's event log
+     * @param afterSequence only events with a larger sequence number are returned
+     * @return the answer and redemption events, in order
+     * @throws IOException if the log cannot be read
+     */
+    private static List<EngineEvent> eventsAfter(EventLog log, long afterSequence) throws IOException {
+        List<EngineEvent> events = new ArrayList<EngineEvent>();
+
+        for (EngineEvent event : log.readEvents(afterSequence)) {
+            if (event.getType().equals(EngineEvent.ANSWERED)
+                    || event.getType().equals(EngineEvent.REDEEMED)) {
+                events.add(event);
+            }
+        }
+        return events;
+    }
+
+    /**
+     * writeSynced remembers the last sequence number the server acknowledged for a team.
+     * @param log the team's event log
+     * @param sequence the sequence number
+     * @throws IOException if the file cannot be written
+     */
+    private static void writeSynced(EventLog log, long sequence) throws IOException {
+        File temp = new File(log.getDirectory(), SYNCED + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+
+        try {
+            out.write((sequence + "\n").getBytes(UTF_8));
+        } finally {
+            out.close();
+        }
+
+        if (!temp.renameTo(new File(log.getDirectory(), SYNCED))) {
+            throw new IOException("could not replace " + SYNCED);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: RaffleSyncClient <host> <port> <directory of save directories>");
+            System.exit(1);
+        }
+
+        List<String> pins = new ArrayList<String>();
+        List<EventLog> logs = new ArrayList<EventLog>();
+        File[] files = new File(args[2]).listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory() && file.getName().startsWith(SAVE_PREFIX)
+                        && new File(file, EventLog.EVENTS).isFile()) {
+                    pins.add(file.getName().substring(SAVE_PREFIX.length()));
+                    logs.add(new EventLog(file));
+                }
+            }
+        }
+
+        long start = System.nanoTime();
+        int sent = new RaffleSyncClient(args[0], Integer.parseInt(args[1])).sync(pins, logs);
+        System.err.println(String.format("Synced %d events for %d teams in %d ms",
+                sent, pins.size(), (System.nanoTime() - start) / 1000000));
+    }
+}
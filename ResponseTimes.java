@@ -0,0 +1,530 @@
+// ResponseTimes class records how long a team takes with each question, for tuning how hard
+// the banks are and how the raffle is paced. Each engine has one (see
+// TriviaEngine.getResponseTimes()). A response is timed from the moment the question is shown
+// (shown()) until it is answered (submitted()) or skipped (skipped()), using System.nanoTime(),
+// which is not changed by the wall clock being set.
+// Every response is kept twice:
+//   - in a ring buffer of the most recent RING_SIZE responses, held in primitive arrays so that
+//     recording one allocates nothing
+//   - in a Histogram for the question (by fingerprint, so it survives bank changes, see
+//     Question.getFingerprint()) and one for its category (by name)
+// A Histogram counts responses in BUCKETS buckets that double in width: under 1 second, 1-2,
+// 2-4, 4-8, ... 64-128 seconds, and 128 seconds or more. Skips and submits are counted apart.
+// The histograms are saved next to the team's segmented save, in the file FILE, one question
+// per line:
+//   fingerprint(hex)\tcategory\tsubmitted counts (comma separated)\tskipped counts\tsubmitted ms\tskipped ms
+// The ring buffer is not saved. Category histograms are rebuilt from the questions when the
+// file is read.
+// Responses that have not been saved yet are also kept apart (pending). write() reads the file
+// again and adds the pending responses to what is in it, so an engine that started without
+// reading the file (or another engine saving to the same directory) never wipes out the
+// responses already saved there; read() keeps the pending responses too.
+package org.foxcroft.stem.raffle;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ResponseTimes
+{
+    private static final String TAG = "ResponseTimes";
+    public static final String FILE = "times.tsv";
+    public static final int SUBMITTED = 0;
+    public static final int SKIPPED = 1;
+    public static final int BUCKETS = 9;
+    public static final int RING_SIZE = 256;
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    // the most recent responses; mNext is where the next one goes
+    private final long[] mRecentFingerprints = new long[RING_SIZE];
+    private final int[] mRecentMillis = new int[RING_SIZE];
+    private final byte[] mRecentKinds = new byte[RING_SIZE];
+    private final boolean[] mRecentCorrect = new boolean[RING_SIZE];
+    private int mNext;
+    private int mRecentCount;
+
+    private final Map<Long, Histogram> mQuestions = new HashMap<Long, Histogram>();
+    private final Map<String, Histogram> mCategories = new HashMap<String, Histogram>();
+    private final Map<Long, Histogram> mPending = new HashMap<Long, Histogram>(); // not saved yet
+
+    private Question mShown = Question.NO_QUESTION; // the question being timed
+    private String mShownCategory;
+    private long mShownAt; // System.nanoTime() when mShown was shown
+
+    /**
+     * Histogram class counts the responses to one question, or to every question in a category.
+     */
+    public static class Histogram
+    {
+        private final int[][] mCounts = new int[2][BUCKETS];
+        private final long[] mTotalMillis = new long[2];
+        private String mCategory; // the category of a question's histogram, for write()
+
+        /**
+         * add counts one response.
+         * @param kind SUBMITTED or SKIPPED
+         * @param millis how long the response took
+         */
+        private void add(int kind, long millis) {
+            mCounts[kind][bucketFor(millis)]++;
+            mTotalMillis[kind] += millis;
+        }
+
+        /**
+         * addAll counts every response in another histogram.
+         * @param other the histogram to add
+         */
+        private void addAll(Histogram other) {
+            for (int kind = SUBMITTED; kind <= SKIPPED; kind++) {
+                for (int b = 0; b < BUCKETS; b++) {
+                    mCounts[kind][b] += other.mCounts[kind][b];
+                }
+                mTotalMillis[kind] += other.mTotalMillis[kind];
+            }
+        }
+
+        /**
+         * @param kind SUBMITTED or SKIPPED
+         * @return the number of responses of that kind
+         */
+        public int count(int kind) {
+            int total = 0;
+            for (int count : mCounts[kind]) {
+                total += count;
+            }
+            return total;
+        }
+
+        /**
+         * @param kind SUBMITTED or SKIPPED
+         * @param bucket a bucket, from 0 to BUCKETS - 1
+         * @return the number of responses of that kind in the bucket
+         */
+        public int countIn(int kind, int bucket) {
+            return mCounts[kind][bucket];
+        }
+
+        /**
+         * @param kind SUBMITTED or SKIPPED
+         * @return the average time of the responses of that kind, or 0 if there are none
+         */
+        public long getMeanMillis(int kind) {
+            int count = count(kind);
+            return count == 0 ? 0 : mTotalMillis[kind] / count;
+        }
+
+        /**
+         * getPercentileMillis estimates a percentile of the response times, as the upper bound
+         * of the bucket it falls in.
+         * @param kind SUBMITTED or SKIPPED
+         * @param percent the percentile, from 0 to 100 (50 for the median)
+         * @return the upper bound in milliseconds, Long.MAX_VALUE for the last bucket, or 0 if
+         *         there are no responses
+         */
+        public long getPercentileMillis(int kind, int percent) {
+            int count = count(kind);
+            if (count == 0) {
+                return 0;
+            }
+
+            long target = Math.max(1, ((long) count * percent + 99) / 100);
+            int seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += mCounts[kind][b];
+                if (seen >= target) {
+                    return upperBoundMillis(b);
+                }
+            }
+            return upperBoundMillis(BUCKETS - 1);
+        }
+
+        /**
+         * getSkipRate returns the share of responses that were skips.
+         * @return skips divided by all responses, or 0 if there are none
+         */
+        public double getSkipRate() {
+            int skipped = count(SKIPPED);
+            int total = skipped + count(SUBMITTED);
+            return total == 0 ? 0 : (double) skipped / total;
+        }
+
+        /**
+         * toString summarizes the histogram for the log.
+         * @return the counts, averages, and medians of both kinds
+         */
+        @Override
+        public String toString() {
+            return String.format("submitted %d (mean %d ms, median < %d ms), skipped %d (mean %d ms)",
+                    count(SUBMITTED), getMeanMillis(SUBMITTED), getPercentileMillis(SUBMITTED, 50),
+                    count(SKIPPED), getMeanMillis(SKIPPED));
+        }
+    }
+
+    /**
+     * bucketFor finds the bucket that a response time is counted in.
+     * @param millis the response time
+     * @return 0 for under a second, b for 2^(b-1) to 2^b seconds, up to BUCKETS - 1
+     */
+    public static int bucketFor(long millis) {
+        long seconds = millis / 1000;
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(seconds));
+    }
+
+    /**
+     * upperBoundMillis returns the time that every response in a bucket is under.
+     * @param bucket a bucket, from 0 to BUCKETS - 1
+     * @return the bound in milliseconds, or Long.MAX_VALUE for the last bucket
+     */
+    public static long upperBoundMillis(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : 1000L << bucket;
+    }
+
+    /**
+     * shown starts timing a question. Showing the question that is already being timed again
+     * (when the screen is redrawn) keeps the time it was first shown.
+     * @param q the question on the screen (NO_QUESTION stops timing)
+     * @param category the name of the question's category
+     */
+    public synchronized void shown(Question q, String category) {
+        if (q.sameAs(mShown)) {
+            return;
+        }
+        mShown = q;
+        mShownCategory = category;
+        mShownAt = System.nanoTime();
+    }
+
+    /**
+     * submitted records the time since a question was shown, if it is the question being timed.
+     * @param q the question that was answered
+     * @param correct true if it was answered correctly
+     */
+    public synchronized void submitted(Question q, boolean correct) {
+        finish(q, SUBMITTED, correct);
+    }
+
+    /**
+     * skipped records the time since a question was shown, if it is the question being timed.
+     * @param q the question that was skipped
+     */
+    public synchronized void skipped(Question q) {
+        finish(q, SKIPPED, false);
+    }
+
+    /**
+     * @return the number of responses in the ring buffer, at most RING_SIZE
+     */
+    public synchronized int countRecent() {
+        return mRecentCount;
+    }
+
+    /**
+     * @param i 0 for the most recent response, up to countRecent() - 1
+     * @return the fingerprint of the question
+     */
+    public synchronized long getRecentFingerprint(int i) {
+        return mRecentFingerprints[slot(i)];
+    }
+
+    /**
+     * @param i 0 for the most recent response, up to countRecent() - 1
+     * @return SUBMITTED or SKIPPED
+     */
+    public synchronized int getRecentKind(int i) {
+        return mRecentKinds[slot(i)];
+    }
+
+    /**
+     * @param i 0 for the most recent response, up to countRecent() - 1
+     * @return how long the response took, in milliseconds
+     */
+    public synchronized int getRecentMillis(int i) {
+        return mRecentMillis[slot(i)];
+    }
+
+    /**
+     * @param i 0 for the most recent response, up to countRecent() - 1
+     * @return true if the question was answered correctly
+     */
+    public synchronized boolean isRecentCorrect(int i) {
+        return mRecentCorrect[slot(i)];
+    }
+
+    /**
+     * getQuestionHistogram returns a copy of the histogram of one question.
+     * @param q the question
+     * @return the histogram, which is empty if the question has no responses
+     */
+    public synchronized Histogram getQuestionHistogram(Question q) {
+        return copyOf(mQuestions.get(q.getFingerprint()));
+    }
+
+    /**
+     * getCategoryHistogram returns a copy of the histogram of every question in a category.
+     * @param category the name of the category
+     * @return the histogram, which is empty if the category has no responses
+     */
+    public synchronized Histogram getCategoryHistogram(String category) {
+        return copyOf(mCategories.get(category));
+    }
+
+    /**
+     * @return true if there are responses that have not been saved
+     */
+    public synchronized boolean isDirty() {
+        return !mPending.isEmpty();
+    }
+
+    /**
+     * measure adds the ring buffer and histograms to a footprint (see HeapFootprint).
+     * @param footprint the footprint to add to
+     */
+    public synchronized void measure(HeapFootprint footprint) {
+        // 9 references; mNext, mRecentCount, mShownAt
+        footprint.add(HeapFootprint.OTHER, this, HeapFootprint.objectSize(9, 16));
+        footprint.add(HeapFootprint.OTHER, mRecentFingerprints, HeapFootprint.arraySize(RING_SIZE, 8));
+        footprint.add(HeapFootprint.OTHER, mRecentMillis, HeapFootprint.arraySize(RING_SIZE, 4));
+        footprint.add(HeapFootprint.OTHER, mRecentKinds, HeapFootprint.arraySize(RING_SIZE, 1));
+        footprint.add(HeapFootprint.OTHER, mRecentCorrect, HeapFootprint.arraySize(RING_SIZE, 1));
+
+        // each entry: the HashMap node, its key, and a Histogram with its arrays
+        long histogram = HeapFootprint.objectSize(3, 0) + HeapFootprint.arraySize(2, HeapFootprint.REFERENCE)
+                + 2 * HeapFootprint.arraySize(BUCKETS, 4) + HeapFootprint.arraySize(2, 8);
+        long node = HeapFootprint.objectSize(3, 4);
+        int entries = mQuestions.size() + mCategories.size() + mPending.size();
+        footprint.add(HeapFootprint.OTHER, mQuestions, HeapFootprint.objectSize(4, 16)
+                + HeapFootprint.arraySize(mQuestions.size() * 2, HeapFootprint.REFERENCE));
+        footprint.add(HeapFootprint.OTHER, mCategories, HeapFootprint.objectSize(4, 16)
+                + HeapFootprint.arraySize(mCategories.size() * 2, HeapFootprint.REFERENCE));
+        footprint.add(HeapFootprint.OTHER, mPending, HeapFootprint.objectSize(4, 16)
+                + HeapFootprint.arraySize(mPending.size() * 2, HeapFootprint.REFERENCE));
+        footprint.add(HeapFootprint.OTHER, null, entries * (node + histogram)
+                + (mQuestions.size() + mPending.size()) * HeapFootprint.objectSize(0, 8)); // Long keys
+    }
+
+    /**
+     * read replaces the histograms with the ones saved in a file, plus the responses that have
+     * not been saved yet. A file that does not exist counts as empty; lines that cannot be read
+     * are skipped.
+     * @param file the file written by write()
+     * @throws IOException if the file cannot be read
+     */
+    public synchronized void read(File file) throws IOException {
+        Map<Long, Histogram> saved = readFile(file);
+        for (Map.Entry<Long, Histogram> entry : mPending.entrySet()) {
+            addTo(saved, entry.getKey(), entry.getValue());
+        }
+        replaceWith(saved);
+    }
+
+    /**
+     * write saves the histograms of every question to a file: the ones already in the file
+     * plus the responses recorded since the last write(). The file is read again first, so the
+     * responses another engine saved there are kept, and the histograms in memory are replaced
+     * with what was written. The file is written under another name and renamed into place,
+     * so a reader never sees part of it. Call it while the save's SaveLock is held, so two
+     * writers do not share the temporary file or save over each other.
+     * @param file the file to write
+     * @throws IOException if the file cannot be read or written
+     */
+    public synchronized void write(File file) throws IOException {
+        Map<Long, Histogram> merged = readFile(file);
+        for (Map.Entry<Long, Histogram> entry : mPending.entrySet()) {
+            addTo(merged, entry.getKey(), entry.getValue());
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        PrintWriter out = new PrintWriter(temp);
+
+        for (Map.Entry<Long, Histogram> entry : merged.entrySet()) {
+            Histogram h = entry.getValue();
+            out.print(Long.toHexString(entry.getKey()));
+            out.print('\t');
+            out.print(h.mCategory);
+            out.print('\t');
+            writeCounts(out, h.mCounts[SUBMITTED]);
+            out.print('\t');
+            writeCounts(out, h.mCounts[SKIPPED]);
+            out.print('\t');
+            out.print(h.mTotalMillis[SUBMITTED]);
+            out.print('\t');
+            out.print(h.mTotalMillis[SKIPPED]);
+            out.print('\n');
+        }
+        out.close();
+
+        if (out.checkError() || !temp.renameTo(file)) {
+            throw new IOException("could not replace " + file);
+        }
+        mPending.clear();
+        replaceWith(merged);
+    }
+
+    /**
+     * finish records a response to the question being timed, and stops timing it.
+     * @param q the question that was answered or skipped
+     * @param kind SUBMITTED or SKIPPED
+     * @param correct true if it was answered correctly
+     */
+    private void finish(Question q, int kind, boolean correct) {
+        if (!q.sameAs(mShown) || q.isNone()) {
+            return;
+        }
+
+        long millis = (System.nanoTime() - mShownAt) / NANOS_PER_MILLI;
+        long fingerprint = q.getFingerprint();
+        mRecentFingerprints[mNext] = fingerprint;
+        mRecentMillis[mNext] = (int) Math.min(Integer.MAX_VALUE, millis);
+        mRecentKinds[mNext] = (byte) kind;
+        mRecentCorrect[mNext] = correct;
+        mNext = (mNext + 1) % RING_SIZE;
+        mRecentCount = Math.min(RING_SIZE, mRecentCount + 1);
+
+        Histogram question = histogramFor(mQuestions, fingerprint);
+        question.mCategory = mShownCategory;
+        question.add(kind, millis);
+        histogramFor(mCategories, mShownCategory).add(kind, millis);
+
+        Histogram pending = histogramFor(mPending, fingerprint);
+        pending.mCategory = mShownCategory;
+        pending.add(kind, millis);
+        mShown = Question.NO_QUESTION;
+    }
+
+    /**
+     * slot finds where a recent response is kept in the ring buffer.
+     * @param i 0 for the most recent response, up to countRecent() - 1
+     * @return the index into the ring buffer arrays
+     */
+    private int slot(int i) {
+        if (i < 0 || i >= mRecentCount) {
+            throw new IndexOutOfBoundsException("response " + i + " of " + mRecentCount);
+        }
+        return (mNext - 1 - i + RING_SIZE) % RING_SIZE;
+    }
+
+    /**
+     * replaceWith makes a set of question histograms the ones in memory, and rebuilds the
+     * category histograms from them.
+     * @param questions the question histograms, by fingerprint
+     */
+    private void replaceWith(Map<Long, Histogram> questions) {
+        mQuestions.clear();
+        mQuestions.putAll(questions);
+        mCategories.clear();
+        for (Histogram h : questions.values()) {
+            histogramFor(mCategories, h.mCategory).addAll(h);
+        }
+    }
+
+    /**
+     * readFile reads the question histograms saved in a file.
+     * @param file the file written by write()
+     * @return the histograms by fingerprint, which is empty if the file does not exist
+     * @throws IOException if the file cannot be read
+     */
+    private static Map<Long, Histogram> readFile(File file) throws IOException {
+        Map<Long, Histogram> questions = new HashMap<Long, Histogram>();
+
+        BufferedReader in;
+        try {
+            in = new BufferedReader(new FileReader(file));
+        } catch (FileNotFoundException e) {
+            return questions;
+        }
+
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split("\t");
+                try {
+                    Histogram h = new Histogram();
+                    readCounts(fields[2], h.mCounts[SUBMITTED]);
+                    readCounts(fields[3], h.mCounts[SKIPPED]);
+                    h.mTotalMillis[SUBMITTED] = Long.parseLong(fields[4]);
+                    h.mTotalMillis[SKIPPED] = Long.parseLong(fields[5]);
+                    h.mCategory = fields[1];
+                    addTo(questions, Long.parseUnsignedLong(fields[0], 16), h);
+                } catch (RuntimeException e) {
+                    Log.d(TAG, "readFile(): skipping " + line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return questions;
+    }
+
+    /**
+     * addTo adds a question's histogram to the one kept for it in a map.
+     * @param questions the question histograms, by fingerprint
+     * @param fingerprint the question's fingerprint
+     * @param h the responses to add
+     */
+    private static void addTo(Map<Long, Histogram> questions, long fingerprint, Histogram h) {
+        Histogram total = histogramFor(questions, fingerprint);
+        total.mCategory = h.mCategory;
+        total.addAll(h);
+    }
+
+    /**
+     * histogramFor returns the histogram for a key, creating it the first time.
+     * @param histograms the question or category histograms
+     * @param key the fingerprint or category name
+     * @return the histogram
+     */
+    private static <K> Histogram histogramFor(Map<K, Histogram> histograms, K key) {
+        Histogram h = histograms.get(key);
+        if (h == null) {
+            h = new Histogram();
+            histograms.put(key, h);
+        }
+        return h;
+    }
+
+    /**
+     * copyOf copies a histogram, so it can be read while responses are still being recorded.
+     * @param h the histogram, or null
+     * @return the copy, or an empty histogram if h is null
+     */
+    private static Histogram copyOf(Histogram h) {
+        Histogram copy = new Histogram();
+        if (h != null) {
+            copy.addAll(h);
+        }
+        return copy;
+    }
+
+    /**
+     * readCounts reads the counts of one kind, written by writeCounts().
+     * @param field the comma separated counts
+     * @param counts where the counts are read into
+     */
+    private static void readCounts(String field, int[] counts) {
+        String[] values = field.split(",");
+        for (int b = 0; b < BUCKETS && b < values.length; b++) {
+            counts[b] = Integer.parseInt(values[b]);
+        }
+    }
+
+    /**
+     * writeCounts writes the counts of one kind, comma separated.
+     * @param out where the counts are written
+     * @param counts the counts
+     */
+    private static void writeCounts(PrintWriter out, int[] counts) {
+        for (int b = 0; b < counts.length; b++) {
+            if (b > 0) {
+                out.print(',');
+            }
+            out.print(counts[b]);
+        }
+    }
+}
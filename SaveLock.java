@@ -0,0 +1,152 @@
+// SaveLock class makes writers of one team's save take turns, when the save is kept in a
+// directory that is shared by several devices or processes (the team's tablet, the raffle desk
+// tool, and the aggregation server). A writer holds the lock from the moment it reads what is
+// on disk until its new manifest (or save file) has been renamed into place.
+// The lock is an exclusive FileChannel lock on a lock file that belongs to the team, so it works
+// between processes. A FileChannel lock is held by the whole process, not by a thread, so
+// threads of the same process first take turns on a ReentrantLock for the same file.
+// Readers never take the lock: everything a writer publishes is renamed into place whole, so a
+// reader sees either the old save or the new one (see SegmentedSave.readLines()).
+//
+// Usage:
+//   SaveLock lock = SaveLock.acquire(lockFile);
+//   try { ... write, then rename ... } finally { lock.close(); }
+package org.foxcroft.stem.raffle;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class SaveLock implements Closeable
+{
+    public static final String EXTENSION = ".lock";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Map<String, ReentrantLock> sThreadLocks = new HashMap<String, ReentrantLock>();
+    private final ReentrantLock mThreadLock;
+    private final RandomAccessFile mFile;
+    private final FileLock mFileLock;
+
+    /**
+     * Constructor accepts a lock that has been acquired. Use acquire() to create one.
+     * @param threadLock the lock held for this process
+     * @param file the open lock file
+     * @param fileLock the lock held on the file
+     */
+    private SaveLock(ReentrantLock threadLock, RandomAccessFile file, FileLock fileLock) {
+        mThreadLock = threadLock;
+        mFile = file;
+        mFileLock = fileLock;
+    }
+
+    /**
+     * acquire waits until no other thread or process holds the lock on a file, then takes it.
+     * The file (and its directory) are created if they do not exist.
+     * @param lockFile the team's lock file
+     * @return the lock, which must be closed when the write is finished
+     * @throws IOException if the lock file cannot be created or locked
+     */
+    public static SaveLock acquire(File lockFile) throws IOException {
+        ReentrantLock threadLock = threadLockFor(lockFile);
+        threadLock.lock();
+
+        RandomAccessFile file = null;
+        try {
+            File directory = lockFile.getAbsoluteFile().getParentFile();
+            if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("could not create " + directory);
+            }
+
+            file = new RandomAccessFile(lockFile, "rw");
+            FileChannel channel = file.getChannel();
+            return new SaveLock(threadLock, file, channel.lock());
+        } catch (IOException | RuntimeException e) {
+            if (file != null) {
+                file.close();
+            }
+            threadLock.unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * close releases the lock, so the next writer can go ahead.
+     * @throws IOException if the lock file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            try {
+                mFileLock.release();
+            } finally {
+                mFile.close(); // closing the file releases the lock too, if release() failed
+            }
+        } finally {
+            mThreadLock.unlock();
+        }
+    }
+
+    /**
+     * readLinesFrom reads the lines that were appended to a file after an offset. A writer
+     * that holds the lock uses it to catch up with what other processes appended since it last
+     * looked, without reading the whole file again. A last line with no newline (a write cut
+     * short by a crash) is left out.
+     * @param file the file
+     * @param offset the length of the file when it was last read; if the file is now shorter,
+     *               it is read from the start
+     * @return the complete lines after the offset, without their newlines
+     * @throws IOException if the file cannot be read
+     */
+    static List<String> readLinesFrom(File file, long offset) throws IOException {
+        List<String> lines = new ArrayList<String>();
+
+        if (!file.isFile()) {
+            return lines;
+        }
+
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            long start = offset <= in.length() ? offset : 0;
+            byte[] bytes = new byte[(int) (in.length() - start)];
+            in.seek(start);
+            in.readFully(bytes);
+
+            int lineStart = 0;
+            for (int i = 0; i < bytes.length; i++) {
+                if (bytes[i] == '\n') {
+                    lines.add(new String(bytes, lineStart, i - lineStart, UTF_8));
+                    lineStart = i + 1;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return lines;
+    }
+
+    /**
+     * threadLockFor returns the ReentrantLock that the threads of this process share for a
+     * lock file.
+     * @param lockFile the lock file
+     * @return the same lock for every call with the same file
+     * @throws IOException if the path of the file cannot be resolved
+     */
+    private static synchronized ReentrantLock threadLockFor(File lockFile) throws IOException {
+        String path = lockFile.getCanonicalPath();
+        ReentrantLock lock = sThreadLocks.get(path);
+
+        if (lock == null) {
+            lock = new ReentrantLock();
+            sThreadLocks.put(path, lock);
+        }
+        return lock;
+    }
+}
@@ -0,0 +1,183 @@
+// ScoreSnapshot class holds a team's scores at one moment, filled in by
+// TriviaEngine.getScores(ScoreSnapshot). The counts for each category are stored as int
+// columns indexed by category ID:
+//   correct    questions answered correctly
+//   answered   questions answered (correctly or not)
+//   total      questions in the category
+// along with totals for the whole engine. A snapshot can be filled again and again; its arrays
+// are only replaced when the engine has more categories than they can hold, so a screen that
+// refreshes the scores after every answer does not allocate anything.
+package org.foxcroft.stem.raffle;
+
+public class ScoreSnapshot
+{
+    private String[] mNames;
+    private int[] mCorrect;
+    private int[] mAnswered;
+    private int[] mTotal;
+    private int mCategoryCount;
+    private int mTotalCorrect;
+    private int mTotalAnswered;
+    private int mTotalQuestions;
+    private int mTicketsRedeemed;
+
+    /**
+     * No-arg constructor creates an empty snapshot. Its arrays are created the first time it
+     * is filled.
+     */
+    public ScoreSnapshot() {
+        this(0);
+    }
+
+    /**
+     * Constructor creates a snapshot with room for a number of categories.
+     * @param capacity the number of categories the snapshot can hold without growing
+     */
+    public ScoreSnapshot(int capacity) {
+        mNames = new String[capacity];
+        mCorrect = new int[capacity];
+        mAnswered = new int[capacity];
+        mTotal = new int[capacity];
+    }
+
+    /**
+     * reset empties the snapshot before it is filled, growing its arrays if they cannot hold
+     * every category.
+     * @param categoryCount the number of categories that will be set
+     * @param ticketsRedeemed the number of tickets the team has redeemed
+     */
+    void reset(int categoryCount, int ticketsRedeemed) {
+        if (mCorrect.length < categoryCount) {
+            mNames = new String[categoryCount];
+            mCorrect = new int[categoryCount];
+            mAnswered = new int[categoryCount];
+            mTotal = new int[categoryCount];
+        }
+
+        mCategoryCount = categoryCount;
+        mTotalCorrect = 0;
+        mTotalAnswered = 0;
+        mTotalQuestions = 0;
+        mTicketsRedeemed = ticketsRedeemed;
+    }
+
+    /**
+     * set stores the counts for one category and adds them to the totals.
+     * @param id the category ID
+     * @param name the name of the category
+     * @param correct the number of questions answered correctly
+     * @param answered the number of questions answered
+     * @param total the number of questions in the category
+     */
+    void set(int id, String name, int correct, int answered, int total) {
+        mNames[id] = name;
+        mCorrect[id] = correct;
+        mAnswered[id] = answered;
+        mTotal[id] = total;
+        mTotalCorrect += correct;
+        mTotalAnswered += answered;
+        mTotalQuestions += total;
+    }
+
+    /**
+     * @return the number of categories in the snapshot
+     */
+    public int countCategories() {
+        return mCategoryCount;
+    }
+
+    /**
+     * @param id the category ID, between 0 and countCategories() - 1
+     * @return the number of questions in the category answered
+     */
+    public int getAnswered(int id) {
+        return mAnswered[id];
+    }
+
+    /**
+     * getAnsweredColumn returns the array holding the number of questions answered in each
+     * category. Only the first countCategories() entries belong to this snapshot, and the
+     * array is reused the next time the snapshot is filled.
+     * @return the answered column, indexed by category ID
+     */
+    public int[] getAnsweredColumn() {
+        return mAnswered;
+    }
+
+    /**
+     * @param id the category ID, between 0 and countCategories() - 1
+     * @return the number of questions in the category answered correctly
+     */
+    public int getCorrect(int id) {
+        return mCorrect[id];
+    }
+
+    /**
+     * getCorrectColumn returns the array holding the number of correct answers in each
+     * category. Only the first countCategories() entries belong to this snapshot.
+     * @return the correct column, indexed by category ID
+     */
+    public int[] getCorrectColumn() {
+        return mCorrect;
+    }
+
+    /**
+     * @param id the category ID, between 0 and countCategories() - 1
+     * @return the name of the category
+     */
+    public String getName(int id) {
+        return mNames[id];
+    }
+
+    /**
+     * @return the number of tickets the team can still redeem
+     */
+    public int getRedeemableTickets() {
+        return mTotalCorrect - mTicketsRedeemed;
+    }
+
+    /**
+     * @return the number of tickets the team has redeemed
+     */
+    public int getTicketsRedeemed() {
+        return mTicketsRedeemed;
+    }
+
+    /**
+     * @param id the category ID, between 0 and countCategories() - 1
+     * @return the number of questions in the category
+     */
+    public int getTotal(int id) {
+        return mTotal[id];
+    }
+
+    /**
+     * getTotalColumn returns the array holding the number of questions in each category. Only
+     * the first countCategories() entries belong to this snapshot.
+     * @return the total column, indexed by category ID
+     */
+    public int[] getTotalColumn() {
+        return mTotal;
+    }
+
+    /**
+     * @return the number of questions answered in every category
+     */
+    public int getTotalAnswered() {
+        return mTotalAnswered;
+    }
+
+    /**
+     * @return the number of questions answered correctly in every category
+     */
+    public int getTotalCorrect() {
+        return mTotalCorrect;
+    }
+
+    /**
+     * @return the number of questions in every category
+     */
+    public int getTotalQuestions() {
+        return mTotalQuestions;
+    }
+}
@@ -0,0 +1,355 @@
+// SegmentedSave class writes a team's save data as one file (segment) per Category, plus a
+// small manifest that lists the segments. The TriviaEngine calls write() after every answer,
+// but only categories that have changed since the last save (Category.isDirty()) are
+// rewritten, so the cost of saving depends on what changed instead of the size of the bank.
+//
+// Each segment is written to a new file name, and the manifest is replaced with a single
+// rename once every new segment is on disk. A crash part of the way through a save leaves the
+// previous manifest (and the segments it lists) in place.
+//
+// The directory may be shared by several devices or processes. Writers take turns with a
+// SaveLock on manifest.lock, and re-read the manifest once they hold it. A writer that finds a
+// manifest it did not write rewrites every category, so a manifest never lists one writer's
+// segments next to another's. Such a save is a conflict, and the last writer's state wins: the
+// answers only the other writer had are missing from the save. Both writers appended them to
+// the team's EventLog first, and the next load puts them back (see
+// TriviaEngine.reconcileWithLog()); the conflict is also logged and counted (see
+// getConflicts()) so that it can be noticed. Readers do not lock (see readLines()):
+// segments are never changed once written, and a segment that is replaced is only retired
+// (listed as RETIRED), then deleted by the save after that, so a reader that has just read the
+// old manifest still finds every segment it lists.
+//
+// Layout of the save directory (SAVE_FILE + PIN):
+//   manifest.tsv            TEAM:<pin>:<tickets redeemed>:<bank version, in hex>
+//                           GENERATION:<number of the last save>
+//                           SEGMENT:<category id>:<segment file name>   (one per category)
+//                           RETIRED:<segment file name>   (replaced by this save)
+//   manifest.lock           locked by the writer that is saving
+//   category<id>_<gen>.tsv  the value returned by Category.toString()
+package org.foxcroft.stem.raffle;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SegmentedSave
+{
+    private static final String TAG = "SegmentedSave";
+    public static final String MANIFEST = "manifest.tsv";
+    public static final String GENERATION = "GENERATION";
+    public static final String SEGMENT = "SEGMENT";
+    public static final String RETIRED = "RETIRED";
+    public static final String LOCK = "manifest" + SaveLock.EXTENSION;
+    private static final int READ_ATTEMPTS = 5; // for readLines(), if segments are deleted under it
+    private static final String SEGMENT_PREFIX = "category";
+    private static final String EXTENSION = ".tsv";
+    private static final String TEMP_EXTENSION = ".tmp";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private File mDirectory;
+    private List<String> mSegments; // segment file names, indexed by category id
+    private List<String> mRetired; // segments replaced by the last save, deleted by the next
+    private String mTeamLine; // the TEAM line from the last manifest written or read
+    private long mGeneration; // incremented on every save that writes a manifest
+    private long mBytesWritten; // bytes of segments and manifests written by this object
+    private int mConflicts; // saves that found a manifest written by another writer
+
+    /**
+     * Constructor accepts the directory that holds the manifest and its segments. If a
+     * manifest already exists, its segment list is read so that the next write() knows which
+     * files it is replacing.
+     * @param directory the save directory (it will be created on the first write)
+     */
+    public SegmentedSave(File directory) {
+        mDirectory = directory;
+        mSegments = new ArrayList<String>();
+        mRetired = new ArrayList<String>();
+        mTeamLine = "";
+        mGeneration = 0;
+
+        if (exists()) {
+            try {
+                readManifest();
+            } catch (IOException e) {
+                Log.d(TAG, "SegmentedSave(File): could not read manifest: " + e);
+                mSegments.clear();
+            }
+        }
+    }
+
+    /**
+     * exists checks to see if a manifest has been written to this directory.
+     * @return true if the manifest exists
+     */
+    public boolean exists() {
+        return new File(mDirectory, MANIFEST).isFile();
+    }
+
+    /**
+     * @return the number of bytes this object has written to segments and manifests
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * @return the number of saves that found a manifest written by another writer since this
+     *         object last read or wrote it, and replaced that writer's state with this one's
+     */
+    public int getConflicts() {
+        return mConflicts;
+    }
+
+    /**
+     * getDirectory returns the directory that holds the manifest and its segments.
+     * @return the save directory
+     */
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * readLines reads the manifest and every segment it lists, and returns the lines in the same
+     * format as a single-file save: the TEAM line followed by each category's lines, in order
+     * of category id. These can be passed line by line to the TriviaEngine's save parser.
+     * No lock is taken, so a reader never holds up a writer. If a writer gets two saves ahead
+     * while the segments are being read, one of them may already be deleted; the manifest is
+     * then read again, and the read starts over.
+     * @return the lines of the save, all from the same manifest
+     * @throws IOException if the manifest or one of its segments cannot be read
+     */
+    public List<String> readLines() throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            readManifest();
+            List<String> lines = new ArrayList<String>();
+            lines.add(mTeamLine);
+
+            try {
+                for (String segment : mSegments) {
+                    if (segment != null) {
+                        readFile(new File(mDirectory, segment), lines);
+                    }
+                }
+                return lines;
+            } catch (FileNotFoundException e) {
+                if (attempt == READ_ATTEMPTS) {
+                    throw e;
+                }
+                Log.d(TAG, "readLines(): " + e.getMessage() + "; reading the new manifest");
+            }
+        }
+    }
+
+    /**
+     * write saves the team line and every dirty Category (or any Category that has no segment
+     * yet) to new segment files, then atomically replaces the manifest and deletes the segment
+     * files that were replaced. Categories that are written have their dirty flags cleared.
+     * If nothing has changed since the last save, nothing is written.
+     * The write holds the team's SaveLock, so writers in other processes wait for it.
+     * @param teamLine the TEAM line, formatted by the TriviaEngine
+     * @param categories the engine's categories, indexed by category id
+     * @return the number of segments that were rewritten
+     * @throws IOException if a segment or the manifest cannot be written
+     */
+    public int write(String teamLine, List<Category> categories) throws IOException {
+        SaveLock lock = SaveLock.acquire(new File(mDirectory, LOCK));
+
+        try {
+            return writeLocked(teamLine, categories);
+        } finally {
+            lock.close();
+        }
+    }
+
+    /**
+     * writeLocked does the work of write() once the lock is held.
+     * @param teamLine the TEAM line, formatted by the TriviaEngine
+     * @param categories the engine's categories, indexed by category id
+     * @return the number of segments that were rewritten
+     * @throws IOException if a segment or the manifest cannot be written
+     */
+    private int writeLocked(String teamLine, List<Category> categories) throws IOException {
+        List<String> replaced = new ArrayList<String>();
+        List<Category> written = new ArrayList<Category>();
+        long lastGeneration = mGeneration;
+
+        // another process may have saved since this object last read or wrote the manifest
+        if (exists()) {
+            readManifest();
+        }
+        boolean rewriteAll = mGeneration != lastGeneration;
+        if (rewriteAll) {
+            mConflicts++;
+            Log.d(TAG, "writeLocked(): generation " + mGeneration + " was written by another writer "
+                    + "after " + lastGeneration + "; replacing it");
+        }
+        long generation = mGeneration + 1;
+
+        for (int id = 0; id < categories.size(); id++) {
+            Category category = categories.get(id);
+            String current = id < mSegments.size() ? mSegments.get(id) : null;
+
+            if (current == null || rewriteAll || category.isDirty()) {
+                String segment = SEGMENT_PREFIX + id + "_" + generation + EXTENSION;
+                mBytesWritten += writeFile(new File(mDirectory, segment), category.toString());
+
+                while (mSegments.size() <= id) {
+                    mSegments.add(null);
+                }
+
+                mSegments.set(id, segment);
+                written.add(category);
+
+                if (current != null) {
+                    replaced.add(current);
+                }
+            }
+        }
+
+        // segments belonging to categories that no longer exist
+        while (mSegments.size() > categories.size()) {
+            String segment = mSegments.remove(mSegments.size() - 1);
+
+            if (segment != null) {
+                replaced.add(segment);
+            }
+        }
+
+        if (written.isEmpty() && replaced.isEmpty() && teamLine.equals(mTeamLine)) {
+            return 0; // nothing has changed since the last save
+        }
+
+        // the new segments are on disk; publish them by replacing the manifest
+        File manifest = new File(mDirectory, MANIFEST);
+        File temp = new File(mDirectory, MANIFEST + TEMP_EXTENSION);
+        mBytesWritten += writeFile(temp, manifestText(teamLine, generation, replaced));
+
+        if (!temp.renameTo(manifest)) {
+            throw new IOException("could not replace " + manifest);
+        }
+
+        // readers of the manifest before the last one are done with these by now
+        for (String segment : mRetired) {
+            new File(mDirectory, segment).delete();
+        }
+
+        mTeamLine = teamLine;
+        mGeneration = generation;
+        mRetired = replaced;
+
+        for (Category category : written) {
+            category.clearDirty();
+        }
+
+        return written.size();
+    }
+
+    /**
+     * manifestText formats the manifest for the current list of segments.
+     * @param teamLine the TEAM line
+     * @param generation the generation of this save
+     * @param retired the segments this save replaces
+     * @return the text of the manifest
+     */
+    private String manifestText(String teamLine, long generation, List<String> retired) {
+        StringBuilder str = new StringBuilder();
+        str.append(teamLine).append("\n");
+        str.append(GENERATION).append(":").append(generation).append("\n");
+
+        for (int id = 0; id < mSegments.size(); id++) {
+            str.append(SEGMENT).append(":").append(id).append(":")
+                    .append(mSegments.get(id)).append("\n");
+        }
+
+        for (String segment : retired) {
+            str.append(RETIRED).append(":").append(segment).append("\n");
+        }
+
+        return str.toString();
+    }
+
+    /**
+     * readManifest reads the team line, generation, segment list, and retired segments from
+     * the manifest.
+     * @throws IOException if the manifest cannot be read
+     */
+    private void readManifest() throws IOException {
+        List<String> lines = new ArrayList<String>();
+        readFile(new File(mDirectory, MANIFEST), lines);
+        mSegments.clear();
+        mRetired = new ArrayList<String>();
+
+        for (String line : lines) {
+            String[] tokens = line.split(":");
+
+            if (tokens[0].equals("TEAM")) {
+                mTeamLine = line;
+            } else if (tokens[0].equals(GENERATION) && tokens.length == 2) {
+                mGeneration = Long.parseLong(tokens[1]);
+            } else if (tokens[0].equals(SEGMENT) && tokens.length == 3) {
+                int id = Integer.parseInt(tokens[1]);
+
+                while (mSegments.size() <= id) {
+                    mSegments.add(null);
+                }
+
+                mSegments.set(id, tokens[2]);
+            } else if (tokens[0].equals(RETIRED) && tokens.length == 2) {
+                mRetired.add(tokens[1]);
+            }
+        }
+    }
+
+    /**
+     * readFile appends every line of a file to a list.
+     * @param file the file to read
+     * @param lines the list the lines are added to
+     * @throws IOException if the file cannot be read
+     */
+    private static void readFile(File file, List<String> lines) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), UTF_8));
+
+        try {
+            String line = "";
+
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * writeFile writes text to a file and forces it to storage before returning, so that a
+     * manifest is never published ahead of the data it points to.
+     * @param file the file to write
+     * @param text the contents of the file
+     * @return the number of bytes written
+     * @throws IOException if the file cannot be written
+     */
+    private static long writeFile(File file, String text) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+
+        try {
+            Writer writer = new OutputStreamWriter(out, UTF_8);
+            writer.write(text);
+            writer.flush();
+            out.getFD().sync();
+            return out.getChannel().size();
+        } finally {
+            out.close();
+        }
+    }
+}
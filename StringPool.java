@@ -0,0 +1,154 @@
+// StringPool class deduplicates the text of questions, answers, and categories as banks and save
+// files are loaded. The morning, afternoon, and default banks share most of their categories,
+// answer choices repeat from row to row, and every team's save file repeats the text of its
+// bank, so without the pool the same text is held many times over.
+// intern() returns the first String that was pooled with the same contents, so identical text
+// loaded anywhere in the process ends up as a single object. The pool keeps counts of what it
+// has saved so the savings can be reported.
+// The pool only holds its Strings weakly (a WeakHashMap from each String to a WeakReference to
+// itself), so text that no bank, engine, or save refers to any more, such as the text of a bank
+// that was replaced while the app is running (see BankWatcher), can still be collected.
+package org.foxcroft.stem.raffle;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+public class StringPool
+{
+    private static final String TAG = "StringPool";
+    // estimated heap cost of a String: the object itself, plus a byte or char array with its
+    // header, rounded up to a multiple of 8 bytes
+    public static final int STRING_OVERHEAD = 24;
+    public static final int ARRAY_OVERHEAD = 16;
+    private static StringPool sInstance = new StringPool();
+    private Map<String, WeakReference<String>> mStrings; // entries go when their String is collected
+    private long mRequests; // number of calls to intern()
+    private long mDuplicates; // number of calls that returned a String that was already pooled
+    private long mSavedBytes; // estimated size of the duplicate Strings that were replaced
+
+    public StringPool() {
+        mStrings = new WeakHashMap<String, WeakReference<String>>();
+    }
+
+    /**
+     * getInstance returns the pool shared by every bank and engine in the process.
+     * @return the shared StringPool
+     */
+    public static StringPool getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * estimateSize estimates how many bytes of heap a String uses. Text that is all ASCII is
+     * stored one byte per character (compact strings on HotSpot, compressed strings on ART);
+     * any other text takes two bytes per character.
+     * @param s a String
+     * @return the estimated size in bytes
+     */
+    public static long estimateSize(String s) {
+        int bytesPerChar = 1;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) {
+                bytesPerChar = 2;
+                break;
+            }
+        }
+
+        long array = ARRAY_OVERHEAD + (long) bytesPerChar * s.length();
+        return STRING_OVERHEAD + ((array + 7) / 8) * 8;
+    }
+
+    /**
+     * intern returns the pooled String with the same contents as s, adding s to the pool if
+     * there is no such String yet.
+     * @param s the String to deduplicate (may be null)
+     * @return a String equal to s that is shared with every other caller
+     */
+    public synchronized String intern(String s) {
+        if (s == null) {
+            return null;
+        }
+
+        mRequests++;
+        WeakReference<String> ref = mStrings.get(s);
+        String pooled = ref == null ? null : ref.get();
+
+        if (pooled == null) {
+            mStrings.put(s, new WeakReference<String>(s));
+            return s;
+        }
+
+        if (pooled != s) {
+            mDuplicates++;
+            mSavedBytes += estimateSize(s);
+        }
+        return pooled;
+    }
+
+    /**
+     * isPooled checks to see if a String is the pooled copy of its text (see HeapFootprint).
+     * @param s a String
+     * @return true if s itself is held by the pool
+     */
+    public synchronized boolean isPooled(String s) {
+        if (s == null) {
+            return false;
+        }
+        WeakReference<String> ref = mStrings.get(s);
+        return ref != null && ref.get() == s;
+    }
+
+    /**
+     * @return the number of distinct Strings in the pool that have not been collected
+     */
+    public synchronized int countStrings() {
+        return mStrings.size();
+    }
+
+    /**
+     * @return the number of times intern() has been called
+     */
+    public synchronized long countRequests() {
+        return mRequests;
+    }
+
+    /**
+     * @return the number of duplicate Strings that were replaced with a pooled String
+     */
+    public synchronized long countDuplicates() {
+        return mDuplicates;
+    }
+
+    /**
+     * getPooledBytes adds up the estimated sizes of the Strings in the pool. The pool changes
+     * as Strings are collected, so the sizes are added up each time this is called.
+     * @return the estimated number of bytes used by the Strings in the pool
+     */
+    public synchronized long getPooledBytes() {
+        long bytes = 0;
+        for (String s : mStrings.keySet()) {
+            if (s != null) {
+                bytes += estimateSize(s);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the estimated number of bytes that would have been used by the duplicates
+     */
+    public synchronized long getSavedBytes() {
+        return mSavedBytes;
+    }
+
+    /**
+     * toString summarizes the pool for the log.
+     * @return the number of Strings pooled and replaced, and the estimated bytes saved
+     */
+    @Override
+    public synchronized String toString() {
+        return String.format("%s: %d strings (%d bytes) pooled, %d of %d requests deduplicated, %d bytes saved",
+                TAG, mStrings.size(), getPooledBytes(), mDuplicates, mRequests, mSavedBytes);
+    }
+}
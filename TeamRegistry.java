@@ -0,0 +1,160 @@
+// TeamRegistry class holds every team that can log in, indexed by PIN.
+// pins.tsv is parsed once into a HashMap from PIN to Team, so checking a login and looking up
+// the team's name are single hash lookups no matter how many teams are in the spreadsheet.
+// The registry does not change after it is loaded, so a single instance can be shared by the
+// TriviaActivity and anything else that hosts TriviaEngines.
+package org.foxcroft.stem.raffle;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+public class TeamRegistry
+{
+    private static final String TAG = "TeamRegistry";
+    public static final String UNKNOWN_TEAM_NAME = "TEAM NOT FOUND";
+    private static TeamRegistry sInstance; // shared by every caller in the process
+    private final Map<String, Team> mTeams;
+
+    /**
+     * Team holds the name and session (TriviaActivity.MORNING_TEAM or
+     * TriviaActivity.AFTERNOON_TEAM) that belong to a single PIN.
+     */
+    public static class Team
+    {
+        private final String mName;
+        private final String mSessionType;
+
+        public Team(String name, String sessionType) {
+            mName = name;
+            mSessionType = sessionType;
+        }
+
+        /**
+         * @return the team's name (first column of pins.tsv)
+         */
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * @return TriviaActivity.MORNING_TEAM or TriviaActivity.AFTERNOON_TEAM
+         */
+        public String getSessionType() {
+            return mSessionType;
+        }
+    }
+
+    /**
+     * Constructor reads pins.tsv from an InputStream. Each row has the following contents
+     * (listed by index):
+     * [0] team name
+     * [1] morning PIN
+     * [2] afternoon PIN
+     * Rows that do not have three columns are skipped. The stream is closed when reading is done.
+     * @param is an InputStream containing the contents of pins.tsv
+     */
+    public TeamRegistry(InputStream is) {
+        mTeams = new HashMap<String, Team>();
+
+        BufferedReader inputFile = new BufferedReader(
+                new InputStreamReader(is, Charset.forName("UTF-8"))
+        );
+
+        String line = "";
+
+        try {
+            while ((line = inputFile.readLine()) != null) {
+                String[] tokens = line.split("\t");
+
+                if (tokens.length >= 3) {
+                    addTeam(tokens[0], tokens[1], tokens[2]);
+                }
+            }
+            inputFile.close();
+        } catch (IOException e) {
+            Log.wtf(TAG, "TeamRegistry(InputStream): error reading file" + e);
+        }
+    }
+
+    /**
+     * getInstance returns the registry loaded from R.raw.pins, loading it the first time it is
+     * called. Every later call returns the same object.
+     * @param context used to open R.raw.pins
+     * @return the shared TeamRegistry
+     */
+    public static synchronized TeamRegistry getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new TeamRegistry(context.getResources().openRawResource(R.raw.pins));
+            Log.d(TAG, "getInstance(): loaded " + sInstance.size() + " PINs");
+        }
+        return sInstance;
+    }
+
+    /**
+     * addTeam indexes a team under both of its PINs.
+     * @param name the team's name
+     * @param morningPin the PIN used by the morning team
+     * @param afternoonPin the PIN used by the afternoon team
+     */
+    private void addTeam(String name, String morningPin, String afternoonPin) {
+        mTeams.put(morningPin, new Team(name, TriviaActivity.MORNING_TEAM));
+        mTeams.put(afternoonPin, new Team(name, TriviaActivity.AFTERNOON_TEAM));
+    }
+
+    /**
+     * contains checks to see if the PIN belongs to a morning or afternoon team.
+     * @param pin the PIN typed into the login field
+     * @return true if the PIN is in the registry
+     */
+    public boolean contains(String pin) {
+        return pin != null && mTeams.containsKey(pin);
+    }
+
+    /**
+     * findTeam returns the Team for this PIN, or null if there is no such team.
+     * @param pin the team's login PIN
+     * @return the matching Team, or null
+     */
+    public Team findTeam(String pin) {
+        if (pin == null) {
+            return null;
+        }
+        return mTeams.get(pin);
+    }
+
+    /**
+     * getSessionType returns the session the PIN belongs to.
+     * @param pin the team's login PIN
+     * @return TriviaActivity.MORNING_TEAM, TriviaActivity.AFTERNOON_TEAM,
+     *      or TriviaActivity.TEAM_NOT_FOUND
+     */
+    public String getSessionType(String pin) {
+        Team team = findTeam(pin);
+        return team == null ? TriviaActivity.TEAM_NOT_FOUND : team.getSessionType();
+    }
+
+    /**
+     * getTeamName returns the name of the team that uses this PIN.
+     * @param pin the team's login PIN
+     * @return the team's name (as read from pins.tsv), or UNKNOWN_TEAM_NAME
+     */
+    public String getTeamName(String pin) {
+        Team team = findTeam(pin);
+        return team == null ? UNKNOWN_TEAM_NAME : team.getName();
+    }
+
+    /**
+     * @return the number of PINs in the registry (two per team)
+     */
+    public int size() {
+        return mTeams.size();
+    }
+}
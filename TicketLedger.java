@@ -0,0 +1,381 @@
+// TicketLedger class keeps a team's raffle tickets as an append-only ledger. Every question
+// answered correctly credits a ticket (a correct answer that is changed or cleared credits -1),
+// and every redemption at the raffle table debits the tickets handed out, along with the time
+// and the admin code that was entered. The balance is kept as a running total, so it never
+// has to be recalculated from the answers.
+// Redemptions must survive a crash, or the raffle desk could hand out the same tickets twice.
+// Entries are written in groups: credits wait in memory, and a debit writes every waiting entry
+// with a single fsync before it returns. When several redemptions arrive at once, whichever
+// gets to commit() first writes all of them, and the others find their entries already on disk.
+// Credits that are lost in a crash are recreated from the answers when the ledger is attached
+// to the engine (see TriviaEngine.setTicketLedger).
+// The ledger is stored in the team's save directory, one Entry per line:
+//   sequence  time (ms)  CREDIT or DEBIT  tickets  admin code
+// Several processes may keep ledgers in the same directory. Entries are numbered when they are
+// written, while the team's SaveLock on LOCK is held, after reading any entries another process
+// appended, so no sequence number is written twice. The totals of a ledger only count the
+// entries that were in the file when it was opened, and the entries it made itself.
+package org.foxcroft.stem.raffle;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TicketLedger
+{
+    private static final String TAG = "TicketLedger";
+    public static final String LEDGER = "tickets.tsv";
+    public static final String CREDIT = "CREDIT";
+    public static final String DEBIT = "DEBIT";
+    public static final String NO_ADMIN = "-"; // admin code for entries made by the app itself
+    public static final String LOCK = "tickets" + SaveLock.EXTENSION;
+    private static final long UNNUMBERED = 0; // the sequence of an entry that is not written yet
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private File mDirectory;
+    private List<Entry> mPending; // entries that have not been written yet, UNNUMBERED
+    private long mLastSequence; // sequence number of the last entry in the file, as last seen
+    private long mLedgerLength; // length of the file when this ledger last read or wrote it
+    private long mEntriesMade; // entries made by this ledger, written or not
+    private long mEntriesWritten; // entries made by this ledger that are on storage
+    private int mCredited; // total of every credit
+    private int mDebited; // total of every debit
+    private final Object mCommitLock = new Object(); // held while entries are written
+
+    /**
+     * Entry is one line of the ledger.
+     */
+    public static class Entry
+    {
+        private final long mSequence;
+        private final long mTime;
+        private final String mType;
+        private final int mTickets;
+        private final String mAdminCode;
+
+        /**
+         * Constructor accepts every field of the entry.
+         * @param sequence the position of this entry in the ledger (starting at 1)
+         * @param time when the entry was made, from System.currentTimeMillis()
+         * @param type CREDIT or DEBIT
+         * @param tickets the number of tickets credited or debited
+         * @param adminCode the admin code entered at the raffle table, or NO_ADMIN
+         */
+        public Entry(long sequence, long time, String type, int tickets, String adminCode) {
+            mSequence = sequence;
+            mTime = time;
+            mType = type;
+            mTickets = tickets;
+            mAdminCode = adminCode;
+        }
+
+        /**
+         * Constructor accepts a line written by toString() and splits it using '\t' as a
+         * delimiter.
+         * @param line a line from the ledger
+         * @throws IllegalArgumentException if the line does not contain an entry (for
+         *      instance, a line cut short when the device lost power)
+         */
+        public Entry(String line) {
+            String[] tokens = line.split("\t");
+
+            if (tokens.length != 5 || !(tokens[2].equals(CREDIT) || tokens[2].equals(DEBIT))) {
+                throw new IllegalArgumentException("not a ledger entry: " + line);
+            }
+
+            mSequence = Long.parseLong(tokens[0]);
+            mTime = Long.parseLong(tokens[1]);
+            mType = tokens[2];
+            mTickets = Integer.parseInt(tokens[3]);
+            mAdminCode = tokens[4];
+        }
+
+        /**
+         * @return the admin code entered at the raffle table, or NO_ADMIN
+         */
+        public String getAdminCode() {
+            return mAdminCode;
+        }
+
+        /**
+         * @return the position of this entry in the ledger
+         */
+        public long getSequence() {
+            return mSequence;
+        }
+
+        /**
+         * @return the number of tickets credited or debited
+         */
+        public int getTickets() {
+            return mTickets;
+        }
+
+        /**
+         * @return when the entry was made, from System.currentTimeMillis()
+         */
+        public long getTime() {
+            return mTime;
+        }
+
+        /**
+         * @return CREDIT or DEBIT
+         */
+        public String getType() {
+            return mType;
+        }
+
+        /**
+         * toString formats the entry as a line of the ledger.
+         * @return the fields of the entry, separated by tabs
+         */
+        @Override
+        public String toString() {
+            return mSequence + "\t" + mTime + "\t" + mType + "\t" + mTickets + "\t" + mAdminCode;
+        }
+    }
+
+    /**
+     * Constructor opens the ledger in a directory and adds up the entries already in it.
+     * @param directory the team's save directory (created when the first entry is written)
+     */
+    public TicketLedger(File directory) {
+        mDirectory = directory;
+        mPending = new ArrayList<Entry>();
+
+        try {
+            mLedgerLength = new File(mDirectory, LEDGER).length();
+            for (Entry entry : readEntries()) {
+                count(entry);
+                mLastSequence = entry.getSequence();
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "TicketLedger(File): could not read " + mDirectory + ": " + e);
+        }
+    }
+
+    /**
+     * commit writes every waiting entry to the end of the ledger and forces it to storage.
+     * If another thread is already committing, this waits for it, then writes whatever is
+     * still waiting.
+     * @throws IOException if the entries cannot be written
+     */
+    public void commit() throws IOException {
+        long made;
+        synchronized (this) {
+            made = mEntriesMade;
+        }
+        commitThrough(made);
+    }
+
+    /**
+     * credit adds tickets for a question answered correctly (or takes them back, if amount is
+     * negative). The entry is written with the next commit.
+     * @param tickets the number of tickets to credit
+     */
+    public synchronized void credit(int tickets) {
+        add(CREDIT, tickets, NO_ADMIN);
+    }
+
+    /**
+     * debit records tickets handed out at the raffle table, and does not return until the
+     * entry (and every entry before it) is on storage.
+     * @param tickets the number of tickets redeemed
+     * @param adminCode the admin code that was entered
+     * @throws IOException if the entry cannot be written; the debit is still counted, and is
+     *      written by the next commit that succeeds
+     */
+    public void debit(int tickets, String adminCode) throws IOException {
+        long made;
+
+        synchronized (this) {
+            made = add(DEBIT, tickets, adminCode == null ? NO_ADMIN : adminCode);
+        }
+
+        commitThrough(made);
+    }
+
+    /**
+     * @return the number of tickets credited and not yet debited
+     */
+    public synchronized int getBalance() {
+        return mCredited - mDebited;
+    }
+
+    /**
+     * @return the total of every credit
+     */
+    public synchronized int getCredited() {
+        return mCredited;
+    }
+
+    /**
+     * @return the total of every debit
+     */
+    public synchronized int getDebited() {
+        return mDebited;
+    }
+
+    /**
+     * @return the sequence number of the last entry written to the file, by this ledger or by
+     *         another process, as of the last time this ledger read or wrote the file
+     */
+    public synchronized long getLastSequence() {
+        return mLastSequence;
+    }
+
+    /**
+     * readEntries reads every entry that has been written. A line that cannot be parsed (the
+     * end of a write interrupted by a crash) is skipped.
+     * @return the entries, in order
+     * @throws IOException if the ledger cannot be read
+     */
+    public List<Entry> readEntries() throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        File file = new File(mDirectory, LEDGER);
+
+        if (!file.isFile()) {
+            return entries;
+        }
+
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), UTF_8));
+        try {
+            String line = "";
+
+            while ((line = reader.readLine()) != null) {
+                try {
+                    entries.add(new Entry(line));
+                } catch (IllegalArgumentException e) {
+                    Log.d(TAG, "readEntries(): skipping line: " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return entries;
+    }
+
+    /**
+     * add makes a new entry, counts it in the balance, and adds it to the waiting entries. The
+     * entry is numbered when it is written.
+     * @param type CREDIT or DEBIT
+     * @param tickets the number of tickets
+     * @param adminCode the admin code, or NO_ADMIN
+     * @return the number of entries this ledger has made, including the new one
+     */
+    private long add(String type, int tickets, String adminCode) {
+        Entry entry = new Entry(UNNUMBERED, System.currentTimeMillis(), type, tickets, adminCode);
+        mPending.add(entry);
+        count(entry);
+        return ++mEntriesMade;
+    }
+
+    /**
+     * commitThrough makes sure the entries this ledger has made, up to a count, are on storage.
+     * Only one thread writes at a time, and it takes every entry waiting when it starts, so a
+     * thread that waited for the lock usually finds that its entry was written by the thread
+     * before. The entries are numbered while the team's lock is held.
+     * @param made the number of entries made (see add()) that must be written
+     * @throws IOException if the entries cannot be written
+     */
+    private void commitThrough(long made) throws IOException {
+        synchronized (mCommitLock) {
+            List<Entry> batch;
+
+            synchronized (this) {
+                if (mEntriesWritten >= made || mPending.isEmpty()) {
+                    return; // already written by an earlier group
+                }
+                batch = mPending;
+                mPending = new ArrayList<Entry>();
+            }
+
+            try {
+                SaveLock lock = SaveLock.acquire(new File(mDirectory, LOCK));
+                try {
+                    File ledger = new File(mDirectory, LEDGER);
+                    long last = catchUp(ledger);
+                    StringBuilder str = new StringBuilder();
+
+                    for (Entry entry : batch) {
+                        last++;
+                        str.append(new Entry(last, entry.getTime(), entry.getType(),
+                                entry.getTickets(), entry.getAdminCode())).append("\n");
+                    }
+
+                    FileOutputStream out = new FileOutputStream(ledger, true);
+                    try {
+                        out.write(str.toString().getBytes(UTF_8));
+                        out.getFD().sync();
+                    } finally {
+                        out.close();
+                    }
+
+                    synchronized (this) {
+                        mLastSequence = last;
+                        mLedgerLength = ledger.length();
+                        mEntriesWritten += batch.size();
+                    }
+                } finally {
+                    lock.close();
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    batch.addAll(mPending); // keep the order for the next attempt
+                    mPending = batch;
+                }
+                throw e;
+            }
+
+            Log.d(TAG, "commitThrough(): wrote " + batch.size() + " entries");
+        }
+    }
+
+    /**
+     * catchUp finds the last sequence number in the ledger, reading only what other processes
+     * appended since this ledger last read or wrote it. The team's lock must be held.
+     * @param ledger the ledger file
+     * @return the sequence number of the last entry in the file
+     * @throws IOException if the ledger cannot be read
+     */
+    private long catchUp(File ledger) throws IOException {
+        long last;
+        long length;
+        synchronized (this) {
+            last = mLastSequence;
+            length = mLedgerLength;
+        }
+
+        if (ledger.length() != length) {
+            for (String line : SaveLock.readLinesFrom(ledger, length)) {
+                try {
+                    last = Math.max(last, new Entry(line).getSequence());
+                } catch (IllegalArgumentException e) {
+                    Log.d(TAG, "catchUp(): skipping line: " + line);
+                }
+            }
+        }
+        return last;
+    }
+
+    /**
+     * count adds an entry to the running totals.
+     * @param entry the entry
+     */
+    private void count(Entry entry) {
+        if (entry.getType().equals(CREDIT)) {
+            mCredited += entry.getTickets();
+        } else {
+            mDebited += entry.getTickets();
+        }
+    }
+}
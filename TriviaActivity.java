@@ -23,24 +23,18 @@ import android.widget.RadioGroup;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.util.ArrayList;
-import java.util.List;
-
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.constraintlayout.widget.ConstraintLayout;
 import androidx.constraintlayout.widget.ConstraintSet;
 
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+
 public class TriviaActivity extends AppCompatActivity {
     private final String TAG = "TriviaActivity";
     private final String KEY_TRIVIA_ENGINE = "org.foxcroft.stem.raffle.TRIVIA_ENGINE";
     private final String KEY_PIN = "org.foxcroft.stem.raffle.PIN";
-    private final String KEY_TICKETS_REDEEMED = "org.foxcroft.stem.raffle.TICKETS_REDEEMED";
     private final String KEY_CURRENT_QUESTION = "org.foxcroft.stem.raffle.CURRENT_QUESTION";
     private final String MATH_LOGIN = "123456";
     private final String SCIENCE_LOGIN = "654321";
@@ -68,9 +62,37 @@ public class TriviaActivity extends AppCompatActivity {
     private TriviaEngine mTriviaEngine;
     private Question mCurrentQuestion;
     private String mPin; // if set to NOT_LOGGED_IN, no team is logged in.
-    private List<String> mTeamNames = new ArrayList<String>();
-    private List<String> mMorningPins = new ArrayList<String>();
-    private List<String> mAfternoonPins = new ArrayList<String>();
+    private TeamRegistry mTeamRegistry;
+    private EngineCache mEngineCache; // engines of teams that logged in recently
+    private int mRedeemableTickets; // pushed by mTriviaEngine (see mEngineListener)
+    private int mLockedCategories; // pushed by mTriviaEngine (see mEngineListener)
+    private EngineLoad mEngineLoad; // the engine being loaded after a login, if there is one
+    private BankWatcher mBankWatcher; // applies banks copied into the files directory
+
+    /**
+     * mEngineListener keeps the views in step with mTriviaEngine. Every change the engine
+     * publishes carries its new totals, so nothing has to be counted again after each action.
+     */
+    private final EngineListener mEngineListener = new EngineListener() {
+        @Override
+        public void engineChanged(EngineChange change) {
+            Log.d(TAG, "engineChanged(): " + change);
+            mLockedCategories = change.countLockedCategories();
+
+            if (change.getType().equals(EngineChange.TICKETS_CHANGED)) {
+                mRedeemableTickets = change.getRedeemableTickets();
+                updateCashButton();
+            } else if (change.getType().equals(EngineChange.BANK_CHANGED)
+                    && mCurrentQuestion != null) {
+                // the question on screen may have been reworded, or removed from the bank
+                if (mCurrentQuestion.getCategory() == null) {
+                    updateQuestion();
+                } else {
+                    updateQuestionUI();
+                }
+            }
+        }
+    };
 
     /**
      * Hide, disable, and clear mutable text from the following views:
@@ -231,52 +253,19 @@ public class TriviaActivity extends AppCompatActivity {
 
     private void importPins() {
         // Log.d(TAG, "importPins() called");
-        InputStream is = getResources().openRawResource(R.raw.pins);
-        BufferedReader inputFile = new BufferedReader(
-                new InputStreamReader(is, Charset.forName("UTF-8"))
-        );
-
-        String line = "";
-
-        try {
-            while ((line = inputFile.readLine()) != null) {
-                // Log.d(TAG, "importPins(): imported line " + line);
-                String[] tokens = line.split("\t");
-                mTeamNames.add(tokens[0]);
-                mMorningPins.add(tokens[1]); // this column c
-                mAfternoonPins.add(tokens[2]);
-            }
-        } catch (IOException e) {
-            Log.wtf(TAG, "importFile(Context): error reading file");
-            e.printStackTrace();
-        }
-
+        mTeamRegistry = TeamRegistry.getInstance(getApplicationContext());
     }
 
     /**
-     * inList() checks to see if the String is in one of the pin lists, and returns
+     * inList() looks up the session the PIN belongs to in mTeamRegistry.
      *
-     * @param login
-     * @return AM_PIN if found in high school list, PM_PIN if in middle school
-     * list, or PIN_NOT_FOUND if the pin is not in either list.
+     * @param login the PIN typed into mLoginField
+     * @return MORNING_TEAM if it is a morning PIN, AFTERNOON_TEAM if it is an afternoon PIN,
+     * or TEAM_NOT_FOUND if the pin is not in either list.
      */
     private String inList(String login) {
         Log.d(TAG, "mLogButton.InList(" + login + ")");
-        for (String pin : mMorningPins) {
-            if (login.equals(pin)) {
-                Log.d(TAG, "mLogButton.InList(): found in mMorningPins");
-                return MORNING_TEAM;
-            }
-        }
-
-        for (String pin : mAfternoonPins) {
-            if (login.equals(pin)) {
-                Log.d(TAG, "mLogButton.InList(): found in mAfternoonPins");
-                return AFTERNOON_TEAM;
-            }
-        }
-        Log.d(TAG, "mLogButton.InList(): PIN " + login + " not found in mMorningPins or mAfternoonPins");
-        return TEAM_NOT_FOUND;
+        return mTeamRegistry.getSessionType(login);
     }
 
     /**
@@ -302,6 +291,7 @@ public class TriviaActivity extends AppCompatActivity {
      */
     private void logOut() {
         // Log.d(TAG, "logOut() called");
+        cancelLoad();
         disableCashInLogOutBar();
         disableQuestionUI();
         enableLoginUI();
@@ -313,40 +303,57 @@ public class TriviaActivity extends AppCompatActivity {
         Log.d(TAG, "onCreate() called");
         setUpView();
         setListeners();
+        QuestionBank.preload(getApplicationContext()); // parse all banks in the background
         importPins();
+        mEngineCache = EngineCache.getInstance(getApplicationContext());
+        mBankWatcher = new BankWatcher(this, mEngineCache, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                runOnUiThread(command);
+            }
+        });
+        mBankWatcher.start();
         logOut();
 
-        if (savedInstanceState != null) {
+        if (savedInstanceState != null && mTeamRegistry.contains(savedInstanceState.getString(KEY_PIN))) {
             // Log.d(TAG, "onCreate(): savedInstanceState is not null; length of contents: " + savedInstanceState.toString().length());
-            String triviaEngineState = savedInstanceState.getString(KEY_TRIVIA_ENGINE, "ERROR_ENGINE");
-            String currentQuestionState = savedInstanceState.getString(KEY_CURRENT_QUESTION, Question.DEFAULT_QUESTION);
+            byte[] triviaEngineState = savedInstanceState.getByteArray(KEY_TRIVIA_ENGINE);
+            int currentQuestionState = savedInstanceState.getInt(KEY_CURRENT_QUESTION, -1);
             mPin = savedInstanceState.getString(KEY_PIN, NOT_LOGGED_IN);
-            mTriviaEngine.setTicketsRedeemed(savedInstanceState.getInt(KEY_TICKETS_REDEEMED, 0));
 
-            if (!triviaEngineState.equals("ERROR_ENGINE")) {
+            // after a configuration change the team's engine is still in the cache, with
+            // changes the snapshot does not have; only rebuild it if the process was restarted
+            watchEngine(mEngineCache.getIfCached(mPin));
+
+            if (mTriviaEngine == null && triviaEngineState != null) {
                 // Log.d(TAG, "onCreate(): triviaEngineState found");
-                mTriviaEngine = new TriviaEngine(triviaEngineState);
-            } else {
+                // restore() reattaches the team's event log, ledger, and response times
+                watchEngine(EngineSnapshot.restore(triviaEngineState, TriviaActivity.this));
+
+                if (mTriviaEngine != null) {
+                    mEngineCache.put(mTriviaEngine);
+                }
+            }
+
+            if (mTriviaEngine == null) {
                 // Log.d(TAG, "onCreate(): triviaEngineState not found");
 
-                // try to retrieve the file
-                mTriviaEngine = new TriviaEngine(mPin, TriviaActivity.this, inList(mPin));
+                // try the cache, then the file
+                watchEngine(mEngineCache.get(mPin, inList(mPin)));
             }
 
-            if (!currentQuestionState.equals(Question.DEFAULT_QUESTION)) {
+            if (currentQuestionState >= 0) {
                //  Log.d(TAG, "onCreate(): currentQuestionState found: " + currentQuestionState);
-                mCurrentQuestion = mTriviaEngine.findQuestion(new Question(currentQuestionState));
+                mCurrentQuestion = mTriviaEngine.getQuestionAt(currentQuestionState);
                 // Log.d(TAG, "onCreate(): mCurrentQuestion = (" + mCurrentQuestion + ")");
             } else {
                 Log.d(TAG, "onCreate(): currentQuestionState not found; getting another");
                 updateQuestionValue();
             }
 
-            // Log.d(TAG, "onCreate(): KEY_TRIVIA_ENGINE:\n" + savedInstanceState.getString(KEY_TRIVIA_ENGINE, "ERROR_ENGINE"));
-            // Log.d(TAG, "onCreate(): KEY_CURRENT_QUESTION: " + savedInstanceState.getString(KEY_CURRENT_QUESTION, "ERROR_QUESTION"));
-            // Log.d(TAG, "onCreate(): KEY_TICKETS_REDEEMED: " + savedInstanceState.getInt(KEY_TICKETS_REDEEMED, 0));
+            // Log.d(TAG, "onCreate(): KEY_CURRENT_QUESTION: " + savedInstanceState.getInt(KEY_CURRENT_QUESTION, -1));
 
-            updateQuestion();
+            updateQuestionUI();
             enableCashInLogOutBar();
 
         } else {
@@ -367,6 +374,11 @@ public class TriviaActivity extends AppCompatActivity {
     protected void onDestroy() {
         super.onDestroy();
         Log.d(TAG, "onDestroy() called");
+
+        // the engine stays in the EngineCache, so it must not keep this activity alive
+        cancelLoad();
+        watchEngine(null);
+        mBankWatcher.stop();
     }
 
     @Override
@@ -391,25 +403,20 @@ public class TriviaActivity extends AppCompatActivity {
     public void onSaveInstanceState(Bundle savedInstanceState) {
         Log.d(TAG, "onSaveInstanceState() called");
 
-        // Log.d(TAG, "onSaveInstanceState(): saving ticketsRedeemed");
-        savedInstanceState.putInt(KEY_TICKETS_REDEEMED, mTriviaEngine.getTicketsRedeemed());
-        // outPersistableState.putInt(KEY_TICKETS_REDEEMED, mTicketsRedeemed);
-
         if (mTriviaEngine != null) {
             // Log.d(TAG, "onSaveInstanceState(): saving mTriviaEngine");
-            savedInstanceState.putString(KEY_TRIVIA_ENGINE, mTriviaEngine.toString());
-            // outPersistableState.putString(KEY_TRIVIA_ENGINE, mTriviaEngine.toString());
+            // only the answers are saved; the questions are restored from the QuestionBank
+            savedInstanceState.putByteArray(KEY_TRIVIA_ENGINE, EngineSnapshot.toBytes(mTriviaEngine));
         } else {
             // Log.d(TAG, "onSaveInstanceState(): not saving mTriviaEngine");
         }
 
-        if (mCurrentQuestion != null) {
+        if (mTriviaEngine != null && mCurrentQuestion != null) {
             // Log.d(TAG, "onSaveInstanceState(): saving mCurrentQuestion");
-            savedInstanceState.putString(KEY_CURRENT_QUESTION, mCurrentQuestion.toString());
-            // outPersistableState.putString(KEY_TRIVIA_ENGINE, mCurrentQuestion.toString());
+            savedInstanceState.putInt(KEY_CURRENT_QUESTION, mTriviaEngine.indexOfQuestion(mCurrentQuestion));
         } else {
             // Log.d(TAG, "onSaveInstanceState(): not saving mCurrentQuestion");
-            savedInstanceState.putString(KEY_CURRENT_QUESTION, (new Question()).toString());
+            savedInstanceState.putInt(KEY_CURRENT_QUESTION, -1);
         }
 
         if (mPin != null) {
@@ -438,6 +445,8 @@ public class TriviaActivity extends AppCompatActivity {
         super.onStop();
         Log.d(TAG, "onStop() called");
 
+        // the process may be killed while stopped, so write back every cached team
+        mEngineCache.flush();
     }
 
     /**
@@ -458,6 +467,7 @@ public class TriviaActivity extends AppCompatActivity {
             @Override
             public void onClick(View v) {
                 Log.d(TAG, "mSkipButton.onClick() called");
+                mTriviaEngine.questionSkipped(mCurrentQuestion);
                 updateQuestion();
             }
         });
@@ -504,13 +514,15 @@ public class TriviaActivity extends AppCompatActivity {
         Log.d(TAG, "updateCashButton() called");
 
         if (mTriviaEngine != null) {
-            if (mTriviaEngine.getRedeemableTickets() == 0) {
+            int tickets = mRedeemableTickets;
+
+            if (tickets == 0) {
                 mCashButton.setText("No tickets to redeem\nat this time");
-            } else if (mTriviaEngine.getRedeemableTickets() == 1) {
+            } else if (tickets == 1) {
                 mCashButton.setText(String.format("Redeem 1 ticket\nat raffle table"));
             } else {
                 mCashButton.setText(String.format("Redeem %d tickets\nat raffle table",
-                        (mTriviaEngine.getRedeemableTickets())));
+                        tickets));
             }
         } else {
             // this will only show if something has gone terribly wrong
@@ -558,13 +570,13 @@ public class TriviaActivity extends AppCompatActivity {
      * Enable UI if mCurrentQuestion is not the default Question.
      */
     private void updateQuestionUI() {
-        Log.d(TAG, "updateQuestionUI() called; mCurrentQuestion = "
-                + mCurrentQuestion.getQuestion());
+        // Log.d(TAG, "updateQuestionUI() called; mCurrentQuestion = "
+        //         + mCurrentQuestion.getQuestion());
 
         // clear the radioGroup
         mRadioGroup.clearCheck();
 
-        if (mCurrentQuestion.equals(Question.DEFAULT_QUESTION)) {
+        if (mCurrentQuestion.isNone()) {
             Log.d(TAG, "updateQuestionUI(): default question found");
             disableQuestionUI();
             mMessageText.setEnabled(true);
@@ -580,6 +592,10 @@ public class TriviaActivity extends AppCompatActivity {
             mChoice4Button.setText(choices[3]);
             mMessageText.setText(mCurrentQuestion.getQuestion());
         }
+
+        if (mTriviaEngine != null) {
+            mTriviaEngine.questionShown(mCurrentQuestion); // starts timing a new question
+        }
     }
 
     /**
@@ -600,10 +616,10 @@ public class TriviaActivity extends AppCompatActivity {
             // Log.d(TAG, "updateQuestionValue(): mCurrentQuestion = " + mCurrentQuestion.getQuestion());
 
             // getRandomQuestion will return the default question if no others are available
-            if (mCurrentQuestion.equals(Question.DEFAULT_QUESTION)) {
+            if (mCurrentQuestion.isNone()) {
                 Log.d(TAG, "updateQuestionValue(): default question found");
 
-                if (mTriviaEngine.countLockedCategories() > 0) {
+                if (mLockedCategories > 0) {
                     Log.d(TAG, "updateQuestionValue(): unlocking a category and calling updateQuestionValue() again");
                     Toast.makeText(TriviaActivity.this,
                             unlockedCategoryMessage(true),
@@ -619,17 +635,144 @@ public class TriviaActivity extends AppCompatActivity {
             // if the trivia engine is null, this will fill out a Question object with
             // default values, which will display a "you've answered all the questions"
             // message when updateQuestionUI() is called.
-            mCurrentQuestion = new Question();
+            mCurrentQuestion = Question.NO_QUESTION;
         }
 
-        Log.d(TAG, "updateQuestionValue(): mCurrentQuestion = " + mCurrentQuestion.getQuestion());
+        // Log.d(TAG, "updateQuestionValue(): mCurrentQuestion = " + mCurrentQuestion.getQuestion());
+    }
+
+    /**
+     * startLoad starts loading a team's engine in the background (see EngineCache.load), and
+     * shows its progress in mMessageText until finishLoad() logs the team in. While the engine
+     * is loading, mLogButton reads "Log Out", and clicking it cancels the load.
+     * @param pin the PIN that was entered
+     */
+    private void startLoad(String pin) {
+        Log.d(TAG, "startLoad(" + pin + ") called");
+        cancelLoad();
+        disableLoginUI();
+        showLoadProgress(0, EngineLoad.UNKNOWN);
+
+        mLogButton.setEnabled(true);
+        mLogButton.setVisibility(View.VISIBLE);
+        mLogButton.setText(R.string.logout_button);
+
+        final EngineLoad load = mEngineCache.load(pin, inList(pin), new EngineLoad.ProgressListener() {
+            @Override
+            public void loadProgress(final String pin, final int rowsLoaded, final int rowsTotal) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mEngineLoad != null && mEngineLoad.getPin().equals(pin)) {
+                            showLoadProgress(rowsLoaded, rowsTotal);
+                        }
+                    }
+                });
+            }
+        });
+        mEngineLoad = load;
+
+        load.whenComplete(new BiConsumer<TriviaEngine, Throwable>() {
+            @Override
+            public void accept(final TriviaEngine engine, final Throwable error) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        finishLoad(load, engine, error);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * finishLoad logs a team in once their engine has loaded. Nothing happens if the load was
+     * cancelled, or if another team has logged in since it started.
+     * @param load the load that finished
+     * @param engine the team's engine, or null if the load failed
+     * @param error why the load failed, or null
+     */
+    private void finishLoad(EngineLoad load, TriviaEngine engine, Throwable error) {
+        if (load != mEngineLoad || load.isCancelled()) {
+            Log.d(TAG, "finishLoad(): ignoring load of " + load.getPin());
+            return;
+        }
+
+        mEngineLoad = null;
+
+        if (engine == null) {
+            Log.d(TAG, "finishLoad(): " + error);
+            logOut();
+            Toast.makeText(TriviaActivity.this, "Could not load team " + load.getPin(),
+                    Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        mPin = load.getPin();
+        watchEngine(engine);
+        Log.d(TAG, mEngineCache.toString());
+        mTriviaEngine.unlockStarterCategory();
+        mCurrentQuestion = mTriviaEngine.getRandomQuestion();
+
+        logIn();
+
+        Toast.makeText(TriviaActivity.this, "Logged in as "
+                        + mTeamRegistry.getTeamName(mPin),
+                Toast.LENGTH_SHORT).show();
+    }
+
+    /**
+     * cancelLoad cancels the engine being loaded, if there is one.
+     */
+    private void cancelLoad() {
+        if (mEngineLoad != null) {
+            Log.d(TAG, "cancelLoad(): cancelling load of " + mEngineLoad.getPin());
+            mEngineLoad.cancel(false);
+            mEngineLoad = null;
+        }
+    }
+
+    /**
+     * showLoadProgress shows how much of a team's engine has been loaded in mMessageText.
+     * @param rowsLoaded the number of rows read so far
+     * @param rowsTotal the number of rows to read, or EngineLoad.UNKNOWN
+     */
+    private void showLoadProgress(int rowsLoaded, int rowsTotal) {
+        mMessageText.setVisibility(View.VISIBLE);
+
+        if (rowsTotal == EngineLoad.UNKNOWN) {
+            mMessageText.setText(String.format("Loading your questions...\n%d read", rowsLoaded));
+        } else {
+            mMessageText.setText(String.format("Loading your questions...\n%d of %d",
+                    rowsLoaded, rowsTotal));
+        }
+    }
+
+    /**
+     * watchEngine makes an engine the current mTriviaEngine, and moves mEngineListener from the
+     * old engine to the new one. The totals shown in the views are read from the new engine
+     * once; after that, they are pushed by mEngineListener.
+     * @param engine the team's engine, or null to stop listening
+     */
+    private void watchEngine(TriviaEngine engine) {
+        if (mTriviaEngine != null) {
+            mTriviaEngine.removeListener(mEngineListener);
+        }
+
+        mTriviaEngine = engine;
+
+        if (mTriviaEngine != null) {
+            mTriviaEngine.addListener(mEngineListener);
+            mRedeemableTickets = mTriviaEngine.getRedeemableTickets();
+            mLockedCategories = mTriviaEngine.countLockedCategories();
+        }
     }
 
     /**
      * CashButtonListener wires up mCashButton, which is used to redeem raffle tickets
      * at the raffle table. Clicking mCashButton brings up a login prompt, for admin login
      * with the codes listed in MATH_LOGIN, SCIENCE_LOGIN, DATE_LOGIN, and ADDRESS_LOGIN.
-     * Calls mTriviaEngine.redeemTickets() to redeem tickets, then updates mCashButton view.
+     * Calls mTriviaEngine.redeemTickets(String) to redeem tickets, then updates mCashButton view.
      */
     private class CashButtonListener implements View.OnClickListener {
         @Override
@@ -650,9 +793,15 @@ public class TriviaActivity extends AppCompatActivity {
                             admin_login.equals(SCIENCE_LOGIN) ||
                             admin_login.equals(DATE_LOGIN) ||
                             admin_login.equals(ADDRESS_LOGIN)) {
-                        int tickets_redeemed = mTriviaEngine.getRedeemableTickets();
+                        // the redemption is on storage before the tickets are handed out
+                        int tickets_redeemed = mTriviaEngine.redeemTickets(admin_login);
 
-                        if (tickets_redeemed == 1) {
+                        if (tickets_redeemed == 0) {
+                            Toast.makeText(TriviaActivity.this,
+                                    "No tickets redeemed",
+                                    Toast.LENGTH_LONG)
+                                    .show();
+                        } else if (tickets_redeemed == 1) {
                             Toast.makeText(TriviaActivity.this,
                                     String.format("Redeeming 1 ticket", tickets_redeemed),
                                     Toast.LENGTH_LONG)
@@ -663,9 +812,7 @@ public class TriviaActivity extends AppCompatActivity {
                                     Toast.LENGTH_LONG)
                                     .show();
                         }
-                        mTriviaEngine.redeemTickets();
                         mTriviaEngine.saveFile(TriviaActivity.this);
-                        updateCashButton();
                     } else {
                         Toast.makeText(TriviaActivity.this,
                                 "Invalid login",
@@ -710,17 +857,9 @@ public class TriviaActivity extends AppCompatActivity {
                 String login = mLoginField.getText().toString();
 
                 // if the login is found
-                if (inList(login).equals(MORNING_TEAM) || inList(login).equals(AFTERNOON_TEAM)) {
-                    mPin = mLoginField.getText().toString();
-                    mTriviaEngine = new TriviaEngine(mPin, TriviaActivity.this, inList(mPin));
-                    mTriviaEngine.unlockStarterCategory();
-                    mCurrentQuestion = mTriviaEngine.getRandomQuestion();
-
-                    logIn();
-
-                    Toast.makeText(TriviaActivity.this, "Logged in as "
-                                    + getTeamName(mPin),
-                            Toast.LENGTH_SHORT).show();
+                if (mTeamRegistry.contains(login)) {
+                    // the team is logged in by finishLoad() once their engine is ready
+                    startLoad(login);
                 } else {
                     Log.d(TAG, "mLogButton.onClick(): login not in list");
                     Toast.makeText(TriviaActivity.this, "Pin " + mLoginField.getText().toString() +
@@ -734,20 +873,6 @@ public class TriviaActivity extends AppCompatActivity {
             mLoginField.setText("");
         }
 
-        /**
-         * getTeam() method finds the team name corresponding to the passed pin
-         *
-         * @param pin the team's login pin
-         * @return the team's name (as read from pins.tsv)
-         */
-        private String getTeamName(String pin) {
-            for (int i = 0; i < mTeamNames.size(); i++) {
-                if (mMorningPins.get(i).equals(pin) || mAfternoonPins.get(i).equals(pin)) {
-                    return mTeamNames.get(i);
-                }
-            }
-            return "TEAM NOT FOUND";
-        }
     }
 
     /**
@@ -768,7 +893,7 @@ public class TriviaActivity extends AppCompatActivity {
                                                                                     .getText())) { // answer is correct
                     Log.d(TAG, "SubmitButtonListener().onClick(): question answered correctly");
                     if (mTriviaEngine.isStarterQuestion(mCurrentQuestion)
-                            && (mTriviaEngine.countLockedCategories() > 0)) { // if this is a starter category and there are other questions to unlock
+                            && (mLockedCategories > 0)) { // if this is a starter category and there are other questions to unlock
                         // give them a message stating they have unlocked a new category
                         Toast.makeText(TriviaActivity.this,
                                 unlockedCategoryMessage(false),
@@ -793,7 +918,6 @@ public class TriviaActivity extends AppCompatActivity {
                 updateQuestion();
             }
             mTriviaEngine.saveFile(TriviaActivity.this);
-            updateCashButton();
         }
 
         private int correctMessage() {
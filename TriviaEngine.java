@@ -13,24 +13,49 @@ import android.content.Context;
 import android.util.Log;
 
 import java.io.*;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 class TriviaEngine
 {
     private final String TAG = "TriviaEngine";
     private final String IMPORT_FILE = "questions";
-    private final String SAVE_FILE = "save"; // to save by PIN
+    private static final String SAVE_FILE = "save"; // to save by PIN
     private final String EXTENSION = ".tsv"; // in case another format works later
     private static final String EMPTY = "empty";
     public static final String STARTER_CATEGORY = "Starter";
     public static final String ALL_UNLOCKED = "All categories unlocked";
     private int mStarterQuestionsAnswered;
     private String mPin; // the team's identification number
+    private String mSessionType; // MORNING_TEAM, AFTERNOON_TEAM, or TEAM_NOT_FOUND
     private List<Category> mCategories;
+    private BitSet mLockedCategories; // bit i is set when mCategories.get(i) is locked
+    private int mLockedCount; // number of bits set in mLockedCategories
     private Context mContext;
+    private SegmentedSave mSaveDirectory; // where saveFile(Context) writes, once it is known
+    private EventLog mEventLog; // records every change, if the engine has one
+    private boolean mReplaying; // true while apply() is running, so replays are not recorded
     private int mTicketsRedeemed;
+    private int mCorrectCount; // questions answered correctly, in every category
+    private int mAnsweredCount; // questions answered, in every category
+    private final List<EngineListener> mListeners = new CopyOnWriteArrayList<EngineListener>();
+    private TicketLedger mTicketLedger; // credits and redemptions, if the engine has a ledger
+    private long mBankVersion; // version of the bank the questions came from, or 0 if not known
+    private boolean mMigrated; // true if migrate() ran before the engine had an event log
+    private final ResponseTimes mResponseTimes = new ResponseTimes(); // how long each question took
+    private boolean mSubmitting; // true while submitAnswers() is running
+    private List<EngineEvent> mBatchEvents; // events held back by submitAnswers(), numbered later
+    private List<String> mBatchChangeTypes; // changes held back by submitAnswers(), with...
+    private List<Integer> mBatchChangeIds; // ...their category IDs
+    private int mBatchStartersCorrect; // Starter questions answered correctly in the batch
 
     /**
      * Constructor accepts a String containing the team's PIN.
@@ -40,32 +65,102 @@ class TriviaEngine
      * @param pin a unique identifier (4 digits) for each team in the competition
      */
     public TriviaEngine(String pin, Context context, String typeOfTeam) {
+        this(pin, context, typeOfTeam, null);
+        attachLogs(context);
+    }
+
+    /**
+     * Constructor loads a team's engine like TriviaEngine(String, Context, String), reporting
+     * its progress to an EngineLoad. This is used by EngineCache.load() to load engines off the
+     * UI thread. Nothing is written to the team's directory: the event log and ticket ledger
+     * are not attached until attachLogs() is called, so a load that is cancelled leaves no trace.
+     * @param pin a unique identifier (4 digits) for each team in the competition
+     * @param context used to find the team's save and the question bank
+     * @param typeOfTeam MORNING_TEAM or AFTERNOON_TEAM
+     * @param load told about each row that is read, or null
+     * @throws java.util.concurrent.CancellationException if the load is cancelled
+     */
+    TriviaEngine(String pin, Context context, String typeOfTeam, EngineLoad load) {
         Log.d(TAG, "TriviaEngine(" + pin + ", context) called");
         mPin = pin;
+        mSessionType = QuestionBank.sessionKey(typeOfTeam);
         mCategories = new ArrayList<Category>();
+        mLockedCategories = new BitSet();
         mContext = context;
-        importFile(mContext, typeOfTeam);
+        importFile(mContext, typeOfTeam, load);
 
         // unlock the starter category
         Log.d(TAG, "Unlocking Starter category");
         unlockStarterCategory();
     }
 
+    /**
+     * Constructor starts a team from a QuestionBank that has already been parsed, without
+     * reading a save file. This is used when restoring from an EngineSnapshot, where the
+     * answers are applied afterwards.
+     * @param pin a unique identifier for each team in the competition
+     * @param bank the shared question bank for the team's session
+     */
+    public TriviaEngine(String pin, QuestionBank bank) {
+        Log.d(TAG, "TriviaEngine(" + pin + ", bank) called");
+        mPin = pin;
+        mSessionType = bank.getSessionType();
+        mCategories = new ArrayList<Category>();
+        mLockedCategories = new BitSet();
+        loadBank(bank, null);
+        unlockStarterCategory();
+    }
+
+    /**
+     * Constructor starts a team from a QuestionStore. Every Question is a view of a row of the
+     * store, created when it is asked for (see Category), and the team's answers are kept in
+     * an answer array of one byte per row, so the text of the bank and the rows of each
+     * category are shared with every other team using the same store. The store must have been
+     * trimmed (see QuestionStore.trim()). Category IDs are the same as the store's category
+     * IDs.
+     * @param pin a unique identifier for each team in the competition
+     * @param store the shared question store
+     * @param sessionType MORNING_TEAM, AFTERNOON_TEAM, or TEAM_NOT_FOUND
+     */
+    public TriviaEngine(String pin, QuestionStore store, String sessionType) {
+        Log.d(TAG, "TriviaEngine(" + pin + ", store) called");
+        mPin = pin;
+        mSessionType = QuestionBank.sessionKey(sessionType);
+        mCategories = new ArrayList<Category>();
+        mLockedCategories = new BitSet();
+        mBankVersion = store.getVersion();
+
+        byte[] answers = store.newAnswers();
+        for (int id = 0; id < store.countCategories(); id++) {
+            registerCategory(new Category(store.getCategoryName(id), store, answers, id));
+        }
+
+        unlockStarterCategory();
+    }
+
     /**
      * Constructor is used for reloading the class after a savedInstanceState is loaded.
      * @param state a String containing the state of the Trivia engine
      */
     public TriviaEngine(String state) {
-        Log.d(TAG, "TriviaEngine(" + state + ") called");
-        String[] tokens = state.split("\n");
+        this(Arrays.asList(state.split("\n")));
+    }
 
+    /**
+     * Constructor reads the lines of a save (the value returned by toString(), one line at a
+     * time). The team's PIN and tickets redeemed are taken from the TEAM line.
+     * @param lines the lines of a save file
+     */
+    private TriviaEngine(List<String> lines) {
         mCategories = new ArrayList<Category>();
+        mLockedCategories = new BitSet();
 
-        for (String line : tokens) {
+        for (String line : lines) {
             Log.d(TAG, "TriviaEngine(state): " + line);
             if (line.split(":")[0].equals("TEAM")) {
                 Log.d(TAG, "TriviaEngine(state): team found: " + line.split(":")[1]);
                 mPin = line.split(":")[1];
+                readSaveLine(line); // tickets redeemed
             } else if (line.split(":")[0].equals(Category.CATEGORY)) {
                 Log.d(TAG, "TriviaEngine(state): category found: " + line);
                 addCategory(line.split(":")[1], line.split(":")[2].equals(Category.LOCKED));
@@ -87,7 +182,7 @@ class TriviaEngine
      */
     public void addCategory(String category, boolean locked) {
         Log.d(TAG, String.format("addCategory(%s,%b)", category, locked));
-        mCategories.add(new Category(category, locked));
+        registerCategory(new Category(category, locked));
     }
 
     /**
@@ -107,16 +202,192 @@ class TriviaEngine
     }
 
     /**
-     * This method is used to determine whether
-     * @return true if all categories are unlocked, false otherwise
+     * addListener starts telling a listener about every change to this engine. A listener that
+     * holds on to views (such as TriviaActivity) must be removed with removeListener() when it
+     * is done, since engines are kept in the EngineCache after the activity is gone.
+     * @param listener the listener to add
      */
-    public boolean alLCategoriesUnlocked() {
+    public void addListener(EngineListener listener) {
+        if (!mListeners.contains(listener)) {
+            mListeners.add(listener);
+        }
+    }
+
+    /**
+     * answerChanged is called by Category.answerChanged() when a Question is answered or its
+     * answer is cleared. It updates the numbers of answered and correct questions, credits the
+     * ticket ledger, records the change in the event log, and tells the listeners.
+     * @param categoryId the category ID of the Question's Category
+     * @param q the Question that changed
+     * @param answeredChange 1 if the Question became answered, -1 if its answer was cleared,
+     *                       otherwise 0
+     * @param correctChange 1 if the Question became correct, -1 if it stopped being correct,
+     *                      otherwise 0
+     */
+    void answerChanged(int categoryId, Question q, int answeredChange, int correctChange) {
+        scoreChanged(answeredChange, correctChange);
+
+        if (mTicketLedger != null && correctChange != 0 && !mReplaying) {
+            mTicketLedger.credit(correctChange);
+        }
+
+        recordEvent(EngineEvent.ANSWERED, categoryId, q.getIndex(), q.getUserAnswerIndex(),
+                q.getFingerprint());
+        if (answeredChange > 0 && !mReplaying && !mSubmitting) { // batches were not typed here
+            mResponseTimes.submitted(q, q.isCorrect());
+        }
+        if (mSubmitting && correctChange > 0 && isStarterQuestion(q)) {
+            mBatchStartersCorrect++;
+        }
+
+        publish(EngineChange.ANSWER_RECORDED, categoryId);
+        if (correctChange != 0) {
+            publish(EngineChange.TICKETS_CHANGED, categoryId);
+        }
+        if (answeredChange > 0 && countAvailableIn(categoryId) == 0) {
+            publish(EngineChange.CATEGORY_EXHAUSTED, categoryId);
+        }
+    }
+
+    /**
+     * applyDiff moves a running engine to a new version of its question bank (see BankWatcher).
+     * Unlike migrate(), the team's Questions are kept: each row of the new bank is matched to
+     * the Question with the same fingerprint, the text of changed questions is replaced in
+     * place (see Question.replaceText()), added questions are created, and removed questions
+     * are dropped. Categories are matched by name and keep their locked status; new categories
+     * start locked. A question that moved to another category is dropped and added again. If
+     * the engine has two questions with the same fingerprint (a question repeated in one
+     * category), only the first is matched, and the other is dropped. The
+     * new question lists are built first and swapped in at the end, so a draw never sees a
+     * half-built category. Listeners are sent BANK_CHANGED once it is done.
+     * @param diff the difference between the engine's bank and the new bank
+     */
+    public void applyDiff(BankDiff diff) {
+        QuestionBank bank = diff.getNewBank();
+        Map<Long, Question> questions = new HashMap<Long, Question>();
+        Map<String, Category> categories = new HashMap<String, Category>();
+        List<Category> order = new ArrayList<Category>();
+        Map<String, List<Question>> lists = new HashMap<String, List<Question>>();
+        List<Question> dropped = new ArrayList<Question>(); // repeated questions
+        int correct = mCorrectCount;
+
         for (Category c : mCategories) {
-            if (c.isLocked()) {
-                return true;
+            categories.put(c.getCategory(), c);
+
+            for (int i = 0; i < c.countQuestions(); i++) {
+                Question q = c.getQuestion(i);
+                if (questions.containsKey(q.getFingerprint())) {
+                    Log.d(TAG, "applyDiff(): dropping repeated question: " + q.getQuestion());
+                    dropped.add(q);
+                } else {
+                    questions.put(q.getFingerprint(), q);
+                }
+            }
+        }
+
+        for (int i = 0; i < bank.countQuestions(); i++) {
+            String[] row = bank.getRow(i);
+            List<Question> list = lists.get(row[0]);
+
+            if (list == null) {
+                Category c = categories.remove(row[0]);
+                order.add(c != null ? c : new Category(row[0], true));
+                list = new ArrayList<Question>();
+                lists.put(row[0], list);
+            }
+
+            Question q = questions.remove(bank.getFingerprint(i));
+            if (q == null) {
+                q = new Question(row); // added
+            } else if (q.getContentHash() != bank.getContentHash(i)) {
+                q.replaceText(row); // changed
+            }
+            list.add(q);
+        }
+
+        // whatever is left was removed from the bank, so answering it changes nothing
+        dropped.addAll(questions.values());
+        for (Question q : dropped) {
+            q.setCategory(null, 0);
+        }
+        for (Category c : categories.values()) {
+            c.attach(null, -1);
+        }
+
+        mCategories = new ArrayList<Category>();
+        mLockedCategories = new BitSet();
+        mLockedCount = 0;
+        mAnsweredCount = 0;
+        mCorrectCount = 0;
+
+        for (Category c : order) {
+            c.replaceQuestions(lists.get(c.getCategory()));
+            registerCategory(c);
+        }
+
+        mBankVersion = bank.getVersion();
+        Log.d(TAG, "applyDiff(): " + diff + "; " + mCategories.size() + " categories");
+        questionsMoved();
+
+        publish(EngineChange.BANK_CHANGED, -1);
+        if (mCorrectCount != correct) {
+            publish(EngineChange.TICKETS_CHANGED, -1);
+        }
+    }
+
+    /**
+     * apply makes the change described by an event, without recording it again. Replaying
+     * every event of a team in order, starting from the bank (or from a snapshot), gives the
+     * team's current state.
+     * @param event an event from this team's EventLog
+     */
+    public void apply(EngineEvent event) {
+        boolean hasCategory = event.getCategoryId() >= 0 && event.getCategoryId() < mCategories.size();
+
+        if (!hasCategory && !event.getType().equals(EngineEvent.REDEEMED)) {
+            Log.d(TAG, "apply(): no category for event " + event);
+            return;
+        }
+
+        mReplaying = true;
+
+        try {
+            if (event.getType().equals(EngineEvent.ANSWERED)) {
+                Category c = mCategories.get(event.getCategoryId());
+
+                if (event.getQuestionIndex() < 0 || event.getQuestionIndex() >= c.countQuestions()) {
+                    Log.d(TAG, "apply(): no question for event " + event);
+                    return;
+                }
+
+                Question q = c.getQuestion(event.getQuestionIndex());
+                String[] choices = q.getChoices();
+
+                if (event.getValue() < 0) {
+                    q.clearAnswer();
+                } else if (event.getValue() < choices.length) {
+                    q.checkAnswer(choices[event.getValue()]);
+                } else {
+                    q.checkAnswer(Question.DEFAULT_USER_ANSWER);
+                }
+            } else if (event.getType().equals(EngineEvent.UNLOCKED)) {
+                mCategories.get(event.getCategoryId()).unlock();
+            } else if (event.getType().equals(EngineEvent.LOCKED)) {
+                mCategories.get(event.getCategoryId()).lock();
+            } else if (event.getType().equals(EngineEvent.REDEEMED)) {
+                mTicketsRedeemed = event.getValue();
             }
+        } finally {
+            mReplaying = false;
         }
-        return false;
+    }
+
+    /**
+     * This method is used to determine whether every category has been unlocked.
+     * @return true if all categories are unlocked, false otherwise
+     */
+    public boolean alLCategoriesUnlocked() {
+        return mLockedCount == 0;
     }
 
     /**
@@ -128,19 +399,12 @@ class TriviaEngine
     }
 
     /**
-     * countAnswered() calculates the number of questions that have been answered.
+     * countAnswered() returns the number of questions that have been answered. Like
+     * countCorrect(), the count is kept up to date as questions are added and answered.
      * return the number of trivia questions that have already been answered.
      */
     public int countAnswered() {
-        Log.d(TAG, "countAnswered() called");
-        int numAnswered = 0;
-
-        for (Category c : mCategories)
-        {
-            numAnswered += c.countAnswered();
-        }
-
-        return numAnswered;
+        return mAnsweredCount;
     }
 
     /**
@@ -165,7 +429,6 @@ class TriviaEngine
      * @return true if categories are unlocked, false otherwise.
      */
     public boolean categoriesAvailable() {
-        Log.d(TAG, "categoriesAvailable() called");
         return (countUnlockedCategories() > 0);
     }
 
@@ -174,8 +437,6 @@ class TriviaEngine
      * @return the number of categories available.
      */
     public int countCategories() {
-        Log.d(TAG, "countCategories() called");
-        Log.d(TAG, "countCategories(): number of categories: " + mCategories.size());
         return mCategories.size();
     }
 
@@ -184,16 +445,7 @@ class TriviaEngine
      * @return the number of categories that are locked.
      */
     public int countLockedCategories() {
-        Log.d(TAG, "countLockedCategories() called");
-        int count = 0;
-
-        for (Category cat: mCategories) {
-            Log.d(TAG, "countLockedCategories(): " + cat.getCategory() + " " + cat.isLocked());
-            count += cat.isLocked() ? 1 : 0;
-        }
-
-        Log.d(TAG, "countLockedCategories() called: returning " + count);
-        return count;
+        return mLockedCount;
     }
 
     /**
@@ -202,32 +454,77 @@ class TriviaEngine
      * @return the number of available questions
      */
     public int countAvailableQuestions() {
-        Log.d(TAG, "countAvailableQuestions() called");
+        // Log.d(TAG, "countAvailableQuestions() called");
+        List<Category> categories = mCategories;
         int numAvailable = 0;
 
-        for (Category c : mCategories) {
+        // indexed, so that no Iterator is created on every draw
+        for (int i = 0; i < categories.size(); i++) {
+            Category c = categories.get(i);
             if (c.isUnlocked()) {
                 numAvailable += c.countAvailable();
             }
         }
 
-        Log.d(TAG, "countAvailableQuestions called: returning " + numAvailable);
+        // Log.d(TAG, "countAvailableQuestions called: returning " + numAvailable);
         return numAvailable;
     }
 
     /**
-     * countCorrect() calculates the number of questions that have been answered correctly.
+     * countCorrect() returns the number of questions that have been answered correctly. The
+     * count is kept up to date as questions are added and answered.
      * @return the number of correct answers (corresponds to raffle tickets at STEM Challenge)
      */
     public int countCorrect() {
-        Log.d(TAG, "countCorrect() called");
-        int correct = 0;
-        for (Category c : mCategories)
-        {
-            correct += c.countCorrect();
-        }
+        return mCorrectCount;
+    }
 
-        return correct;
+    /**
+     * scoreChanged is called when a Question in one of this engine's categories is added or
+     * answered, so that countAnswered() and countCorrect() never have to add up the categories.
+     * @param answeredChange the change in the number of answered questions
+     * @param correctChange the change in the number of correct answers
+     */
+    void scoreChanged(int answeredChange, int correctChange) {
+        mAnsweredCount += answeredChange;
+        mCorrectCount += correctChange;
+    }
+
+    /**
+     * countAvailableIn returns the number of unanswered questions in one category, without
+     * logging (it is called after every answer).
+     * @param categoryId the category ID
+     * @return the number of unanswered questions in the category
+     */
+    private int countAvailableIn(int categoryId) {
+        Category c = mCategories.get(categoryId);
+        return c.countQuestions() - c.countAnswered();
+    }
+
+    /**
+     * measure estimates the heap used by this engine (see HeapFootprint). It only reads the
+     * engine, so it can be called while the engine is in use; a count taken during an answer
+     * may be off by that answer.
+     * @return the footprint of the engine, its categories, questions, and answers
+     */
+    public HeapFootprint measure() {
+        HeapFootprint footprint = new HeapFootprint(mPin);
+        List<Category> categories = mCategories;
+
+        // 16 references; 6 ints, mBankVersion, mReplaying, mMigrated, mSubmitting
+        footprint.add(HeapFootprint.OTHER, this, HeapFootprint.objectSize(16, 35));
+        footprint.addString(HeapFootprint.STRINGS, mPin);
+        footprint.add(HeapFootprint.OTHER, categories, HeapFootprint.listSize(categories.size()));
+        footprint.add(HeapFootprint.OTHER, mLockedCategories, HeapFootprint.objectSize(1, 5)
+                + HeapFootprint.arraySize((categories.size() + 63) / 64, 8));
+        footprint.add(HeapFootprint.OTHER, mListeners, HeapFootprint.objectSize(2, 0)
+                + HeapFootprint.arraySize(mListeners.size(), HeapFootprint.REFERENCE));
+
+        for (Category c : categories) {
+            c.measure(footprint);
+        }
+        mResponseTimes.measure(footprint);
+        return footprint;
     }
 
     /**
@@ -250,16 +547,7 @@ class TriviaEngine
      * @return the number of available categories
      */
     public int countUnlockedCategories() {
-        Log.d(TAG, "countUnlockedCategories() called");
-        int count = 0;
-
-        for (Category cat : mCategories)
-        {
-            Log.d(TAG, "countUnlockedCategories(): " + cat.getCategory() + " " + cat.isLocked());
-            count += cat.isUnlocked() ? 1 : 0;
-        }
-        Log.d(TAG, "countUnlockedCategories(): Number of unlocked categories: " + count);
-        return count;
+        return mCategories.size() - mLockedCount;
     }
 
     /**
@@ -270,7 +558,9 @@ class TriviaEngine
      * The third column is the number of points possible for that category (a String).
      * ints will need to be parsed before using in operations
      * @return a [mCategories.size()] by 3 array of Strings containing scores for categories
+     * @deprecated use getScores(ScoreSnapshot), which returns the counts as ints
      */
+    @Deprecated
     public String[][] getScores() {
         Log.d(TAG, "getScores() called");
         String[][] scores = new String[mCategories.size()][3];
@@ -285,6 +575,30 @@ class TriviaEngine
         return scores;
     }
 
+    /**
+     * getScores(ScoreSnapshot) copies the number of correct answers, answered questions, and
+     * questions for each category, plus the engine's totals, into a ScoreSnapshot. The counts
+     * are kept up to date by the categories, so this takes one step per category, and nothing
+     * is allocated when the snapshot passed in already has room for every category.
+     * @param scores the snapshot to fill, or null to create a new one
+     * @return the filled snapshot
+     */
+    public ScoreSnapshot getScores(ScoreSnapshot scores) {
+        if (scores == null) {
+            scores = new ScoreSnapshot(mCategories.size());
+        }
+
+        scores.reset(mCategories.size(), mTicketsRedeemed);
+
+        for (int i = 0; i < mCategories.size(); i++)
+        {
+            Category c = mCategories.get(i);
+            scores.set(i, c.getCategory(), c.countCorrect(), c.countAnswered(), c.countQuestions());
+        }
+
+        return scores;
+    }
+
     /**
      * findCategory(String) searches the ArrayList mCategories to find the Category with this name.
      * If the Category is found, it returns a reference to it. If the Category is not found, a new
@@ -302,47 +616,78 @@ class TriviaEngine
         }
 
         // if the category is not found,
-        mCategories.add(new Category(name, true));
-        return mCategories.get(mCategories.size() - 1);
+        return registerCategory(new Category(name, true));
+    }
+
+    /**
+     * getCategoryAt returns the Category with this category ID.
+     * @param id the category ID, between 0 and countCategories() - 1
+     * @return the Category at that position in mCategories
+     */
+    public Category getCategoryAt(int id) {
+        return mCategories.get(id);
+    }
+
+    /**
+     * getResponseTimes returns how long the team has taken to answer or skip each question.
+     * @return the engine's ResponseTimes, which can be read while the team plays
+     */
+    public ResponseTimes getResponseTimes() {
+        return mResponseTimes;
+    }
+
+    /**
+     * questionShown starts timing a question that has been put on the screen. It is timed
+     * until it is answered (see answerChanged()) or skipped (see questionSkipped()).
+     * @param q the question that is shown, or Question.NO_QUESTION if there is none
+     */
+    public void questionShown(Question q) {
+        Category c = q.getCategory();
+        if (c == null) {
+            mResponseTimes.shown(Question.NO_QUESTION, null); // not one of this engine's questions
+        } else {
+            mResponseTimes.shown(q, c.getCategory());
+        }
+    }
+
+    /**
+     * questionSkipped records that the question on the screen was skipped.
+     * @param q the question that was skipped
+     */
+    public void questionSkipped(Question q) {
+        mResponseTimes.skipped(q);
     }
 
     /**
      * findQuestion(Question) accepts a Question object, and finds it in the bank.
      * @param q the text of the question to search for
-     * @return a reference to the Question object in the bank
+     * @return a reference to the Question object in the bank, or Question.NO_QUESTION
      */
     public Question findQuestion(Question q) {
         for (Category c : mCategories) {
-            if (!c.findQuestion(q.getQuestion()).equals(new Question())) {
-                return q;
+            Question found = c.findQuestion(q.getQuestion());
+            if (!found.isNone()) {
+                return found;
             }
         }
-        return new Question();
+        return Question.NO_QUESTION;
     }
 
     /**
-     * getLockedCategory returns the first unlocked category, or an empty category if none are
-     * unlocked.
-     * @return an unlocked Category from mCategories.
+     * getLockedCategory returns the first locked category, or Category.NO_CATEGORY if none are
+     * locked. The first set bit in mLockedCategories is the first locked category.
+     * @return a locked Category from mCategories.
      */
     public Category getLockedCategory() {
-        Log.d(TAG, "getLockedCategory() called");
-        if (countUnlockedCategories() < countCategories())
-        {
-            Log.d(TAG, "getLockedCategory(): countUnlockedCategories() < countCategories()");
-            for (Category c : mCategories)
-            {
-                Log.d(TAG, "getLockedCategory(): Checking category: " + c.getCategory() + ": " + c.isLocked());
+        int index = mLockedCategories.nextSetBit(0);
 
-                if (c.isLocked())
-                {
-                    Log.d(TAG, "getLockedCategory(): Returning category: " + c.getCategory());
-                    return c;
-                }
-            }
+        if (index >= 0)
+        {
+            // Log.d(TAG, "getLockedCategory(): Returning category: " + mCategories.get(index).getCategory());
+            return mCategories.get(index);
         }
-        Log.d(TAG, "getLockedCategory(): Returning empty category.");
-        return new Category(); // if there are no locked categories
+        // Log.d(TAG, "getLockedCategory(): Returning empty category.");
+        return Category.NO_CATEGORY; // if there are no locked categories
     }
 
     /**
@@ -350,24 +695,30 @@ class TriviaEngine
      * @return a Question that has not been answered yet
      */
     public Question getQuestion() {
-        Log.d(TAG, "getQuestion() called");
+        // Log.d(TAG, "getQuestion() called");
         Category c = getUnlockedCategory();
 
-        if (!c.getCategory().equals(Category.DEFAULT_CATEGORY))
+        if (!c.isNone())
         {
-            Log.d(TAG, "getQuestion(): unlocked category found: " + c.getCategory());
+            // Log.d(TAG, "getQuestion(): unlocked category found: " + c.getCategory());
             return c.getRandomQuestion();
         }
 
-        Log.d(TAG, "getQuestion(): unlocked category not found. returning default");
-        return new Question();
+        // Log.d(TAG, "getQuestion(): unlocked category not found. returning default");
+        return Question.NO_QUESTION;
     }
 
+    /**
+     * getRandomQuestion returns an unanswered Question from a random unlocked Category. Like
+     * the rest of the selection path, it allocates nothing: when there is no question to draw,
+     * it returns the shared Question.NO_QUESTION.
+     * @return a Question that has not been answered yet, or Question.NO_QUESTION
+     */
     public Question getRandomQuestion() {
-        Log.d(TAG, "getRandomQuestion() called");
+        // Log.d(TAG, "getRandomQuestion() called");
         Category c = getRandomUnlockedCategory();
 
-        if (!c.getCategory().equals(Category.DEFAULT_CATEGORY)) {
+        if (!c.isNone()) {
             return c.getRandomQuestion();
         }
 
@@ -375,18 +726,23 @@ class TriviaEngine
         return getQuestion();
     }
 
+    /**
+     * getRandomQuestion(Question) draws a random question that is not the current one, unless
+     * it is the only one left. Questions are compared by content hash, which each Question
+     * caches, so no text is read or decoded while drawing.
+     * @param current the question on screen
+     * @return a Question that has not been answered yet, or Question.NO_QUESTION
+     */
     public Question getRandomQuestion(Question current) {
-        Log.d(TAG, "getRandomQuestion() called");
+        // Log.d(TAG, "getRandomQuestion() called");
         Category c = getRandomUnlockedCategory();
         Question q;
 
-        if (!c.getCategory().equals(Category.DEFAULT_CATEGORY)) {
+        if (!c.isNone()) {
             do {
-                Log.d(TAG, "Getting a random question.");
                 q = getRandomQuestion();
-                Log.d(TAG, "Random question: " + q.getQuestion());
-                Log.d(TAG, "Current question: " + current.getQuestion());
-            } while (q.equals(current.getQuestion()) && countAvailableQuestions() > 1);    // to avoid loading the same question
+            } while ((q.sameAs(current) || q.getContentHash() == current.getContentHash())
+                    && countAvailableQuestions() > 1);    // to avoid loading the same question
 
             return q;
         }
@@ -395,38 +751,75 @@ class TriviaEngine
         return getQuestion();
     }
 
+    /**
+     * categoryLockChanged is called by Category.lock() and Category.unlock() so that
+     * mLockedCategories and mLockedCount stay in step with the categories.
+     * @param id the category ID (its index in mCategories)
+     * @param locked true if the category was locked, false if it was unlocked
+     */
+    void categoryLockChanged(int id, boolean locked) {
+        if (locked && !mLockedCategories.get(id)) {
+            mLockedCategories.set(id);
+            mLockedCount++;
+            recordEvent(EngineEvent.LOCKED, id, -1, 0, 0);
+        } else if (!locked && mLockedCategories.get(id)) {
+            mLockedCategories.clear(id);
+            mLockedCount--;
+            recordEvent(EngineEvent.UNLOCKED, id, -1, 0, 0);
+            publish(EngineChange.CATEGORY_UNLOCKED, id);
+        }
+    }
+
     /**
      * getRandomUnlockedCategory returns a random unlocked category.
      * @return an unlocked Category object with questions available
      */
     public Category getRandomUnlockedCategory() {
-        Log.d(TAG, "getRandomUnlockedCategory() called");
-        int     count = 0,
-                numSkip = 1 + (int)(Math.random() * countUnlockedCategories());
+        // Log.d(TAG, "getRandomUnlockedCategory() called");
+        List<Category> categories = mCategories;
 
         if (countUnlockedCategories() > 0 && countAvailableQuestions() > 0)
         {
             int index = 0;
             do {
-                index = (int)(Math.random() * mCategories.size());
+                index = (int)(Math.random() * categories.size());
 
-                if (mCategories.get(index).isUnlocked() && mCategories.get(index).hasQuestionsAvailable()) {
-                    return mCategories.get(index);
+                if (categories.get(index).isUnlocked() && categories.get(index).hasQuestionsAvailable()) {
+                    return categories.get(index);
                 }
-            } while (!mCategories.get(index).hasQuestionsAvailable() || mCategories.get(index).isLocked());
+            } while (!categories.get(index).hasQuestionsAvailable() || categories.get(index).isLocked());
         }
 
         // if that fails for some reason
-        Log.d(TAG, "getRandomUnlockedCategory(): calling getUnlockedCategory()");
+        // Log.d(TAG, "getRandomUnlockedCategory(): calling getUnlockedCategory()");
         return getUnlockedCategory();
     }
 
+    /**
+     * getQuestionAt returns a Question by its position in the engine: questions are numbered
+     * through each category in order of category ID. This is the inverse of indexOfQuestion.
+     * @param index between 0 and countQuestions() - 1
+     * @return the Question at that position, or the default Question if there is none
+     */
+    public Question getQuestionAt(int index) {
+        if (index >= 0) {
+            for (Category c : mCategories) {
+                if (index < c.countQuestions()) {
+                    return c.getQuestion(index);
+                }
+                index -= c.countQuestions();
+            }
+        }
+        return Question.NO_QUESTION;
+    }
+
     /**
      * getRedeemableTickets returns the number of tickets that can be redeemed.
      * @return the number of questions answered minus the number of tickets redeemed
      */
     public int getRedeemableTickets() {
-        return countCorrect() - mTicketsRedeemed;
+        // never negative, even if answers were lost after their tickets were handed out
+        return Math.max(0, mCorrectCount - mTicketsRedeemed);
     }
 
     /**
@@ -438,6 +831,36 @@ class TriviaEngine
         return findCategory(STARTER_CATEGORY).countCorrect();
     }
 
+    /**
+     * @return the event log this engine records to, or null if it does not have one
+     */
+    public EventLog getEventLog() {
+        return mEventLog;
+    }
+
+    /**
+     * getPin returns the team's PIN.
+     * @return the PIN this engine was created for
+     */
+    public String getPin() {
+        return mPin;
+    }
+
+    /**
+     * getSessionType returns the session whose QuestionBank this engine's questions came from.
+     * @return MORNING_TEAM, AFTERNOON_TEAM, or TEAM_NOT_FOUND
+     */
+    public String getSessionType() {
+        return mSessionType;
+    }
+
+    /**
+     * @return the ticket ledger this engine records to, or null if it does not have one
+     */
+    public TicketLedger getTicketLedger() {
+        return mTicketLedger;
+    }
+
     /**
      * @return the number of tickets that have been redeemed
      */
@@ -447,29 +870,31 @@ class TriviaEngine
 
     /**
      * getUnlockedCategory returns an unlocked category that has not had all of its questions
-     * answered, if there is one. If there is no unlocked category, it returns an empty
-     * category (created with default static values in the the no-arg Category constructor).
+     * answered, if there is one. If there is no unlocked category, it returns the shared
+     * Category.NO_CATEGORY.
      * @return an unlocked Category with questions available.
      */
     public Category getUnlockedCategory() {
-        Log.d(TAG, "getUnlockedCategory() called");
+        // Log.d(TAG, "getUnlockedCategory() called");
+        List<Category> categories = mCategories;
+
         if (countUnlockedCategories() > 0)
         {
-            int skip = mCategories.size() + 1; // coprime to the size of the array (cyclic group)
-            int startIndex = (int)(Math.random() * mCategories.size()); // start somewhere random
-            for (int i = 0; i < mCategories.size(); i++)
+            int skip = categories.size() + 1; // coprime to the size of the array (cyclic group)
+            int startIndex = (int)(Math.random() * categories.size()); // start somewhere random
+            for (int i = 0; i < categories.size(); i++)
             {
-                Category c = mCategories.get((startIndex + skip*i) % mCategories.size());
+                Category c = categories.get((startIndex + skip*i) % categories.size());
                 if (c.isUnlocked() && c.hasQuestionsAvailable())
                 {
-                    Log.d(TAG, "getUnlockedCategory(): returning " + c.getCategory());
+                    // Log.d(TAG, "getUnlockedCategory(): returning " + c.getCategory());
                     return c;
                 }
             }
         }
 
-        Log.d(TAG, "getUnlockedCategory(): no suitable category found; returning default");
-        return new Category(); // if there are no unlocked categories with questions available
+        // Log.d(TAG, "getUnlockedCategory(): no suitable category found; returning default");
+        return Category.NO_CATEGORY; // if there are no unlocked categories with questions available
     }
 
     /**
@@ -534,72 +959,205 @@ class TriviaEngine
      } */
 
     /**
-     * importFile(Context) is used to import from questions.tsv.
+     * importFile(Context) is used to import the team's saved data, or questions.tsv if the
+     * team has not saved yet. The segmented save directory (see SegmentedSave) is checked
+     * first, then the older single-file save, then the question bank for the team's session.
      * @param context the instance of the object calling this method
      */
     public void importFile(Context context, String typeOfTeam) {
+        importFile(context, typeOfTeam, null);
+    }
+
+    /**
+     * importFile(Context, String, EngineLoad) imports the team's save, or the question bank if
+     * there is no save, telling an EngineLoad about each row as it is read, then brings it up
+     * to date with the team's event log (see reconcileWithLog()).
+     * @param context the context in which this is called
+     * @param typeOfTeam MORNING_TEAM or AFTERNOON_TEAM
+     * @param load told about each row that is read, or null
+     * @throws java.util.concurrent.CancellationException if the load is cancelled
+     */
+    private void importFile(Context context, String typeOfTeam, EngineLoad load) {
+        readSave(context, typeOfTeam, load);
+        reconcileWithLog(saveDirectory(context, mPin), QuestionBank.getInstance(context, typeOfTeam));
+    }
+
+    /**
+     * readSave reads the team's segmented save, the older single-file save, or the question
+     * bank, whichever is found first.
+     * @param context the context in which this is called
+     * @param typeOfTeam MORNING_TEAM or AFTERNOON_TEAM
+     * @param load told about each row that is read, or null
+     * @throws java.util.concurrent.CancellationException if the load is cancelled
+     */
+    private void readSave(Context context, String typeOfTeam, EngineLoad load) {
         Log.d(TAG, "importFile(Context) called");
+        mSaveDirectory = new SegmentedSave(saveDirectory(context, mPin));
+
+        if (mSaveDirectory.exists()) {
+            try {
+                List<String> lines = mSaveDirectory.readLines();
+
+                for (int i = 0; i < lines.size(); i++) {
+                    readSaveLine(lines.get(i));
+
+                    if (load != null) {
+                        load.progress(i + 1, lines.size());
+                    }
+                }
+
+                // everything that was just read matches what is on disk
+                for (Category c : mCategories) {
+                    c.clearDirty();
+                }
+                mResponseTimes.read(new File(mSaveDirectory.getDirectory(), ResponseTimes.FILE));
+
+                Log.d(TAG, "importFile(Context): segmented save file found!");
+                migrateIfOlder(QuestionBank.getInstance(context, typeOfTeam));
+                return;
+            } catch (CancellationException e) {
+                throw e;
+            } catch (Exception e) {
+                // an unreadable file or a malformed segment; start over from the older save
+                Log.d(TAG, "importFile(Context): could not read segmented save: " + e);
+                clearState();
+            }
+        }
 
         try {
             String saveFilename = SAVE_FILE + mPin + EXTENSION;
             BufferedReader saveFile = new BufferedReader(new FileReader(new File(context.getFilesDir(), saveFilename)));
             Log.d(TAG, "importFile(Context): save file found!");
             String line = "";
+            int rows = 0;
 
-            while ((line = saveFile.readLine()) != null) {
-                Log.d(TAG, "importFile(Context): Line read: " + line);
-
-                if (line.split(":")[0].equals("TEAM") && line.split(":")[1].equals(mPin)) {
-                    Log.d(TAG, "importFile(Context): correct save file located!");
-                    mTicketsRedeemed = Integer.parseInt(line.split(":")[2]);
-                } else if (line.split(":")[0].equals(Category.CATEGORY)) {
-                    Log.d(TAG, "importFile(Context): found Category: " + line.split(":")[1].equals(Category.LOCKED));
-                    String[] tokens = line.split(":");
-                    for (String t : tokens) {
-                        Log.d(TAG, "importFile(Context): token: " + t + "(" + t.length() + ")");
+            try {
+                while ((line = saveFile.readLine()) != null) {
+                    readSaveLine(line);
+
+                    if (load != null) {
+                        load.progress(++rows, EngineLoad.UNKNOWN);
                     }
-                    addCategory(line.split(":")[1], line.split(":")[2].equals(Category.LOCKED));
-                } else if (line.split("\t").length == 6 || line.split("\t").length == 7) {
-                    Log.d(TAG, "importFile(Context): found Question: " + line.split("\t")[0]);
-                    addQuestion(line);
-                } else {
-                    Log.d(TAG, "importFile(Context): empty line found: " + line);
                 }
+            } finally {
+                saveFile.close();
             }
 
-            saveFile.close();
+            if (load != null) {
+                load.progress(rows, rows);
+            }
+
+            migrateIfOlder(QuestionBank.getInstance(context, typeOfTeam));
 
         } catch (FileNotFoundException e) {
+            loadBank(QuestionBank.getInstance(context, typeOfTeam), load);
+        } catch (CancellationException e) {
+            throw e;
+        } catch (Exception e) {
+            Log.d(TAG, "importFile(context): Exception thrown: " + e);
+        }
+    }
 
-            InputStream isImport;
+    /**
+     * reconcileWithLog brings a team that was just read up to date with the team's EventLog.
+     * Every change is appended to the log before the engine is saved, and every process
+     * appends to the same log, but the save can still be missing changes: after a save
+     * conflict (see SegmentedSave) the last writer's state wins, and a save that could not be
+     * read falls back to an older one. The log's snapshot and the events after it are replayed
+     * (see EventLog.recover()), and wherever the result differs from what was read, the log's
+     * state is applied; the categories that change are rewritten by the next save. Nothing is
+     * written here, since the log is not attached until attachLogs().
+     * @param directory the team's save directory
+     * @param bank the shared question bank for the team's session
+     */
+    private void reconcileWithLog(File directory, QuestionBank bank) {
+        TriviaEngine logged;
+        try {
+            logged = new EventLog(directory).recover(bank);
+        } catch (IOException | RuntimeException e) {
+            Log.d(TAG, "reconcileWithLog(): could not recover from event log: " + e);
+            return;
+        }
 
-            if (typeOfTeam.equals(TriviaActivity.MORNING_TEAM)) {
-                isImport = context.getResources().openRawResource(R.raw.questions_morning);
-            } else if (typeOfTeam.equals(TriviaActivity.AFTERNOON_TEAM)) {
-                isImport = context.getResources().openRawResource(R.raw.questions_afternoon);
-            } else {
-                isImport = context.getResources().openRawResource(R.raw.questions);
-            }
+        // no snapshot yet, or one of another version of the bank, where the positions differ
+        if (logged == null || logged.getBankVersion() != mBankVersion
+                || logged.countCategories() != countCategories()) {
+            return;
+        }
 
-            BufferedReader inputFile = new BufferedReader(
-                    new InputStreamReader(isImport, Charset.forName("UTF-8"))
-            );
+        int changed = 0;
+        for (int id = 0; id < mCategories.size(); id++) {
+            Category mine = mCategories.get(id);
+            Category theirs = logged.getCategoryAt(id);
 
-            String line = "";
+            for (int i = 0; i < mine.countQuestions() && i < theirs.countQuestions(); i++) {
+                int answer = theirs.getQuestion(i).getUserAnswerIndex();
 
-            try {
-                while ((line = inputFile.readLine()) != null) {
-                    addQuestion(line);
+                if (mine.getQuestion(i).getUserAnswerIndex() != answer) {
+                    apply(new EngineEvent(0, 0, EngineEvent.ANSWERED, id, i, answer));
+                    changed++;
                 }
-            } catch (IOException ex) {
-                Log.wtf(TAG, "importFile(Context): error reading file" + ex);
-                e.printStackTrace();
             }
-        } catch (Exception e) {
-            Log.d(TAG, "importFile(context): Exception thrown: " + e);
+
+            if (mine.isLocked() != theirs.isLocked()) {
+                apply(new EngineEvent(0, 0, theirs.isLocked() ? EngineEvent.LOCKED
+                        : EngineEvent.UNLOCKED, id, -1, 0));
+                changed++;
+            }
+        }
+
+        // redemptions are never taken back, so the larger total is the later one
+        if (logged.getTicketsRedeemed() > mTicketsRedeemed) {
+            apply(new EngineEvent(0, 0, EngineEvent.REDEEMED, -1, -1, logged.getTicketsRedeemed()));
+            changed++;
+        }
+
+        if (changed > 0) {
+            Log.d(TAG, "reconcileWithLog(): " + changed + " changes from the event log");
         }
     }
 
+    /**
+     * clearState drops everything a load has read so far, so that a load that failed part of
+     * the way through can start over from another source without counting anything twice. The
+     * categories that were read are detached, so they no longer change this engine.
+     */
+    private void clearState() {
+        for (Category c : mCategories) {
+            c.attach(null, -1);
+        }
+
+        mCategories = new ArrayList<Category>();
+        mLockedCategories = new BitSet();
+        mLockedCount = 0;
+        mAnsweredCount = 0;
+        mCorrectCount = 0;
+        mStarterQuestionsAnswered = 0;
+        mTicketsRedeemed = 0;
+        mBankVersion = 0;
+    }
+
+    /**
+     * indexOfQuestion finds the position of a Question in the engine (see getQuestionAt). The
+     * Question must be the same object held by one of the engine's categories, or a view of
+     * the same row (see Question.sameAs()). Questions know their position in their category,
+     * so only that position is checked in each category.
+     * @param q a Question from this engine
+     * @return the position of the Question, or -1 if it is not in this engine
+     */
+    public int indexOfQuestion(Question q) {
+        int offset = 0;
+        int i = q.getIndex();
+
+        for (Category c : mCategories) {
+            if (i >= 0 && i < c.countQuestions() && c.getQuestion(i).sameAs(q)) {
+                return offset + i;
+            }
+            offset += c.countQuestions();
+        }
+        return -1;
+    }
+
     /**
      * isStarterQuestion accepts a question and checks to see if it is a question in
      * STARTER_CATEGORY
@@ -607,7 +1165,155 @@ class TriviaEngine
      * @return true if this Question is in the Starter category, false otherwise
      */
     public boolean isStarterQuestion(Question q) {
-        return !findCategory(STARTER_CATEGORY).findQuestion(q.getQuestion()).equals(new Question());
+        if (q.getCategory() != null) {
+            // every Question in an engine knows its Category, so nothing has to be searched
+            return q.getCategory().getCategory().equals(STARTER_CATEGORY);
+        }
+        return !findCategory(STARTER_CATEGORY).findQuestion(q.getQuestion()).isNone();
+    }
+
+    /**
+     * loadBank adds every row of a QuestionBank to the engine, creating categories (locked)
+     * in the order they first appear.
+     * @param bank the shared question bank for the team's session
+     * @param load told about each row that is added, or null
+     */
+    private void loadBank(QuestionBank bank, EngineLoad load) {
+        Log.d(TAG, "loadBank(" + bank.getSessionType() + ") called");
+        mBankVersion = bank.getVersion();
+
+        for (int i = 0; i < bank.countQuestions(); i++) {
+            String[] row = bank.getRow(i);
+            findCategory(row[0]).addQuestion(new Question(row));
+
+            if (load != null) {
+                load.progress(i + 1, bank.countQuestions());
+            }
+        }
+    }
+
+    /**
+     * getBankVersion returns the version of the question bank this engine's questions came
+     * from (see QuestionBank.getVersion()). It is written to the save, so a save made from an
+     * older bank can be recognized and migrated.
+     * @return the bank version, or 0 if it is not known (a save from before versions were kept)
+     */
+    public long getBankVersion() {
+        return mBankVersion;
+    }
+
+    /**
+     * migrate moves this team to a new version of the question bank. The questions are
+     * rebuilt from the bank, and each of the team's answers is carried over to the question
+     * with the same fingerprint (see Question.getFingerprint()), so answers survive questions
+     * being added, removed, reordered, or corrected (but not moved to another category, which
+     * changes the fingerprint). The old answers are put in a HashMap by
+     * fingerprint in one pass, and each new question is looked up in it once. An answer that
+     * was correct stays correct even if the answer key was changed. Categories keep their
+     * locked status by name; new categories start locked. Answers to questions that were
+     * removed from the bank are dropped. If the team answered two questions with the same
+     * fingerprint (a question repeated in one category), the correct answer is the one
+     * carried over, or the first if neither or both are correct.
+     * The event log is given a new snapshot, since its events refer to questions by position,
+     * and the ticket ledger is brought into line with the new number of correct answers.
+     * @param bank the new question bank
+     * @return the number of answers that were carried over
+     */
+    public int migrate(QuestionBank bank) {
+        Log.d(TAG, "migrate(" + bank.getSessionType() + ") called");
+        Map<Long, Question> answers = new HashMap<Long, Question>();
+        Map<String, Boolean> locked = new HashMap<String, Boolean>();
+
+        for (Category c : mCategories) {
+            locked.put(c.getCategory(), c.isLocked());
+
+            for (int i = 0; i < c.countQuestions(); i++) {
+                Question q = c.getQuestion(i);
+                if (q.isAnswered()) {
+                    Question other = answers.get(q.getFingerprint());
+                    if (other == null) {
+                        answers.put(q.getFingerprint(), q);
+                    } else {
+                        Log.d(TAG, "migrate(): repeated question: " + q.getQuestion());
+                        if (q.isCorrect() && !other.isCorrect()) {
+                            answers.put(q.getFingerprint(), q);
+                        }
+                    }
+                }
+            }
+
+            c.attach(null, -1); // so the old questions no longer change this engine
+        }
+
+        mCategories = new ArrayList<Category>();
+        mLockedCategories = new BitSet();
+        mLockedCount = 0;
+        mAnsweredCount = 0;
+        mCorrectCount = 0;
+        int carried = 0;
+        mReplaying = true; // nothing is recorded until the event log has a new snapshot
+
+        try {
+            loadBank(bank, null);
+
+            for (Category c : mCategories) {
+                Boolean wasLocked = locked.get(c.getCategory());
+                if (wasLocked != null && !wasLocked) {
+                    c.unlock();
+                }
+
+                for (int i = 0; i < c.countQuestions(); i++) {
+                    Question q = c.getQuestion(i);
+                    Question old = answers.get(q.getFingerprint());
+
+                    if (old != null) {
+                        q.checkAnswer(old.isCorrect() ? q.getAnswer() : old.getUserAnswer());
+                        carried++;
+                    }
+                }
+            }
+        } finally {
+            mReplaying = false;
+        }
+
+        Log.d(TAG, "migrate(): carried over " + carried + " of " + answers.size() + " answers");
+        questionsMoved();
+        return carried;
+    }
+
+    /**
+     * questionsMoved is called once the questions have been rebuilt from a new version of the
+     * bank. The event log is given a new snapshot, since its events refer to questions by
+     * position, and the ticket ledger is brought into line with the new number of correct
+     * answers.
+     */
+    private void questionsMoved() {
+        if (mEventLog != null) {
+            try {
+                mEventLog.writeSnapshot(this);
+            } catch (IOException e) {
+                Log.d(TAG, "questionsMoved(): could not write snapshot: " + e.getMessage());
+            }
+        } else {
+            mMigrated = true;
+        }
+
+        if (mTicketLedger != null) {
+            setTicketLedger(mTicketLedger);
+        }
+    }
+
+    /**
+     * migrateIfOlder migrates this team to a question bank if the save was made from a
+     * different version of it.
+     * @param bank the current question bank for the team's session
+     */
+    private void migrateIfOlder(QuestionBank bank) {
+        if (bank.getVersion() != mBankVersion && bank.countQuestions() > 0) {
+            Log.d(TAG, "migrateIfOlder(): save is from bank " + Long.toHexString(mBankVersion)
+                    + ", current bank is " + Long.toHexString(bank.getVersion()));
+            migrate(bank);
+        }
     }
 
     /**
@@ -619,28 +1325,221 @@ class TriviaEngine
         System.out.println(this.toString());
     }
 
+    /**
+     * readSaveLine processes one line of a save file. A line may contain the team's PIN and the
+     * number of tickets redeemed, a category name and its locked status, a trivia question, or
+     * nothing.
+     * @param line a line from a save file
+     */
+    private void readSaveLine(String line) {
+        Log.d(TAG, "readSaveLine(): Line read: " + line);
+
+        if (line.split(":")[0].equals("TEAM") && line.split(":")[1].equals(mPin)) {
+            Log.d(TAG, "readSaveLine(): correct save file located!");
+            mTicketsRedeemed = Integer.parseInt(line.split(":")[2]);
+
+            if (line.split(":").length > 3) {
+                try {
+                    mBankVersion = Long.parseUnsignedLong(line.split(":")[3], 16);
+                } catch (NumberFormatException e) {
+                    Log.d(TAG, "readSaveLine(): not a bank version: " + line);
+                }
+            }
+        } else if (line.split(":")[0].equals(Category.CATEGORY)) {
+            Log.d(TAG, "readSaveLine(): found Category: " + line.split(":")[1]);
+            addCategory(line.split(":")[1], line.split(":")[2].equals(Category.LOCKED));
+        } else if (line.split("\t").length == 6 || line.split("\t").length == 7) {
+            Log.d(TAG, "readSaveLine(): found Question: " + line.split("\t")[0]);
+            addQuestion(line);
+        } else {
+            Log.d(TAG, "readSaveLine(): empty line found: " + line);
+        }
+    }
+
+    /**
+     * publish tells every listener about a change, along with the engine's totals after it.
+     * Nothing is created if there are no listeners.
+     * @param type ANSWER_RECORDED, TICKETS_CHANGED, CATEGORY_UNLOCKED, CATEGORY_EXHAUSTED, or
+     *             BANK_CHANGED
+     * @param categoryId the category ID, or -1
+     */
+    private void publish(String type, int categoryId) {
+        if (mListeners.isEmpty()) {
+            return;
+        }
+
+        if (mSubmitting) {
+            // held back until the batch is finished, once per type and category
+            for (int i = 0; i < mBatchChangeTypes.size(); i++) {
+                if (mBatchChangeTypes.get(i).equals(type) && mBatchChangeIds.get(i) == categoryId) {
+                    return;
+                }
+            }
+            mBatchChangeTypes.add(type);
+            mBatchChangeIds.add(categoryId);
+            return;
+        }
+
+        EngineChange change = new EngineChange(type, categoryId, mAnsweredCount, mCorrectCount,
+                getRedeemableTickets(), mTicketsRedeemed, mLockedCount,
+                categoryId >= 0 ? countAvailableIn(categoryId) : -1);
+
+        for (EngineListener listener : mListeners) {
+            listener.engineChanged(change);
+        }
+    }
+
+    /**
+     * recordEvent appends a change to the event log, unless there is no log or the change is
+     * being replayed from the log.
+     * @param type ANSWERED, UNLOCKED, LOCKED, or REDEEMED
+     * @param categoryId the category ID, or -1
+     * @param questionIndex the position of the question in its category, or -1
+     * @param value the answer index, the tickets redeemed, or 0
+     * @param fingerprint the question's fingerprint, or 0
+     */
+    private void recordEvent(String type, int categoryId, int questionIndex, int value,
+                             long fingerprint) {
+        if (mEventLog == null || mReplaying) {
+            return;
+        }
+
+        if (mSubmitting) {
+            // numbered and written by EventLog.appendAll() when the batch is finished
+            mBatchEvents.add(new EngineEvent(0, System.currentTimeMillis(), type, categoryId,
+                    questionIndex, value, fingerprint));
+            return;
+        }
+
+        try {
+            mEventLog.append(type, categoryId, questionIndex, value, fingerprint, this);
+        } catch (IOException e) {
+            Log.d(TAG, "recordEvent(" + type + "): " + e.getMessage());
+        }
+    }
+
+    /**
+     * readSave reads a team's save without a Context, for tools that work on save files that
+     * have been copied off the devices. The save may be a segmented save directory or an older
+     * single-file save.
+     * @param save a save directory (SAVE_FILE + PIN) or a save file (SAVE_FILE + PIN + EXTENSION)
+     * @return an engine holding the team's categories, answers, and tickets redeemed
+     * @throws IOException if the save cannot be read
+     */
+    public static TriviaEngine readSave(File save) throws IOException {
+        if (save.isDirectory()) {
+            TriviaEngine engine = new TriviaEngine(new SegmentedSave(save).readLines());
+            engine.mResponseTimes.read(new File(save, ResponseTimes.FILE));
+            return engine;
+        }
+
+        List<String> lines = new ArrayList<String>();
+        BufferedReader saveFile = new BufferedReader(new FileReader(save));
+
+        try {
+            String line = "";
+
+            while ((line = saveFile.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            saveFile.close();
+        }
+
+        return new TriviaEngine(lines);
+    }
+
     /**
      * redeemTickets sets mTicketsRedeemed to the number of correctly-answered questions.
      */
     public void redeemTickets() {
-        mTicketsRedeemed = countCorrect();
+        redeemTickets(TicketLedger.NO_ADMIN);
+    }
+
+    /**
+     * redeemTickets(String) hands out every ticket that can be redeemed. If the engine has a
+     * ticket ledger, the redemption is written to it (and forced to storage) before
+     * mTicketsRedeemed changes, so the tickets cannot be handed out again after a crash.
+     * @param adminCode the admin code entered at the raffle table
+     * @return the number of tickets redeemed, or 0 if the ledger could not be written
+     */
+    public int redeemTickets(String adminCode) {
+        int tickets = getRedeemableTickets();
+
+        if (tickets <= 0) {
+            return 0;
+        }
+
+        if (mTicketLedger != null) {
+            try {
+                mTicketLedger.debit(tickets, adminCode);
+            } catch (IOException e) {
+                Log.d(TAG, "redeemTickets(): could not write ledger: " + e.getMessage());
+                return 0;
+            }
+        }
+
+        setTicketsRedeemed(mTicketsRedeemed + tickets);
+        return tickets;
+    }
+
+    /**
+     * registerCategory adds a Category to mCategories, gives it the next category ID, and
+     * records its locked status in mLockedCategories.
+     * @param category the Category to add
+     * @return the Category that was added
+     */
+    private Category registerCategory(Category category) {
+        int id = mCategories.size();
+        mCategories.add(category);
+        category.attach(this, id);
+        mAnsweredCount += category.countAnswered();
+        mCorrectCount += category.countCorrect();
+
+        if (category.isLocked()) {
+            mLockedCategories.set(id);
+            mLockedCount++;
+        }
+        return category;
+    }
+
+    /**
+     * removeListener stops telling a listener about changes to this engine.
+     * @param listener the listener to remove
+     */
+    public void removeListener(EngineListener listener) {
+        mListeners.remove(listener);
     }
 
     /**
      * saveFile saves the team's data to a file with the name SAVE_FILE + mPin + EXTENSION
      * that represents the current set of categories that are unlocked and the current set of
      * trivia questions that have been answered (along with their answers).
+     * The data is written to a temporary file, which is then renamed over the save while the
+     * team's SaveLock is held, so another process reading the save sees the old one or the new
+     * one, never part of each.
      */
     public void saveFile() {
         Log.d(TAG, "saveFile() called");
         String saveFilename = SAVE_FILE + mPin + EXTENSION;
         File file = new File(saveFilename);
+        File temp = new File(saveFilename + ".tmp");
 
         try
         {
-            PrintWriter fileOut = new PrintWriter(file);
-            fileOut.print(this.toString());
-            fileOut.close();
+            SaveLock lock = SaveLock.acquire(new File(SAVE_FILE + mPin + SaveLock.EXTENSION));
+
+            try {
+                PrintWriter fileOut = new PrintWriter(temp);
+                fileOut.print(this.toString());
+                fileOut.close();
+
+                if (fileOut.checkError() || !temp.renameTo(file)) {
+                    throw new IOException("could not replace " + file);
+                }
+            } finally {
+                lock.close();
+            }
         }
         catch (IOException e)
         {
@@ -649,35 +1548,243 @@ class TriviaEngine
     }
 
     /**
-     * saveFile saves the team's data to a file with the name SAVE_FILE + mPin + EXTENSION
-     * that represents the current set of categories that are unlocked and the current set of
-     * trivia questions that have been answered (along with their answers).
+     * saveFile saves the team's data to the directory SAVE_FILE + mPin, with one segment per
+     * category (see SegmentedSave). Only the categories that have changed since the last save
+     * are rewritten, then the manifest is replaced so the save is updated all at once.
      * @param context the context in which this is called (will be TriviaActivity.this)
      */
     public void saveFile(Context context) {
         Log.d(TAG, "saveFile(Context) called");
-        String saveFilename = SAVE_FILE + mPin + EXTENSION;
-        File file = new File(context.getFilesDir(), saveFilename);
+        saveFile(saveDirectory(context, mPin));
+    }
+
+    /**
+     * saveFile saves the team's data to a segmented save in the given directory. This is used
+     * by tools that run without an Android Context, such as LoadSimulator. Response times that
+     * have been recorded since the last save are written to ResponseTimes.FILE beside it.
+     * @param directory the team's save directory (created if it does not exist)
+     */
+    public void saveFile(File directory) {
+        if (mSaveDirectory == null || !mSaveDirectory.getDirectory().equals(directory)) {
+            mSaveDirectory = new SegmentedSave(directory);
+        }
 
         try
         {
-            Log.d(TAG, "saveFile(Context): in try block");
-            PrintWriter fileOut = new PrintWriter(file);
-            fileOut.print(this.toString());
-            fileOut.close();
+            int written = mSaveDirectory.write(teamLine(), mCategories);
+            Log.d(TAG, "saveFile(File): rewrote " + written + " of " + mCategories.size() + " categories");
+
+            if (mResponseTimes.isDirty()) {
+                SaveLock lock = SaveLock.acquire(new File(directory, SegmentedSave.LOCK));
+                try {
+                    mResponseTimes.write(new File(directory, ResponseTimes.FILE));
+                } finally {
+                    lock.close();
+                }
+            }
         }
         catch (IOException e)
         {
-            Log.d(TAG, e.getMessage()); // will debug later (sorry if you're reading this and it isn't done yet)
+            Log.d(TAG, "saveFile(File): " + e.getMessage());
         }
     }
 
+    /**
+     * @return the number of bytes written by saveFile since this engine was created or loaded
+     */
+    public long getBytesSaved() {
+        return mSaveDirectory == null ? 0 : mSaveDirectory.getBytesWritten();
+    }
+
+    /**
+     * saveDirectory returns the directory that holds a team's segmented save and event log.
+     * @param context used to find the app's files directory
+     * @param pin the team's PIN
+     * @return the directory SAVE_FILE + pin in the app's files directory
+     */
+    static File saveDirectory(Context context, String pin) {
+        return new File(context.getFilesDir(), SAVE_FILE + pin);
+    }
+
     /**
      * setTicketsRedeemed sets the number of tickets that have beenredeemed
      * @param ticketsRedeemed the number of tickets that have been redeemed
      */
     public void setTicketsRedeemed(int ticketsRedeemed) {
-        mTicketsRedeemed = ticketsRedeemed;
+        if (ticketsRedeemed != mTicketsRedeemed) {
+            mTicketsRedeemed = ticketsRedeemed;
+            recordEvent(EngineEvent.REDEEMED, -1, -1, ticketsRedeemed, 0);
+            publish(EngineChange.TICKETS_CHANGED, -1);
+        }
+    }
+
+    /**
+     * attachLogs attaches the team's event log and ticket ledger from the team's save
+     * directory, so that from here on every change is recorded, and reads the response times
+     * saved there. Attaching them may write a snapshot and ledger entries, so a loading engine
+     * is only attached once it is certain to be used (see EngineCache.finishLoad()).
+     * @param context used to find the team's save directory
+     */
+    void attachLogs(Context context) {
+        File directory = saveDirectory(context, mPin);
+        setEventLog(new EventLog(directory));
+        setTicketLedger(new TicketLedger(directory));
+
+        try {
+            mResponseTimes.read(new File(directory, ResponseTimes.FILE));
+        } catch (IOException e) {
+            Log.d(TAG, "attachLogs(): could not read response times: " + e);
+        }
+    }
+
+    /**
+     * setTicketLedger starts keeping this engine's tickets in a ledger. The ledger is brought
+     * into line with the engine first: redemptions in the ledger that the save missed (a
+     * crash after the ledger was written) are counted as redeemed, and credits or
+     * redemptions the ledger is missing (credits waiting to be written at a crash, or a save
+     * from before the ledger existed) are added to it.
+     * @param ledger the team's ticket ledger
+     */
+    public void setTicketLedger(TicketLedger ledger) {
+        mTicketLedger = ledger;
+
+        if (ledger.getDebited() > mTicketsRedeemed) {
+            setTicketsRedeemed(ledger.getDebited());
+        }
+
+        if (ledger.getCredited() != mCorrectCount) {
+            ledger.credit(mCorrectCount - ledger.getCredited());
+        }
+
+        try {
+            if (ledger.getDebited() < mTicketsRedeemed) {
+                ledger.debit(mTicketsRedeemed - ledger.getDebited(), TicketLedger.NO_ADMIN);
+            } else {
+                ledger.commit();
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "setTicketLedger(): could not write ledger: " + e.getMessage());
+        }
+    }
+
+    /**
+     * setEventLog starts recording every change to this engine in an event log. If the log
+     * does not have a snapshot yet (or the engine was migrated to a new bank while it was
+     * loading), the current state is written as its starting point.
+     * @param eventLog the team's event log
+     */
+    public void setEventLog(EventLog eventLog) {
+        mEventLog = eventLog;
+
+        // after a migration, the old snapshot refers to questions that have moved
+        if (!eventLog.hasSnapshot() || mMigrated) {
+            mMigrated = false;
+
+            try {
+                eventLog.writeSnapshot(this);
+            } catch (IOException e) {
+                Log.d(TAG, "setEventLog(): could not write snapshot: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * submitAnswers submits many answers at once, for answers that were not typed at the
+     * tablet (see AnswerBatch). It does what submitting each answer with SubmitButtonListener
+     * would, but the work that is done once per answer there is done once per batch:
+     *   - the unlock rule is applied at the end: each Starter question that became correct
+     *     unlocks one locked category, as long as any are locked
+     *   - the events are written to the event log with one fsync (see EventLog.appendAll())
+     *   - listeners are told about each kind of change once per category, after every answer
+     *     has been made, so the totals they see are the totals after the whole batch
+     *   - the save is written once, if the engine has been loaded from or saved to a directory
+     *   - no response times are recorded (see ResponseTimes), even for the question on the
+     *     screen, since the answers were not made at the tablet
+     * Every answer is checked before any is made: if one names a question that is not in this
+     * engine, or that matches more than one of its questions (a question repeated in one
+     * category), nothing is changed.
+     * @param batch the answers to submit
+     * @return the number of answers that were correct
+     * @throws IllegalArgumentException if an answer is for a question this engine does not
+     *                                  have, or has more than once
+     */
+    public int submitAnswers(AnswerBatch batch) {
+        Map<Long, Question> questions = new HashMap<Long, Question>();
+        Set<Long> repeated = new HashSet<Long>();
+        for (Category c : mCategories) {
+            for (int i = 0; i < c.countQuestions(); i++) {
+                Question q = c.getQuestion(i);
+                if (questions.put(q.getFingerprint(), q) != null) {
+                    repeated.add(q.getFingerprint());
+                }
+            }
+        }
+
+        Question[] answered = new Question[batch.countAnswers()];
+        for (int i = 0; i < answered.length; i++) {
+            answered[i] = questions.get(batch.getFingerprint(i));
+            if (answered[i] == null) {
+                throw new IllegalArgumentException("submitAnswers(): no question with fingerprint "
+                        + Long.toHexString(batch.getFingerprint(i)));
+            }
+            if (repeated.contains(batch.getFingerprint(i))) {
+                throw new IllegalArgumentException("submitAnswers(): more than one question with fingerprint "
+                        + Long.toHexString(batch.getFingerprint(i)));
+            }
+        }
+
+        int correct = 0;
+        List<EngineEvent> events = new ArrayList<EngineEvent>();
+        mBatchEvents = events;
+        mBatchChangeTypes = new ArrayList<String>();
+        mBatchChangeIds = new ArrayList<Integer>();
+        mBatchStartersCorrect = 0;
+        mSubmitting = true;
+
+        try {
+            for (int i = 0; i < answered.length; i++) {
+                if (answered[i].checkAnswer(batch.getAnswer(i))) {
+                    correct++;
+                }
+            }
+
+            for (int i = 0; i < mBatchStartersCorrect && mLockedCount > 0; i++) {
+                unlockCategory();
+            }
+        } finally {
+            mSubmitting = false;
+            mBatchEvents = null;
+        }
+
+        if (mEventLog != null) {
+            try {
+                mEventLog.appendAll(events, this);
+            } catch (IOException e) {
+                Log.d(TAG, "submitAnswers(): " + e.getMessage());
+            }
+        }
+
+        for (int i = 0; i < mBatchChangeTypes.size(); i++) {
+            publish(mBatchChangeTypes.get(i), mBatchChangeIds.get(i));
+        }
+        mBatchChangeTypes = null;
+        mBatchChangeIds = null;
+
+        if (mSaveDirectory != null) {
+            saveFile(mSaveDirectory.getDirectory());
+        }
+
+        Log.d(TAG, "submitAnswers(): " + answered.length + " answers, " + correct + " correct");
+        return correct;
+    }
+
+    /**
+     * teamLine formats the first line of a save file: the team's PIN, the number of tickets
+     * that have been redeemed, and the version of the question bank, in hex.
+     * @return a String of the form TEAM:PIN:TICKETS_REDEEMED:BANK_VERSION
+     */
+    private String teamLine() {
+        return String.format("TEAM:%s:%d:%s", mPin, mTicketsRedeemed, Long.toHexString(mBankVersion));
     }
 
     /**
@@ -687,7 +1794,7 @@ class TriviaEngine
      */
     public String toString() {
         Log.d(TAG, "toString() called");
-        String str = String.format("TEAM:%s:%d", mPin, mTicketsRedeemed) + "\n";
+        String str = teamLine() + "\n";
         for (Category cat : mCategories)
         {
             str += cat + "\n";
@@ -701,8 +1808,8 @@ class TriviaEngine
      */
     public String unlockCategory() {
         Log.d(TAG, "unlockCategory() called");
-        Category c = getLockedCategory();
-        if (!c.equals(new Category())) {
+        if (mLockedCount > 0) {
+            Category c = mCategories.get(mLockedCategories.nextSetBit(0));
             c.unlock();
             Log.d(TAG, "unlockCategory(): " + c.getCategory() + " has been unlocked");
             return c.getCategory();